@@ -0,0 +1,200 @@
+package splat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+import splat.lexer.Source;
+import splat.parser.elements.FlatAST;
+
+/**
+ * A directory of analyzed programs, so that a program that has not
+ * changed since its last run can skip lexing, parsing and semantic
+ * analysis.  Each program is kept as its FlatAST in a .splatc file named
+ * after the SHA-256 hash of its text and of the settings it was analyzed
+ * and optimized with, since those change what is stored (and a program
+ * only partly checked must not be run by a full check).  The file starts
+ * with a header:
+ *
+ *   magic 'SPLC', FORMAT_VERSION, the 32-byte hash, the length and the
+ *   CRC-32 of the FlatAST that follows
+ *
+ * all little-endian.  Cache files are memory-mapped to load them.  A file
+ * that is from another version, or does not match its hash or its CRC,
+ * is ignored (and replaced by the next store()), so a stale or damaged
+ * cache can only cost time.  Files are written under a temporary name
+ * and then renamed, so concurrent runs never see a partial one.
+ */
+public class ProgramCache {
+
+	private static final int MAGIC = 0x434C5053;
+
+	// Bump whenever the FlatAST layout or the meaning of a FlatAST changes
+	public static final int FORMAT_VERSION = 1;
+
+	private static final int HEADER_SIZE = 4 + 4 + 32 + 4 + 8;
+
+	private File dir;
+
+	public ProgramCache(File dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * Returns the key of the given program text, processed with the given
+	 * settings: the hex SHA-256 hash of the settings and of the text's
+	 * characters.
+	 */
+	public static String keyOf(Source source, String settings) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+		digest.update(settings.getBytes(StandardCharsets.UTF_8));
+		digest.update((byte) 0);
+
+		char[] chars = new char[8192];
+		ByteBuffer bytes = ByteBuffer.allocate(2 * chars.length).order(ByteOrder.LITTLE_ENDIAN);
+		CharBuffer view = bytes.asCharBuffer();
+		for (int start = 0; start < source.length(); start += chars.length) {
+			int end = Math.min(source.length(), start + chars.length);
+			source.getChars(start, end, chars, 0);
+			view.clear();
+			view.put(chars, 0, end - start);
+			digest.update(bytes.array(), 0, 2 * (end - start));
+		}
+
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Returns the cached program with the given key, or null if there is
+	 * no usable one.
+	 */
+	public FlatAST load(String key) {
+
+		Path path = fileOf(key);
+		if (!Files.isRegularFile(path)) {
+			return null;
+		}
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+				return null;
+			}
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			buf.order(ByteOrder.LITTLE_ENDIAN);
+
+			if (buf.getInt() != MAGIC || buf.getInt() != FORMAT_VERSION) {
+				return null;
+			}
+			byte[] hash = new byte[32];
+			buf.get(hash);
+			if (!toHex(hash).equals(key)) {
+				return null;
+			}
+			int length = buf.getInt();
+			long crc = buf.getLong();
+			if (length != size - HEADER_SIZE) {
+				return null;
+			}
+
+			ByteBuffer payload = buf.slice();
+			CRC32 check = new CRC32();
+			check.update(payload.duplicate());
+			if (check.getValue() != crc) {
+				return null;
+			}
+			return FlatAST.readFrom(payload);
+
+		} catch (IOException | RuntimeException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Caches the given program under the given key.  Failing to do so is
+	 * not an error: the program is just not cached.
+	 */
+	public void store(String key, FlatAST ast) {
+
+		Path tempFile = null;
+		try {
+			Files.createDirectories(dir.toPath());
+			ByteBuffer payload = ByteBuffer.allocate(ast.serializedSize());
+			ast.writeTo(payload);
+			payload.flip();
+
+			CRC32 crc = new CRC32();
+			crc.update(payload.duplicate());
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(MAGIC);
+			header.putInt(FORMAT_VERSION);
+			header.put(fromHex(key));
+			header.putInt(payload.remaining());
+			header.putLong(crc.getValue());
+			header.flip();
+
+			tempFile = Files.createTempFile(dir.toPath(), key, ".tmp");
+			try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+				while (header.hasRemaining()) {
+					channel.write(header);
+				}
+				while (payload.hasRemaining()) {
+					channel.write(payload);
+				}
+			}
+			Files.move(tempFile, fileOf(key), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			tempFile = null;
+
+		} catch (IOException | RuntimeException ex) {
+			// Not cached
+		} finally {
+			if (tempFile != null) {
+				try {
+					Files.deleteIfExists(tempFile);
+				} catch (IOException ex) {
+					// Left behind; ignored by load()
+				}
+			}
+		}
+	}
+
+	private Path fileOf(String key) {
+		return new File(dir, key + ".splatc").toPath();
+	}
+
+	private static String toHex(byte[] bytes) {
+		char[] hex = new char[2 * bytes.length];
+		for (int i = 0; i < bytes.length; i++) {
+			hex[2 * i] = Character.forDigit((bytes[i] >> 4) & 0xF, 16);
+			hex[2 * i + 1] = Character.forDigit(bytes[i] & 0xF, 16);
+		}
+		return new String(hex);
+	}
+
+	private static byte[] fromHex(String hex) {
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		}
+		return bytes;
+	}
+}
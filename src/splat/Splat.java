@@ -1,41 +1,164 @@
 package splat;
 
 import java.io.File;
-import java.util.List;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
 
 import splat.lexer.Lexer;
-import splat.lexer.Token;
+import splat.lexer.Source;
+import splat.lexer.TokenStream;
 
 import splat.parser.Parser;
+import splat.parser.elements.FlatAST;
 import splat.parser.elements.ProgramAST;
+import splat.semanticanalyzer.Resolver;
 import splat.semanticanalyzer.SemanticAnalyzer;
+import splat.optimizer.Optimizer;
 import splat.executor.Executor;
+import splat.executor.FlatExecutor;
 
 public class Splat {
 
+	// The settings below are read from the system properties when a Splat
+	// is created, so each program runs with those set at that time
+
+	// Run with -Dsplat.pipeline=true to lex and parse concurrently, with
+	// at most PIPELINE_BUFFER_SIZE tokens in flight between the two
+	private static final int PIPELINE_BUFFER_SIZE = 1 << 16;
+	private final boolean pipelined = Boolean.getBoolean("splat.pipeline");
+
+	// Run with -Dsplat.lexer.parallel=true to tokenize large programs in
+	// line-aligned chunks on the common ForkJoinPool
+	private final boolean parallelLexing = Boolean.getBoolean("splat.lexer.parallel");
+
+	// Run with -Dsplat.parser.lazy=true to only parse function bodies when
+	// they are first needed; see Parser.setLazyFunctionBodies()
+	private final boolean lazyFunctionBodies = Boolean.getBoolean("splat.parser.lazy");
+
+	// Run with -Dsplat.parser.parallel=true to parse the top-level
+	// declarations in parallel on the common ForkJoinPool
+	private final boolean parallelParsing = Boolean.getBoolean("splat.parser.parallel");
+
+	// Run with -Dsplat.analyzer.parallel=true to analyze the functions in
+	// parallel on the common ForkJoinPool
+	private final boolean parallelAnalysis = Boolean.getBoolean("splat.analyzer.parallel");
+
+	// Run with -Dsplat.analyzer.reachable=true to only analyze and run the
+	// functions the program body can reach.  Leave it off (as the tests
+	// do) to check every function
+	private final boolean reachableOnly = Boolean.getBoolean("splat.analyzer.reachable");
+
+	// Run with -Dsplat.optimize=true to simplify the program before it
+	// runs; see Optimizer
+	private final boolean optimize = Boolean.getBoolean("splat.optimize");
+
+	// Run with -Dsplat.optimize.inline=<n> to inline the functions of up
+	// to n statements and expressions when optimizing; 0 turns it off
+	private final int inlineLimit = Integer.getInteger("splat.optimize.inline", 32);
+
+	// Run with -Dsplat.flat=true to run the program from its compact
+	// FlatAST instead of the ProgramAST
+	private final boolean runFlat = Boolean.getBoolean("splat.flat");
+
+	// Run with -Dsplat.cache=<dir> to keep analyzed programs in <dir>, and
+	// run unchanged programs from there; see ProgramCache
+	private final String cacheDir = System.getProperty("splat.cache");
+
+	// The settings that change the program kept in the cache, which are
+	// part of its key
+	private final String cacheSettings = "reachable=" + reachableOnly
+			+ " optimize=" + optimize + " inline=" + inlineLimit;
+
 	private File progFile;
+	private Source progSource;
 	
 	public Splat(File progFile) {
 		this.progFile = progFile;
 	}
 	
+	/**
+	 * Runs a program that is already in memory (or mapped), without
+	 * going through a file.
+	 */
+	public Splat(Source progSource) {
+		this.progSource = progSource;
+	}
+	
 	public void processFileAndExecute() throws SplatException {
 		
+		// Step 0.  Skip steps 1 to 3 if the program is in the cache
+		ProgramCache cache = null;
+		String cacheKey = null;
+		if (cacheDir != null) {
+			cache = new ProgramCache(new File(cacheDir));
+			if (progSource == null) {
+				try {
+					progSource = Source.fromFile(progFile);
+				} catch (IOException ex) {
+					// Left to the lexer to report
+					cache = null;
+				}
+			}
+		}
+		if (cache != null) {
+			cacheKey = ProgramCache.keyOf(progSource, cacheSettings);
+			FlatAST cached = cache.load(cacheKey);
+			if (cached != null) {
+				new FlatExecutor(cached).runProgram();
+				return;
+			}
+		}
+		
 		// Step 1.  Tokenize
-		Lexer lexer = new Lexer(progFile);
-		List<Token> tokens = lexer.tokenize();
+		Lexer lexer = progSource != null ? new Lexer(progSource) : new Lexer(progFile);
+		ProgramAST progAST;
 		
-		// Step 2.  Parse
-		Parser parser = new Parser(tokens);
-		ProgramAST progAST = parser.parse();
+		if (pipelined) {
+			
+			// Steps 1 and 2, overlapped
+			progAST = Parser.parseConcurrently(lexer, PIPELINE_BUFFER_SIZE);
+			
+		} else {
+			TokenStream tokens = parallelLexing ? lexer.tokenizeParallel()
+					: lexer.tokenizeStream();
+			
+			// Step 2.  Parse
+			Parser parser = new Parser(tokens);
+			parser.setLazyFunctionBodies(lazyFunctionBodies);
+			if (parallelParsing) {
+				parser.setDeclarationPool(ForkJoinPool.commonPool());
+			}
+			progAST = parser.parse();
+		}
 		
 		// Step 3.  Semantic Analysis
 		SemanticAnalyzer analyzer = new SemanticAnalyzer(progAST);
+		if (parallelAnalysis) {
+			analyzer.setFunctionPool(ForkJoinPool.commonPool());
+		}
+		analyzer.setReachableOnly(reachableOnly);
 		analyzer.analyze();
+		progAST = analyzer.getProgram();
+		if (optimize) {
+			Optimizer optimizer = new Optimizer(progAST);
+			optimizer.setInlineLimit(inlineLimit);
+			progAST = optimizer.optimize();
+		}
+		new Resolver(progAST).resolve();
+		
+		FlatAST flatAST = null;
+		if (cache != null) {
+			flatAST = FlatAST.of(progAST);
+			cache.store(cacheKey, flatAST);
+		}
 		
 		// Step 4.  Executor
-		Executor executor = new Executor(progAST);
-		executor.runProgram();
+		if (runFlat) {
+			new FlatExecutor(flatAST != null ? flatAST : FlatAST.of(progAST)).runProgram();
+		} else {
+			Executor executor = new Executor(progAST);
+			executor.runProgram();
+		}
 		
 		// THE END!
 	}
@@ -0,0 +1,643 @@
+package splat;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import splat.lexer.Lexer;
+import splat.lexer.Source;
+import splat.lexer.Token;
+import splat.lexer.TokenStream;
+import splat.parser.IncrementalParser;
+import splat.parser.Parser;
+import splat.parser.elements.FlatAST;
+import splat.parser.elements.ProgramAST;
+import splat.semanticanalyzer.IncrementalAnalyzer;
+import splat.semanticanalyzer.SemanticAnalyzer;
+
+/*
+ * Times the interpreter phases on a large generated program.  Run it with
+ * a heap that comfortably holds the token list (e.g. -Xms3g -Xmx3g),
+ * otherwise the numbers mostly measure the garbage collector.
+ */
+public class SplatBenchmark {
+
+	// Approximate size (in characters) of the generated benchmark program
+	private final int targetSize = 8 * 1024 * 1024;
+
+	// Number of untimed runs used to warm up the JIT, and of timed runs
+	private final int warmupRuns = 3;
+	private final int timedRuns = 5;
+
+	private File progFile;
+
+	private long progSize;
+
+	public static void main(String[] args) throws Exception {
+
+		SplatBenchmark bench = new SplatBenchmark();
+		bench.runBenchmarks();
+	}
+
+	public void runBenchmarks() throws Exception {
+
+		System.out.print("Generating benchmark program...");
+		progFile = File.createTempFile("splat-bench", ".splat");
+		progFile.deleteOnExit();
+		writeProgram(progFile, targetSize);
+		progSize = progFile.length();
+		System.out.println("done (" + String.format("%.1f", progSize / 1048576.0) + " MB)");
+
+		benchLexer();
+		benchParallelLexer();
+		benchRelex();
+		benchParser();
+		benchIncrementalParse();
+		benchParserScaling();
+		benchPipeline();
+		benchSemanticAnalyzer();
+		benchReachableAnalysis();
+		benchIncrementalAnalysis();
+		benchProgramCache();
+		reportTokenMemory();
+		reportAstMemory();
+	}
+
+	private void benchLexer() throws SplatException, IOException {
+
+		int tokenCount = 0;
+		for (int i = 0; i < warmupRuns; i++) {
+			tokenCount = new Lexer(progFile).tokenize().size();
+		}
+
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < timedRuns; i++) {
+			long start = System.nanoTime();
+			List<Token> tokens = new Lexer(progFile).tokenize();
+			long elapsed = System.nanoTime() - start;
+			best = Math.min(best, elapsed);
+			tokenCount = tokens.size();
+		}
+
+		report("Lexer.tokenize()", best, tokenCount + " tokens");
+
+		for (int i = 0; i < warmupRuns; i++) {
+			new Lexer(progFile).tokenizeStream();
+		}
+
+		best = Long.MAX_VALUE;
+		for (int i = 0; i < timedRuns; i++) {
+			long start = System.nanoTime();
+			TokenStream tokens = new Lexer(progFile).tokenizeStream();
+			long elapsed = System.nanoTime() - start;
+			best = Math.min(best, elapsed);
+			tokenCount = tokens.size();
+		}
+
+		report("Lexer.tokenizeStream()", best, tokenCount + " tokens");
+
+		Source inMemory = Source.of(new String(Files.readAllBytes(progFile.toPath())));
+		for (int i = 0; i < warmupRuns; i++) {
+			new Lexer(inMemory).tokenizeStream();
+		}
+
+		best = Long.MAX_VALUE;
+		for (int i = 0; i < timedRuns; i++) {
+			long start = System.nanoTime();
+			new Lexer(inMemory).tokenizeStream();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+
+		report("  (in-memory Source)", best, "no file I/O");
+	}
+
+	private void benchParallelLexer() throws SplatException {
+
+		TokenStream expected = new Lexer(progFile).tokenizeStream();
+		TokenStream actual = new Lexer(progFile).tokenizeParallel();
+		if (!sameTokens(expected, actual)) {
+			throw new IllegalStateException("Parallel lexing differs from sequential lexing");
+		}
+
+		for (int i = 0; i < warmupRuns; i++) {
+			new Lexer(progFile).tokenizeParallel();
+		}
+
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < timedRuns; i++) {
+			long start = System.nanoTime();
+			new Lexer(progFile).tokenizeParallel();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+
+		int cpus = Runtime.getRuntime().availableProcessors();
+		report("Lexer.tokenizeParallel()", best, cpus + " CPUs available");
+	}
+
+	/*
+	 * Re-lexing after a one-line edit in the middle of the program, as an
+	 * editor would after a keystroke, versus tokenizing it again.
+	 */
+	private void benchRelex() throws SplatException {
+
+		TokenStream tokens = new Lexer(progFile).tokenizeStream();
+		Source source = tokens.getSource();
+		int offset = source.length() / 2;
+		String edit = "   t := (t + 1);\n";
+
+		TokenStream expected = new Lexer(Source.of(source.text(0, offset) + edit
+				+ source.text(offset, source.length() - offset))).tokenizeStream();
+		if (!sameTokens(expected, Lexer.relex(tokens, offset, 0, edit))) {
+			throw new IllegalStateException("Re-lexing differs from lexing the edited program");
+		}
+
+		for (int i = 0; i < warmupRuns; i++) {
+			Lexer.relex(tokens, offset, 0, edit);
+		}
+
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < timedRuns; i++) {
+			long start = System.nanoTime();
+			Lexer.relex(tokens, offset, 0, edit);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+
+		report("Lexer.relex(), 1 line", best, "copies the rest");
+	}
+
+	private static boolean sameTokens(TokenStream a, TokenStream b) {
+
+		if (a.size() != b.size()) {
+			return false;
+		}
+		for (int i = 0; i < a.size(); i++) {
+			if (a.kind(i) != b.kind(i) || a.start(i) != b.start(i) || a.length(i) != b.length(i)
+					|| a.line(i) != b.line(i) || a.column(i) != b.column(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void benchParser() throws SplatException {
+
+		TokenStream tokens = new Lexer(progFile).tokenizeStream();
+
+		for (int i = 0; i < warmupRuns; i++) {
+			new Parser(tokens).parse();
+		}
+
+		long best = Long.MAX_VALUE;
+		int declCount = 0;
+		for (int i = 0; i < timedRuns; i++) {
+			long start = System.nanoTime();
+			declCount = new Parser(tokens).parse().getDecls().size();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+
+		report("Parser.parse()", best, declCount + " declarations");
+
+		for (int i = 0; i < warmupRuns; i++) {
+			newLazyParser(tokens).parse();
+		}
+
+		best = Long.MAX_VALUE;
+		for (int i = 0; i < timedRuns; i++) {
+			long start = System.nanoTime();
+			newLazyParser(tokens).parse();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+
+		report("  lazy function bodies", best, "bodies skipped, not parsed");
+
+		String expected = new Parser(tokens).parse().toString();
+		if (!expected.equals(newParallelParser(tokens).parse().toString())) {
+			throw new IllegalStateException("Parallel parsing differs from sequential parsing");
+		}
+
+		for (int i = 0; i < warmupRuns; i++) {
+			newParallelParser(tokens).parse();
+		}
+
+		best = Long.MAX_VALUE;
+		for (int i = 0; i < timedRuns; i++) {
+			long start = System.nanoTime();
+			newParallelParser(tokens).parse();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+
+		int cpus = Runtime.getRuntime().availableProcessors();
+		report("  parallel declarations", best, cpus + " CPUs available");
+	}
+
+	private static Parser newParallelParser(TokenStream tokens) {
+
+		Parser parser = new Parser(tokens);
+		parser.setDeclarationPool(ForkJoinPool.commonPool());
+		return parser;
+	}
+
+	private static Parser newLazyParser(TokenStream tokens) {
+
+		Parser parser = new Parser(tokens);
+		parser.setLazyFunctionBodies(true);
+		return parser;
+	}
+
+	/*
+	 * Re-lexing and reparsing after a statement is added to a function in
+	 * the middle of the program, versus tokenizing and parsing it again.
+	 */
+	private void benchIncrementalParse() throws SplatException {
+
+		TokenStream tokens = new Lexer(progFile).tokenizeStream();
+		Source source = tokens.getSource();
+		int offset = source.length() / 2;
+		while (source.charAt(offset) != '\n' || source.charAt(offset + 4) != 'r') {
+			offset++;
+		}
+		offset++;
+		String edit = "   t := (t + 1);\n";
+
+		IncrementalParser incremental = new IncrementalParser(tokens);
+		String edited = incremental.applyEdit(offset, 0, edit).toString();
+		TokenStream expected = new Lexer(incremental.getTokens().getSource()).tokenizeStream();
+		if (!edited.equals(new Parser(expected).parse().toString())) {
+			throw new IllegalStateException("Incremental parsing differs from parsing the edited program");
+		}
+
+		for (int i = 0; i < warmupRuns; i++) {
+			incremental.applyEdit(offset, 0, edit);
+		}
+
+		long best = Long.MAX_VALUE;
+		for (int i = 0; i < timedRuns; i++) {
+			long start = System.nanoTime();
+			incremental.applyEdit(offset, 0, edit);
+			best = Math.min(best, System.nanoTime() - start);
+		}
+
+		report("IncrementalParser, 1 line", best, "relex + 1 function");
+
+		Source full = incremental.getTokens().getSource();
+		for (int i = 0; i < warmupRuns; i++) {
+			new Parser(new Lexer(full).tokenizeStream()).parse();
+		}
+
+		best = Long.MAX_VALUE;
+		for (int i = 0; i < timedRuns; i++) {
+			long start = System.nanoTime();
+			new Parser(new Lexer(full).tokenizeStream()).parse();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+
+		report("  full tokenize + parse", best, "for comparison");
+	}
+
+	/*
+	 * Parse time per token for programs from 1k to 1M tokens.  Parsing has
+	 * to stay linear in the program size, so the time per token must not
+	 * grow with it; SplatChecks checks the token accesses per token.
+	 */
+	private void benchParserScaling() throws SplatException, IOException {
+
+		for (int targetTokens = 1_000; targetTokens <= 1_000_000; targetTokens *= 10) {
+
+			File file = File.createTempFile("splat-scaling", ".splat");
+			file.deleteOnExit();
+			writeProgram(file, targetTokens * 3);
+			TokenStream tokens = new Lexer(file).tokenizeStream();
+
+			// Small programs need many more runs to warm up and to time
+			int runs = Math.max(timedRuns, 2_000_000 / tokens.size());
+			for (int i = 0; i < runs; i++) {
+				new Parser(tokens).parse();
+			}
+
+			long best = Long.MAX_VALUE;
+			for (int i = 0; i < runs; i++) {
+				long start = System.nanoTime();
+				new Parser(tokens).parse();
+				best = Math.min(best, System.nanoTime() - start);
+			}
+
+			double nanosPerToken = (double) best / tokens.size();
+			System.out.println(String.format("  Parser.parse(), %7d tokens %9.3f ms %8.1f ns/token",
+					tokens.size(), best / 1e6, nanosPerToken));
+		}
+	}
+
+	/*
+	 * End-to-end latency from the program file to its AST, lexing fully
+	 * before parsing versus running the two concurrently.
+	 */
+	private void benchPipeline() throws SplatException {
+
+		for (int i = 0; i < warmupRuns; i++) {
+			new Parser(new Lexer(progFile).tokenizeStream()).parse();
+			Parser.parseConcurrently(new Lexer(progFile), 1 << 16);
+		}
+
+		long sequential = Long.MAX_VALUE;
+		long pipelined = Long.MAX_VALUE;
+		for (int i = 0; i < timedRuns; i++) {
+			long start = System.nanoTime();
+			new Parser(new Lexer(progFile).tokenizeStream()).parse();
+			sequential = Math.min(sequential, System.nanoTime() - start);
+
+			start = System.nanoTime();
+			Parser.parseConcurrently(new Lexer(progFile), 1 << 16);
+			pipelined = Math.min(pipelined, System.nanoTime() - start);
+		}
+
+		int cpus = Runtime.getRuntime().availableProcessors();
+		report("Lex + parse, sequential", sequential, "");
+		report("Lex + parse, pipelined", pipelined, cpus + " CPUs available");
+	}
+
+	/*
+	 * Semantic analysis of the whole program, on an AST that is parsed
+	 * once (analyzing it again gives the same result), with the functions
+	 * analyzed one by one and in parallel.
+	 */
+	private void benchSemanticAnalyzer() throws SplatException {
+
+		ProgramAST progAST = new Parser(new Lexer(progFile).tokenizeStream()).parse();
+		long[] best = { Long.MAX_VALUE, Long.MAX_VALUE };
+		for (int i = 0; i < warmupRuns + timedRuns; i++) {
+			for (int p = 0; p < 2; p++) {
+				SemanticAnalyzer analyzer = new SemanticAnalyzer(progAST);
+				analyzer.setFunctionPool(p == 0 ? null : ForkJoinPool.commonPool());
+				long start = System.nanoTime();
+				analyzer.analyze();
+				if (i >= warmupRuns) {
+					best[p] = Math.min(best[p], System.nanoTime() - start);
+				}
+			}
+		}
+
+		int cpus = Runtime.getRuntime().availableProcessors();
+		report("SemanticAnalyzer.analyze()", best[0], progAST.getDecls().size() + " declarations");
+		report("  (parallel functions)", best[1], cpus + " CPUs available");
+	}
+
+	/*
+	 * Startup up to an analyzed program, parsing function bodies lazily,
+	 * when every function is analyzed versus only those the program body
+	 * can reach.  The body of the generated program only calls a few of
+	 * its functions, like a program using a small part of a library.
+	 */
+	private void benchReachableAnalysis() throws SplatException {
+
+		TokenStream tokens = new Lexer(progFile).tokenizeStream();
+		long[] best = { Long.MAX_VALUE, Long.MAX_VALUE };
+		int kept = 0;
+		for (int i = 0; i < warmupRuns + timedRuns; i++) {
+			for (int r = 0; r < 2; r++) {
+				long start = System.nanoTime();
+				Parser parser = new Parser(tokens);
+				parser.setLazyFunctionBodies(true);
+				SemanticAnalyzer analyzer = new SemanticAnalyzer(parser.parse());
+				analyzer.setReachableOnly(r == 1);
+				analyzer.analyze();
+				if (i >= warmupRuns) {
+					best[r] = Math.min(best[r], System.nanoTime() - start);
+				}
+				kept = analyzer.getProgram().getDecls().size();
+			}
+		}
+
+		report("Lazy parse + analyze, all", best[0], "");
+		report("  (reachable only)", best[1], kept + " declarations kept");
+	}
+
+	/*
+	 * Analysis after a statement is added to a function in the middle of
+	 * the program (with IncrementalParser), re-checking only what the edit
+	 * can affect versus analyzing the whole edited program.
+	 */
+	private void benchIncrementalAnalysis() throws SplatException {
+
+		TokenStream tokens = new Lexer(progFile).tokenizeStream();
+		Source source = tokens.getSource();
+		int offset = source.length() / 2;
+		while (source.charAt(offset) != '\n' || source.charAt(offset + 4) != 'r') {
+			offset++;
+		}
+		offset++;
+		String edit = "   t := (t + 1);\n";
+
+		IncrementalParser parser = new IncrementalParser(tokens);
+		IncrementalAnalyzer incremental = new IncrementalAnalyzer();
+		incremental.analyze(parser.getProgram());
+
+		long[] best = { Long.MAX_VALUE, Long.MAX_VALUE };
+		int checked = 0;
+		for (int i = 0; i < warmupRuns + timedRuns; i++) {
+			ProgramAST progAST = parser.applyEdit(offset, 0, edit);
+
+			long start = System.nanoTime();
+			incremental.analyze(progAST);
+			long elapsed = System.nanoTime() - start;
+			checked = incremental.getCheckedCount();
+
+			start = System.nanoTime();
+			new SemanticAnalyzer(progAST).analyze();
+			if (i >= warmupRuns) {
+				best[0] = Math.min(best[0], elapsed);
+				best[1] = Math.min(best[1], System.nanoTime() - start);
+			}
+		}
+
+		report("IncrementalAnalyzer, 1 line", best[0], checked + " bodies checked");
+		report("  full analyze", best[1], "for comparison");
+	}
+
+	/*
+	 * Startup time up to a runnable program, cold (lex, parse, analyze and
+	 * store in the cache) versus warm (hash the text and load from the
+	 * cache), for the test corpus (when run from the project directory)
+	 * and for the generated program.
+	 */
+	private void benchProgramCache() throws SplatException, IOException {
+
+		File cacheDir = Files.createTempDirectory("splat-cache").toFile();
+		ProgramCache cache = new ProgramCache(cacheDir);
+
+		List<Source> corpus = new ArrayList<Source>();
+		File[] testFiles = new File("tests").listFiles((dir, name) -> name.endsWith(".splat"));
+		if (testFiles != null) {
+			for (File file : testFiles) {
+				Source source = Source.of(new String(Files.readAllBytes(file.toPath())));
+				try {
+					startCold(source, cache);
+					corpus.add(source);
+				} catch (SplatException ex) {
+					// Not a valid program, so never cached
+				}
+			}
+		}
+
+		List<Source> large = new ArrayList<Source>();
+		large.add(Source.of(new String(Files.readAllBytes(progFile.toPath()))));
+
+		for (List<Source> programs : Arrays.asList(corpus, large)) {
+			if (programs.isEmpty()) {
+				continue;
+			}
+
+			long bestCold = Long.MAX_VALUE;
+			long bestWarm = Long.MAX_VALUE;
+			for (int i = 0; i < warmupRuns + timedRuns; i++) {
+				long start = System.nanoTime();
+				for (Source source : programs) {
+					startCold(source, cache);
+				}
+				long cold = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				for (Source source : programs) {
+					if (cache.load(ProgramCache.keyOf(source, "")) == null) {
+						throw new IllegalStateException("Program missing from the cache");
+					}
+				}
+				long warm = System.nanoTime() - start;
+
+				if (i >= warmupRuns) {
+					bestCold = Math.min(bestCold, cold);
+					bestWarm = Math.min(bestWarm, warm);
+				}
+			}
+
+			String name = programs == corpus ? programs.size() + " test programs" : "generated program";
+			System.out.println(String.format("  ProgramCache, %-19s cold %9.3f ms, warm %9.3f ms",
+					name, bestCold / 1e6, bestWarm / 1e6));
+		}
+
+		for (File file : cacheDir.listFiles()) {
+			file.delete();
+		}
+		cacheDir.delete();
+	}
+
+	private static void startCold(Source source, ProgramCache cache) throws SplatException {
+
+		ProgramAST progAST = new Parser(new Lexer(source).tokenizeStream()).parse();
+		new SemanticAnalyzer(progAST).analyze();
+		cache.store(ProgramCache.keyOf(source, ""), FlatAST.of(progAST));
+	}
+
+	private void reportTokenMemory() throws SplatException {
+
+		long before = usedMemory();
+		List<Token> list = new Lexer(progFile).tokenize();
+		long listBytes = usedMemory() - before;
+		int count = list.size();
+		list = null;
+
+		before = usedMemory();
+		TokenStream stream = new Lexer(progFile).tokenizeStream();
+		long streamBytes = usedMemory() - before;
+
+		System.out.println(String.format("  Token memory: List<Token> %.1f bytes/token, "
+				+ "TokenStream %.1f bytes/token (incl. source text)",
+				(double) listBytes / count, (double) streamBytes / stream.size()));
+	}
+
+	/*
+	 * Heap taken by the AST of the program, as objects and as a FlatAST.
+	 */
+	private void reportAstMemory() throws SplatException {
+
+		TokenStream tokens = new Lexer(progFile).tokenizeStream();
+
+		long before = usedMemory();
+		ProgramAST progAST = new Parser(tokens).parse();
+		long treeBytes = usedMemory() - before;
+
+		FlatAST flat = FlatAST.of(progAST);
+		progAST = null;
+		long flatBytes = usedMemory() - before;
+
+		double sourceKB = progSize / 1024.0;
+		System.out.println(String.format("  AST memory: ProgramAST %.0f bytes/source KB, "
+				+ "FlatAST %.0f bytes/source KB (%d nodes, %d strings)",
+				treeBytes / sourceKB, flatBytes / sourceKB, flat.size(), flat.stringCount()));
+	}
+
+	private static long usedMemory() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	private void report(String name, long nanos, String detail) {
+
+		double millis = nanos / 1e6;
+		double mbPerSec = (progSize / 1048576.0) / (nanos / 1e9);
+		System.out.println(String.format("  %-28s %9.1f ms %8.1f MB/s   %s",
+				name, millis, mbPerSec, detail.isEmpty() ? "" : "(" + detail + ")"));
+	}
+
+	/*
+	 * Writes a valid Splat program of roughly the given size.  The program
+	 * is mostly a library of small functions, only a few of which are called
+	 * from the program body, which is the shape of our generated programs.
+	 */
+	static void writeProgram(File file, int targetSize) throws IOException {
+
+		try (Writer out = new FileWriter(file)) {
+
+			out.write("program\n");
+			out.write("   total : Integer;\n");
+			out.write("   flag : Boolean;\n");
+
+			int written = 0;
+			int funcCount = 0;
+			while (written < targetSize) {
+				String func = generateFunction(funcCount);
+				out.write(func);
+				written += func.length();
+				funcCount++;
+			}
+
+			out.write("begin\n");
+			for (int i = 0; i < funcCount; i += Math.max(1, funcCount / 16)) {
+				out.write("   total := (total + f" + i + "(" + i + ", 3));\n");
+			}
+			out.write("   flag := (total > 0);\n");
+			out.write("   print total;\n");
+			out.write("   print_line;\n");
+			out.write("end;\n");
+		}
+	}
+
+	private static String generateFunction(int n) {
+
+		return "f" + n + " (a : Integer, b : Integer) : Integer is\n"
+				+ "   t : Integer;\n"
+				+ "   msg : String;\n"
+				+ "begin\n"
+				+ "   t := ((a * 2) + (b - 1));\n"
+				+ "   msg := \"value of f" + n + " is\";\n"
+				+ "   if ((t > 10) and (not (t == 42))) then\n"
+				+ "      t := (t % 7);\n"
+				+ "   else\n"
+				+ "      t := (-t);\n"
+				+ "   end if;\n"
+				+ "   while (t <= 20) do\n"
+				+ "      t := (t + 1);\n"
+				+ "   end while;\n"
+				+ "   return t;\n"
+				+ "end;\n";
+	}
+
+}
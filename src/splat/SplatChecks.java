@@ -0,0 +1,771 @@
+package splat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import splat.lexer.Lexer;
+import splat.lexer.LineAnchor;
+import splat.lexer.Source;
+import splat.lexer.Token;
+import splat.lexer.TokenCursor;
+import splat.lexer.TokenKind;
+import splat.lexer.TokenStream;
+import splat.parser.IncrementalParser;
+import splat.parser.ParseException;
+import splat.parser.Parser;
+import splat.parser.elements.*;
+import splat.semanticanalyzer.CallGraph;
+import splat.semanticanalyzer.IncrementalAnalyzer;
+import splat.semanticanalyzer.SemanticAnalyzer;
+
+/**
+ * Checks the parts of the interpreter that have a plainer equivalent
+ * against it, for example the incremental lexer against lexing the edited
+ * program from scratch.  SplatTester runs each test program once; these
+ * checks edit the programs in the tests folder over and over, with a
+ * fixed seed so that every run makes the same edits, and compare the
+ * results (or the errors, with their positions) of the two ways.  Some
+ * checks run on programs they generate instead.
+ *
+ * Run it from the same folder as SplatTester.  It prints a line for each
+ * check, with the first few cases that failed, and exits with status 1
+ * if any did.
+ */
+public class SplatChecks {
+
+	// Path to where the directory of .splat test files are located
+	private final String testDirName = ".\\tests";
+
+	// Number of edit sequences per check, and of edits in each
+	private final int sequences = 300;
+	private final int editsPerSequence = 6;
+
+	// Number of functions in the programs generated for the analyzer
+	private static final int GENERATED_FUNCTIONS = 6;
+
+	// Number of failed cases shown per check
+	private final int shownFailures = 3;
+
+	// Texts that edits insert, besides pieces of the program itself
+	private static final String[] INSERTIONS = { "\n", "\r", "\r\n", " ", "x", ";", "(", ")", "1",
+			"\"s", "end", " end ;\n", "begin", "program", "\n\n   ", "y : Integer;\n",
+			"f (a : Integer) : Integer is begin return a; end;\n", "if x then end if;" };
+
+	private List<String> programs = new ArrayList<String>();
+
+	private int failedChecks;
+
+	public static void main(String[] args) throws Exception {
+
+		SplatChecks checks = new SplatChecks();
+		checks.runChecks();
+		if (checks.failedChecks > 0) {
+			System.exit(1);
+		}
+	}
+
+	public void runChecks() throws Exception {
+
+		File[] testFiles = new File(testDirName).listFiles((dir, name) -> name.endsWith(".splat"));
+		if (testFiles == null) {
+			System.out.println("Cannot find directory 'tests'.");
+			failedChecks++;
+			return;
+		}
+		Arrays.sort(testFiles);
+		for (File testFile : testFiles) {
+			programs.add(new String(Files.readAllBytes(testFile.toPath())));
+		}
+
+		checkRelex();
+		checkIncrementalParser();
+		checkCallGraph();
+		checkIncrementalAnalyzer();
+		checkParserScaling();
+	}
+
+	/*
+	 * Lexer.relex() after each edit against tokenizing the edited program.
+	 */
+	private void checkRelex() {
+
+		Random rnd = new Random(6);
+		List<String> failures = new ArrayList<String>();
+		int cases = 0;
+
+		for (int s = 0; s < sequences; s++) {
+			String text = programs.get(rnd.nextInt(programs.size()));
+			TokenStream tokens;
+			try {
+				tokens = new Lexer(Source.of(text)).tokenizeStream();
+			} catch (SplatException ex) {
+				continue;
+			}
+
+			for (int e = 0; e < editsPerSequence && tokens != null; e++) {
+				Edit edit = new Edit(rnd, text);
+				String edited = edit.applyTo(text);
+
+				String expected;
+				TokenStream fresh = null;
+				try {
+					fresh = new Lexer(Source.of(edited)).tokenizeStream();
+					expected = describe(fresh);
+				} catch (SplatException ex) {
+					expected = ex.toString();
+				}
+
+				String actual;
+				try {
+					actual = describe(Lexer.relex(tokens, edit.offset, edit.removedLength, edit.insertedText));
+				} catch (SplatException ex) {
+					actual = ex.toString();
+				}
+
+				cases++;
+				if (!actual.equals(expected)) {
+					failures.add(edit + " on\n" + text);
+				}
+				text = edited;
+				tokens = fresh;
+			}
+		}
+
+		report("Lexer.relex() against tokenizeStream()", cases, failures);
+	}
+
+	/*
+	 * IncrementalParser.applyEdit() after each edit against parsing the
+	 * edited program, with function bodies parsed lazily or not.
+	 */
+	private void checkIncrementalParser() {
+
+		Random rnd = new Random(12);
+		List<String> failures = new ArrayList<String>();
+		int cases = 0;
+
+		for (int s = 0; s < sequences; s++) {
+			String text = programs.get(rnd.nextInt(programs.size()));
+			boolean lazy = rnd.nextBoolean();
+			IncrementalParser incremental;
+			try {
+				incremental = new IncrementalParser(new Lexer(Source.of(text)).tokenizeStream());
+			} catch (SplatException ex) {
+				continue;
+			}
+			incremental.setLazyFunctionBodies(lazy);
+
+			for (int e = 0; e < editsPerSequence; e++) {
+				Edit edit = new Edit(rnd, text);
+				String edited = edit.applyTo(text);
+
+				String expected;
+				try {
+					Parser parser = new Parser(new Lexer(Source.of(edited)).tokenizeStream());
+					parser.setLazyFunctionBodies(lazy);
+					expected = describe(parser.parse());
+				} catch (SplatException ex) {
+					expected = ex.toString();
+				}
+
+				String actual;
+				try {
+					actual = describe(incremental.applyEdit(edit.offset, edit.removedLength, edit.insertedText));
+				} catch (SplatException ex) {
+					actual = ex.toString();
+				}
+
+				cases++;
+				if (!actual.equals(expected)) {
+					failures.add(edit + (lazy ? " (lazy bodies)" : "") + " on\n" + text);
+				}
+				text = edited;
+			}
+		}
+
+		report("IncrementalParser.applyEdit() against Parser.parse()", cases, failures);
+	}
+
+	/*
+	 * CallGraph on generated programs with random calls between their
+	 * functions, against the transitive closure of those calls: which
+	 * functions are recursive, pure or in one component, and the order of
+	 * the components.  Then a cycle through 100k functions, which must not
+	 * overflow the stack.
+	 */
+	private void checkCallGraph() throws SplatException {
+
+		Random rnd = new Random(19);
+		List<String> failures = new ArrayList<String>();
+		int cases = 0;
+
+		for (int s = 0; s < sequences; s++) {
+			int n = 1 + rnd.nextInt(rnd.nextBoolean() ? 6 : 40);
+			boolean[][] calls = new boolean[n][n];
+			boolean[] prints = new boolean[n];
+			StringBuilder text = new StringBuilder("program\n   x : Integer;\n");
+
+			for (int f = 0; f < n; f++) {
+				text.append("   f" + f + " (a : Integer) : Integer is\n   begin\n");
+				for (int c = rnd.nextInt(4); c > 0; c--) {
+					int g = rnd.nextInt(n);
+					calls[f][g] = true;
+					if (rnd.nextBoolean()) {
+						int h = rnd.nextInt(n);
+						calls[f][h] = true;
+						text.append("      if (f" + g + "(1) > 0) then a := (2 + (-f" + h + "(a))); end if;\n");
+					} else {
+						text.append("      while true do f" + g + "(3); end while;\n");
+					}
+				}
+				if (rnd.nextInt(3) == 0) {
+					prints[f] = true;
+					text.append(rnd.nextBoolean() ? "      if true then print a; end if;\n" : "      print_line;\n");
+				}
+				text.append("      return a;\n   end;\n");
+			}
+			int mainCallee = rnd.nextInt(n);
+			text.append("begin\n   x := f" + mainCallee + "(1);\nend;\n");
+
+			Parser parser = new Parser(new Lexer(Source.of(text.toString())).tokenizeStream());
+			parser.setLazyFunctionBodies(rnd.nextBoolean());
+			CallGraph callGraph = new CallGraph(parser.parse());
+
+			cases++;
+			String problem = callGraphProblem(callGraph, calls, prints, mainCallee);
+			if (problem != null) {
+				failures.add(problem + " in\n" + text);
+			}
+		}
+
+		int chainLength = 100_000;
+		StringBuilder text = new StringBuilder("program\n");
+		for (int f = 0; f < chainLength; f++) {
+			String next = f + 1 < chainLength ? "f" + (f + 1) + "();" : "f0(); print 1;";
+			text.append("   f" + f + " () : void is begin " + next + " end;\n");
+		}
+		text.append("begin\n   f0();\nend;\n");
+
+		cases++;
+		try {
+			CallGraph callGraph = new CallGraph(new Parser(new Lexer(Source.of(text.toString())).tokenizeStream()).parse());
+			FunctionDecl first = callGraph.getFunctions().get(0);
+			if (callGraph.getComponents().size() != 1 || !callGraph.isRecursive(first) || callGraph.isPure(first)) {
+				failures.add("a cycle through " + chainLength + " functions is not one recursive OUTPUT component");
+			}
+		} catch (StackOverflowError er) {
+			failures.add("a cycle through " + chainLength + " functions overflows the stack");
+		}
+
+		report("CallGraph against the transitive closure of the calls", cases, failures);
+	}
+
+	/*
+	 * Returns what the call graph of the generated program gets wrong, or
+	 * null if nothing.  Function f<i> calls f<j> if calls[i][j], and prints
+	 * if prints[i]; the main program calls f<mainCallee> only.
+	 */
+	private static String callGraphProblem(CallGraph callGraph, boolean[][] calls, boolean[] prints,
+			int mainCallee) {
+
+		int n = calls.length;
+		boolean[][] reaches = new boolean[n][];
+		for (int i = 0; i < n; i++) {
+			reaches[i] = calls[i].clone();
+		}
+		for (int k = 0; k < n; k++) {
+			for (int i = 0; i < n; i++) {
+				for (int j = 0; reaches[i][k] && j < n; j++) {
+					reaches[i][j] |= reaches[k][j];
+				}
+			}
+		}
+
+		List<FunctionDecl> functions = callGraph.getFunctions();
+		List<List<FunctionDecl>> components = callGraph.getComponents();
+		Map<FunctionDecl, Integer> componentOf = new HashMap<FunctionDecl, Integer>();
+		for (int c = 0; c < components.size(); c++) {
+			for (FunctionDecl funcDecl : components.get(c)) {
+				if (componentOf.put(funcDecl, c) != null) {
+					return funcDecl.getLabel() + " is in two components";
+				}
+			}
+		}
+		if (componentOf.size() != n) {
+			return "the components hold " + componentOf.size() + " of " + n + " functions";
+		}
+
+		for (int i = 0; i < n; i++) {
+			FunctionDecl fi = functions.get(i);
+			if (callGraph.isRecursive(fi) != reaches[i][i]) {
+				return "f" + i + " is recursive: " + callGraph.isRecursive(fi);
+			}
+			boolean output = prints[i];
+			for (int j = 0; j < n; j++) {
+				output |= reaches[i][j] && prints[j];
+			}
+			if (callGraph.isPure(fi) == output) {
+				return "f" + i + " is " + callGraph.getEffect(fi);
+			}
+			if (callGraph.getComponent(fi) != components.get(componentOf.get(fi))) {
+				return "the component of f" + i + " is not in the components";
+			}
+
+			for (int j = 0; j < n; j++) {
+				FunctionDecl fj = functions.get(j);
+				if (calls[i][j] != callGraph.getCallees(fi).contains(fj)
+						|| calls[i][j] != callGraph.getCallers(fj).contains(fi)) {
+					return "f" + i + " calls f" + j + ": " + calls[i][j];
+				}
+				boolean together = i == j || reaches[i][j] && reaches[j][i];
+				if (together != componentOf.get(fi).equals(componentOf.get(fj))) {
+					return "f" + i + " and f" + j + " are in one component: " + !together;
+				}
+				if (calls[i][j] && !together && componentOf.get(fj) >= componentOf.get(fi)) {
+					return "the component of f" + j + " comes after that of its caller f" + i;
+				}
+			}
+		}
+
+		if (!callGraph.getProgramCallees().equals(Arrays.asList(functions.get(mainCallee)))) {
+			return "the program calls " + callGraph.getProgramCallees();
+		}
+		return null;
+	}
+
+	/*
+	 * IncrementalAnalyzer.analyze() after each edit against analyzing the
+	 * edited program with a SemanticAnalyzer.  Edits to the test programs
+	 * seldom leave them valid, so these programs are generated instead,
+	 * one declaration at a time, and an edit replaces, removes or adds a
+	 * whole declaration (through an IncrementalParser, so that the others
+	 * are kept).  Half of the programs are kept simple enough to pass now
+	 * and then, so that later edits start from a program that passed.
+	 */
+	private void checkIncrementalAnalyzer() {
+
+		Random rnd = new Random(21);
+		List<String> failures = new ArrayList<String>();
+		int cases = 0;
+
+		for (int s = 0; s < sequences; s++) {
+			boolean simple = rnd.nextBoolean();
+			List<String> parts = new ArrayList<String>();
+			parts.add("program\n");
+			parts.add(randomVariables(rnd));
+			for (int f = 0; f < GENERATED_FUNCTIONS; f++) {
+				parts.add(randomFunction(rnd, f, simple));
+			}
+			parts.add(randomBody(rnd, simple));
+
+			IncrementalParser parser;
+			try {
+				parser = new IncrementalParser(new Lexer(Source.of(String.join("", parts))).tokenizeStream());
+			} catch (SplatException ex) {
+				continue;
+			}
+			IncrementalAnalyzer analyzer = new IncrementalAnalyzer();
+
+			for (int e = 0; e <= editsPerSequence; e++) {
+				String text = String.join("", parts);
+				if (e > 0) {
+					int which = 1 + rnd.nextInt(parts.size() - 1);
+					boolean function = which > 1 && which < parts.size() - 1;
+					String replacement = which == 1 ? randomVariables(rnd)
+							: function ? randomFunction(rnd, which - 2, simple) : randomBody(rnd, simple);
+					int kind = rnd.nextInt(6);
+					if (kind == 0 && function && parts.size() > 4) {
+						replacement = "";
+					} else if (kind == 1 && function) {
+						replacement = parts.get(which) + randomFunction(rnd, rnd.nextInt(GENERATED_FUNCTIONS + 2), simple);
+					}
+
+					int offset = String.join("", parts.subList(0, which)).length();
+					try {
+						parser.applyEdit(offset, parts.get(which).length(), replacement);
+					} catch (SplatException ex) {
+						// Compared with the full analysis below if it ever parses again
+					}
+					if (replacement.isEmpty()) {
+						parts.remove(which);
+					} else {
+						parts.set(which, replacement);
+					}
+					text = String.join("", parts);
+				}
+
+				ProgramAST program = parser.getProgram();
+				if (program == null) {
+					continue;
+				}
+
+				String expected;
+				try {
+					new SemanticAnalyzer(new Parser(new Lexer(Source.of(text)).tokenizeStream()).parse()).analyze();
+					expected = "passed";
+				} catch (SplatException ex) {
+					expected = ex.toString();
+				}
+
+				String actual;
+				try {
+					analyzer.analyze(program);
+					actual = "passed";
+				} catch (SplatException ex) {
+					actual = ex.toString();
+				}
+
+				cases++;
+				if (!actual.equals(expected)) {
+					failures.add(actual + " instead of " + expected + " on\n" + text);
+				}
+			}
+		}
+
+		report("IncrementalAnalyzer.analyze() against SemanticAnalyzer.analyze()", cases, failures);
+	}
+
+	private static String randomVariables(Random rnd) {
+		return "   x : Integer;\n   b : " + (rnd.nextInt(5) == 0 ? "String" : "Boolean") + ";\n";
+	}
+
+	/*
+	 * Function f<n>, now and then with the label of another one.  A simple
+	 * function just prints and maybe calls another one, and is mostly
+	 * valid; any other has random statements and types.
+	 */
+	private static String randomFunction(Random rnd, int n, boolean simple) {
+
+		String[] types = { "Integer", "Boolean", "String", "void" };
+		String label = "f" + (rnd.nextInt(simple ? 40 : 20) == 0 ? rnd.nextInt(GENERATED_FUNCTIONS) : n);
+
+		if (simple) {
+			String param = rnd.nextInt(40) == 0 ? "f" + rnd.nextInt(GENERATED_FUNCTIONS) : rnd.nextInt(40) == 0 ? "x" : "y";
+			String paramType = rnd.nextInt(25) == 0 ? "Boolean" : "Integer";
+			boolean returns = rnd.nextInt(12) == 0;
+			return "   " + label + " (" + param + " : " + paramType + ") : " + (returns ? "Integer" : "void")
+					+ " is\n   begin\n      print 1;\n"
+					+ (rnd.nextBoolean() ? "      f" + rnd.nextInt(GENERATED_FUNCTIONS) + "(1);\n" : "")
+					+ (returns ? "      return 2;\n" : "") + "   end;\n";
+		}
+
+		StringBuilder result = new StringBuilder();
+		result.append("   " + label + " (x : " + (rnd.nextInt(4) == 0 ? types[rnd.nextInt(3)] : "Integer") + ") : "
+				+ types[rnd.nextInt(4)] + " is\n      " + (rnd.nextInt(5) == 0 ? "x" : "b")
+				+ " : Boolean;\n   begin\n");
+		randomStatements(rnd, result, 0, "      ");
+		return result.append("   end;\n").toString();
+	}
+
+	private static String randomBody(Random rnd, boolean simple) {
+
+		if (simple) {
+			return "begin\n   print x;\nend;\n";
+		}
+		StringBuilder result = new StringBuilder("begin\n");
+		randomStatements(rnd, result, 0, "   ");
+		return result.append("end;\n").toString();
+	}
+
+	private static void randomStatements(Random rnd, StringBuilder result, int depth, String indent) {
+
+		for (int i = rnd.nextInt(4); i > 0; i--) {
+			switch (rnd.nextInt(depth > 2 ? 5 : 8)) {
+				case 0:
+					result.append(indent + "x := " + randomExpression(rnd, 0) + ";\n");
+					break;
+				case 1:
+					result.append(indent + "print " + randomExpression(rnd, 0) + ";\n");
+					break;
+				case 2:
+					result.append(indent + (rnd.nextInt(4) == 0 ? "return;\n" : "x := 1;\n"));
+					break;
+				case 3:
+					result.append(indent + "return " + randomExpression(rnd, 0) + ";\n");
+					break;
+				case 4:
+					result.append(indent + "f" + rnd.nextInt(GENERATED_FUNCTIONS) + "(" + randomExpression(rnd, 0) + ");\n");
+					break;
+				case 5:
+				case 6:
+					result.append(indent + "if " + randomExpression(rnd, 0) + " then\n");
+					randomStatements(rnd, result, depth + 1, indent + "   ");
+					if (rnd.nextBoolean()) {
+						result.append(indent + "else\n");
+						randomStatements(rnd, result, depth + 1, indent + "   ");
+					}
+					result.append(indent + "end if;\n");
+					break;
+				default:
+					result.append(indent + "while " + randomExpression(rnd, 0) + " do\n");
+					randomStatements(rnd, result, depth + 1, indent + "   ");
+					result.append(indent + "end while;\n");
+			}
+		}
+	}
+
+	private static String randomExpression(Random rnd, int depth) {
+
+		switch (rnd.nextInt(depth > 3 ? 6 : 9)) {
+			case 0:
+				return "1";
+			case 1:
+				return "true";
+			case 2:
+				return "\"s\"";
+			case 3:
+				return "x";
+			case 4:
+				return "b";
+			case 5:
+				return "q";
+			case 6:
+				return "(x + " + randomExpression(rnd, depth + 1) + ")";
+			case 7:
+				return "(not " + randomExpression(rnd, depth + 1) + ")";
+			default:
+				return "f" + rnd.nextInt(GENERATED_FUNCTIONS) + "(" + randomExpression(rnd, depth + 1) + ")";
+		}
+	}
+
+	/*
+	 * Parser.parse() on generated programs of 1k to 1M tokens: the number
+	 * of times it reads or moves the token cursor, per token, may not grow
+	 * with the size of the program, as it would if parsing went back over
+	 * the tokens it has read.  Counting the accesses rather than timing
+	 * them makes the check independent of the machine and of the heap.
+	 */
+	private void checkParserScaling() throws SplatException, IOException {
+
+		List<String> failures = new ArrayList<String>();
+		int cases = 0;
+		double baseline = 0;
+		int baselineTokens = 0;
+
+		for (int targetTokens = 1_000; targetTokens <= 1_000_000; targetTokens *= 10) {
+			File file = File.createTempFile("splat-scaling", ".splat");
+			file.deleteOnExit();
+			SplatBenchmark.writeProgram(file, targetTokens * 3);
+			TokenStream tokens = new Lexer(file).tokenizeStream();
+
+			CountingCursor cursor = new CountingCursor(tokens.cursor());
+			new Parser(cursor).parse();
+			double accessesPerToken = (double) cursor.accesses / tokens.size();
+
+			// The smallest program sets the figure the others must keep to
+			if (baseline == 0) {
+				baseline = accessesPerToken;
+				baselineTokens = tokens.size();
+				continue;
+			}
+			cases++;
+			if (accessesPerToken > 1.1 * baseline) {
+				failures.add(String.format("%.2f accesses per token at %d tokens, %.2f at %d tokens",
+						accessesPerToken, tokens.size(), baseline, baselineTokens));
+			}
+		}
+		report("Parser.parse() token accesses per token from 1k to 1M tokens", cases, failures);
+	}
+
+	private static String describe(TokenStream tokens) {
+		StringBuilder result = new StringBuilder();
+		for (int i = 0; i < tokens.size(); i++) {
+			result.append(tokens.kind(i)).append(' ').append(tokens.text(i)).append(' ')
+					.append(tokens.line(i)).append(':').append(tokens.column(i)).append('\n');
+		}
+		return result.toString();
+	}
+
+	/*
+	 * The program as text, with the position of each of its elements,
+	 * after parsing any function bodies left to parse.
+	 */
+	private static String describe(ProgramAST program) {
+
+		StringBuilder result = new StringBuilder();
+		for (Declaration decl : program.getDecls()) {
+			if (decl instanceof FunctionDecl) {
+				try {
+					((FunctionDecl) decl).parseBody();
+				} catch (ParseException ex) {
+					result.append(ex).append('\n');
+				}
+			}
+		}
+		result.append(program).append('\n');
+
+		Deque<ASTElement> work = new ArrayDeque<ASTElement>();
+		work.push(program);
+		while (!work.isEmpty()) {
+			ASTElement elem = work.pop();
+			result.append(elem.getClass().getSimpleName()).append(' ')
+					.append(elem.getLine()).append(':').append(elem.getColumn()).append('\n');
+			for (ASTElement child : childrenOf(elem)) {
+				if (child != null) {
+					work.push(child);
+				}
+			}
+		}
+		return result.toString();
+	}
+
+	private static List<ASTElement> childrenOf(ASTElement elem) {
+
+		List<ASTElement> children = new ArrayList<ASTElement>();
+		if (elem instanceof ProgramAST) {
+			children.addAll(((ProgramAST) elem).getDecls());
+			children.addAll(((ProgramAST) elem).getStmts());
+		} else if (elem instanceof FunctionDecl) {
+			FunctionDecl funcDecl = (FunctionDecl) elem;
+			children.addAll(funcDecl.getParams());
+			if (funcDecl.isBodyParsed()) {
+				children.addAll(funcDecl.getLocVarDecls());
+				children.addAll(funcDecl.getStmts());
+			}
+		} else if (elem instanceof Assignment) {
+			children.add(((Assignment) elem).getExpr());
+		} else if (elem instanceof FunctionCallStmt) {
+			children.addAll(((FunctionCallStmt) elem).getArgs());
+		} else if (elem instanceof FunctionCallExpr) {
+			children.addAll(((FunctionCallExpr) elem).getArgs());
+		} else if (elem instanceof IfThen) {
+			IfThen ifThen = (IfThen) elem;
+			children.add(ifThen.getCondition());
+			children.addAll(ifThen.getThenStmts());
+			if (ifThen.getElseStmts() != null) {
+				children.addAll(ifThen.getElseStmts());
+			}
+		} else if (elem instanceof WhileLoop) {
+			children.add(((WhileLoop) elem).getCondition());
+			children.addAll(((WhileLoop) elem).getStmts());
+		} else if (elem instanceof Print) {
+			children.add(((Print) elem).getExpr());
+		} else if (elem instanceof Return) {
+			children.add(((Return) elem).getExpr());
+		} else if (elem instanceof BinaryOp) {
+			children.add(((BinaryOp) elem).getLeft());
+			children.add(((BinaryOp) elem).getRight());
+		} else if (elem instanceof UnaryOp) {
+			children.add(((UnaryOp) elem).getExpr());
+		}
+		return children;
+	}
+
+	private void report(String check, int cases, List<String> failures) {
+
+		if (failures.isEmpty()) {
+			System.out.println(check + ": " + cases + " cases passed");
+			return;
+		}
+
+		failedChecks++;
+		System.out.println(check + ": " + failures.size() + " of " + cases + " cases FAILED");
+		for (String failure : failures.subList(0, Math.min(shownFailures, failures.size()))) {
+			System.out.println("  " + failure.replace("\n", "\n  "));
+		}
+	}
+
+	/*
+	 * A random edit of a program: some of its characters replaced with
+	 * one of the INSERTIONS or a piece of the program.
+	 */
+	private static class Edit {
+
+		final int offset;
+		final int removedLength;
+		final String insertedText;
+
+		Edit(Random rnd, String text) {
+			offset = rnd.nextInt(text.length() + 1);
+			removedLength = rnd.nextInt(3) == 0 ? 0
+					: Math.min(text.length() - offset, rnd.nextInt(rnd.nextBoolean() ? 4 : 40));
+
+			if (rnd.nextInt(4) == 0 && !text.isEmpty()) {
+				int start = rnd.nextInt(text.length());
+				insertedText = text.substring(start, Math.min(text.length(), start + rnd.nextInt(30)));
+			} else {
+				insertedText = rnd.nextInt(3) == 0 ? "" : INSERTIONS[rnd.nextInt(INSERTIONS.length)];
+			}
+		}
+
+		String applyTo(String text) {
+			return text.substring(0, offset) + insertedText + text.substring(offset + removedLength);
+		}
+
+		public String toString() {
+			return "replacing " + removedLength + " characters at " + offset + " with \""
+					+ insertedText.replace("\r", "\\r").replace("\n", "\\n") + "\"";
+		}
+	}
+
+	/*
+	 * A cursor that counts the calls that read or move it.
+	 */
+	private static class CountingCursor implements TokenCursor {
+
+		private final TokenCursor cursor;
+		long accesses;
+
+		CountingCursor(TokenCursor cursor) {
+			this.cursor = cursor;
+		}
+
+		public boolean hasToken(int ahead) {
+			accesses++;
+			return cursor.hasToken(ahead);
+		}
+
+		public TokenKind kind(int ahead) {
+			accesses++;
+			return cursor.kind(ahead);
+		}
+
+		public String text(int ahead) {
+			accesses++;
+			return cursor.text(ahead);
+		}
+
+		public int line(int ahead) {
+			accesses++;
+			return cursor.line(ahead);
+		}
+
+		public int column(int ahead) {
+			accesses++;
+			return cursor.column(ahead);
+		}
+
+		public Token token(int ahead) {
+			accesses++;
+			return cursor.token(ahead);
+		}
+
+		public void setLineAnchor(LineAnchor anchor) {
+			cursor.setLineAnchor(anchor);
+		}
+
+		public void advance() {
+			accesses++;
+			cursor.advance();
+		}
+
+		public int mark() {
+			accesses++;
+			return cursor.mark();
+		}
+
+		public void reset(int mark) {
+			accesses++;
+			cursor.reset(mark);
+		}
+	}
+}
@@ -1,6 +1,11 @@
 package splat;
 
 import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import splat.lexer.Source;
 
 public class  SplatTester {
 
@@ -142,18 +147,78 @@ public class  SplatTester {
 
 	private void runTest(File testFile) throws Exception {
 
-		totalTestsRun++;
-		System.out.print("Test Case " + totalTestsRun + ": " + testFile.getName() + "...");
+		// Get the .out file with the expected output
+		String testFilePath = testFile.getAbsolutePath();
+		String exFilename = testFilePath.substring(0, testFilePath.length() - 5) + "out";
+
+		// And the .flags file with the settings to run it with, if any
+		File flagsFile = new File(testFilePath.substring(0, testFilePath.length() - 5) + "flags");
+		Splat splat = flagsFile.exists() ? newSplatWithFlags(testFile, flagsFile) : new Splat(testFile);
+
+		runTest(testFile.getName(), splat, new File(exFilename));
+	}
+
+	/*
+	 * Creates the Splat for a test with the system properties in its .flags
+	 * file (lines of name=value, e.g. splat.optimize=true) set.  Splat reads
+	 * its settings when it is created, so they are put back right after,
+	 * and the other tests still run with the settings given on the command
+	 * line.
+	 */
+	private Splat newSplatWithFlags(File testFile, File flagsFile) throws IOException {
+
+		Properties flags = new Properties();
+		Reader reader = new FileReader(flagsFile);
+		flags.load(reader);
+		reader.close();
+
+		Map<String, String> previous = new HashMap<String, String>();
+		for (String name : flags.stringPropertyNames()) {
+			previous.put(name, System.getProperty(name));
+			System.setProperty(name, flags.getProperty(name));
+		}
+
+		try {
+			return new Splat(testFile);
+		} finally {
+			for (String name : previous.keySet()) {
+				if (previous.get(name) == null) {
+					System.clearProperty(name);
+				} else {
+					System.setProperty(name, previous.get(name));
+				}
+			}
+		}
+	}
 
-		Splat splat = new Splat(testFile);
+	/**
+	 * Runs a single test program held in a Source instead of a .splat file,
+	 * e.g. one generated in memory.  The testName decides the expected
+	 * result, just like the .splat filenames do.  expectedOutput is read
+	 * for goodexecution tests, and for the others if it is not null and
+	 * exists, in which case it also holds the expected error.
+	 */
+	public void runTest(String testName, Source source, File expectedOutput) throws Exception {
+
+		resCodeCount[getExpectedResultCode(testName)]++;
+		runTest(testName, new Splat(source), expectedOutput);
+	}
+
+	private void runTest(String testName, Splat splat, File expectedOutput) throws Exception {
+
+		totalTestsRun++;
+		System.out.print("Test Case " + totalTestsRun + ": " + testName + "...");
 
 		// The expected result code is determined by the .splat filename
-		int expectedResultCode = getExpectedResultCode(testFile.getName());
+		int expectedResultCode = getExpectedResultCode(testName);
 		int actualResultCode;
 
 		// Used to show exception messages in verbase mode
 		String execptMsg = "";
 
+		// The message and position of the SplatException thrown, if any
+		String splatError = null;
+
 		// Redirect the program output to a file, instead of the console window
 		PrintStream originalOut = new PrintStream(System.out);
 		File progOutput = new File(testDir, "temp-out.txt");
@@ -171,6 +236,7 @@ public class  SplatTester {
 
 			int ind = ex.getClass().getName().lastIndexOf('.');
 			execptMsg = " >>> " + ex.getClass().getName().substring(ind + 1) + ": " + ex.toString();
+			splatError = ex.toString();
 
 			// Get the error code from the exception thrown
 			actualResultCode = getActualResultCode(ex);
@@ -194,7 +260,10 @@ public class  SplatTester {
 		// it has been thrown in that exact phase
 		if (expectedResultCode < 4) {
 
-			if (expectedResultCode == actualResultCode) {
+			if (expectedResultCode == actualResultCode && expectedOutput != null && expectedOutput.exists()
+					&& !errorMatchesExpected(progOutput, splatError, expectedOutput)) {
+				System.out.println("failed (output or error does not match expected results)");
+			} else if (expectedResultCode == actualResultCode) {
 				System.out.println("passed (proper SplatException thrown during Phase "+ (expectedResultCode+1) + ")");
 				successCount[expectedResultCode]++;
 			} else {
@@ -223,11 +292,6 @@ public class  SplatTester {
 		// that the actual output matches what was expected in this case
 		if (expectedResultCode == 4 && actualResultCode == 4) {
 
-			// Get the .txt file with the expected output
-			String testFilePath = testFile.getAbsolutePath();
-			String exFilename = testFilePath.substring(0, testFilePath.length() - 5) + "out";
-			File expectedOutput = new File(exFilename);
-
 			// Check if the output was as expected
 			if (outputMatchesExpected(progOutput, expectedOutput)) {
 				System.out.println("passed (output matches expected results)");
@@ -288,6 +352,20 @@ public class  SplatTester {
 		return result;
 	}
 
+	/*
+	 * For a test that is expected to fail and has a .out file: whether the
+	 * program printed what the file holds, followed by a line with the
+	 * error and its position.
+	 */
+	private boolean errorMatchesExpected(File output, String error, File expected) throws IOException {
+
+		FileWriter writer = new FileWriter(output, true);
+		writer.write(error + "\n");
+		writer.close();
+
+		return outputMatchesExpected(output, expected);
+	}
+
 	private void printOutput(File file) throws IOException {
 
 		BufferedReader reader = new BufferedReader(new FileReader(file));
@@ -15,23 +15,27 @@ public class Executor {
   private ProgramAST progAST;
 
   private Map<String, FunctionDecl> funcMap;
-  private Map<String, Value> progVarMap;
+  private Value[] progFrame;
 
+  /**
+   * Creates an executor for the given program, which must have been
+   * through the Resolver.
+   */
   public Executor(ProgramAST progAST) {
     this.progAST = progAST;
   }
 
   public void runProgram() throws ExecutionException {
 
-    // This sets the maps that will be needed for executing function
-    // calls and storing the values of the program variables
+    // This sets the map that will be needed for executing function
+    // calls and the frame storing the values of the program variables
     setMaps();
 
     try {
 
       // Go through and execute each of the statements
       for (Statement stmt : progAST.getStmts()) {
-        stmt.execute(funcMap, progVarMap);
+        stmt.execute(funcMap, progFrame);
       }
 
       // We should never have to catch this exception here, since the
@@ -48,7 +52,10 @@ public class Executor {
 
   private void setMaps() throws ExecutionException {
     funcMap = new HashMap<String, FunctionDecl>();
-    progVarMap = new HashMap<String, Value>();
+    if (progAST.getFrameSize() < 0) {
+      throw new IllegalStateException("The program has not been resolved");
+    }
+    progFrame = new Value[progAST.getFrameSize()];
 
     for (Declaration decl : progAST.getDecls()) {
       String label = decl.getLabel();
@@ -59,22 +66,20 @@ public class Executor {
       } else if (decl instanceof VariableDecl) {
         VariableDecl varDecl = (VariableDecl) decl;
         Value defaultValue = createDefaultValue(varDecl.getType());
-        progVarMap.put(label, defaultValue);
+        progFrame[varDecl.getSlot()] = defaultValue;
       }
     }
   }
 
   private Value createDefaultValue(Type type) throws ExecutionException {
-    String typeName = type.getName();
-
-    if (typeName.equals("Integer")) {
+    if (type == Type.INTEGER) {
       return new IntegerValue(0);
-    } else if (typeName.equals("Boolean")) {
+    } else if (type == Type.BOOLEAN) {
       return new BooleanValue(false);
-    } else if (typeName.equals("String")) {
+    } else if (type == Type.STRING) {
       return new StringValue("");
     } else {
-      throw new ExecutionException("Unknown type: " + typeName, -1, -1);
+      throw new ExecutionException("Unknown type: " + type.getName(), -1, -1);
     }
   }
 
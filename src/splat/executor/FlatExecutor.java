@@ -0,0 +1,336 @@
+package splat.executor;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import splat.parser.elements.FlatAST;
+
+/**
+ * Runs a program from its FlatAST, with the same output and errors as the
+ * Executor running its ProgramAST.  Expressions are evaluated in one pass
+ * over their post-order range, on a stack of values shared by all calls.
+ */
+public class FlatExecutor {
+
+	private FlatAST ast;
+
+	// The FUNC_DECL node of each function, by the string index of its label
+	private int[] funcNodes;
+
+	private Value[] stack = new Value[64];
+	private int stackSize;
+
+	// Set by a RETURN statement, for the call it returns from
+	private Value returnVal;
+
+	public FlatExecutor(FlatAST ast) {
+		this.ast = ast;
+	}
+
+	public void runProgram() throws ExecutionException {
+
+		funcNodes = new int[ast.stringCount()];
+		Arrays.fill(funcNodes, -1);
+		Map<String, Value> progVarMap = new HashMap<String, Value>();
+
+		int body = -1;
+		for (int node = ast.firstChild(0); node >= 0; node = ast.nextSibling(node)) {
+			int kind = ast.kind(node);
+			if (kind == FlatAST.FUNC_DECL) {
+				funcNodes[ast.operand(node)] = node;
+			} else if (kind == FlatAST.VAR_DECL) {
+				progVarMap.put(ast.string(ast.operand(node)), createDefaultValue(ast.firstChild(node), -1));
+			} else {
+				body = node;
+			}
+		}
+
+		if (executeBlock(body, progVarMap)) {
+			System.out.println("Internal error!!! The main program body "
+					+ "cannot have a return statement -- this should have "
+					+ "been caught during semantic analysis!");
+
+			throw new ExecutionException("Internal error -- fix your "
+					+ "semantic analyzer!", -1, -1);
+		}
+	}
+
+	/*
+	 * Executes the statements of a BODY node, and returns true iff one of
+	 * them returned from the current call.
+	 */
+	private boolean executeBlock(int body, Map<String, Value> varAndParamMap)
+			throws ExecutionException {
+
+		for (int stmt = ast.firstChild(body); stmt >= 0; stmt = ast.nextSibling(stmt)) {
+			if (execute(stmt, varAndParamMap)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean execute(int stmt, Map<String, Value> varAndParamMap)
+			throws ExecutionException {
+
+		int child = ast.firstChild(stmt);
+
+		switch (ast.kind(stmt)) {
+
+		case FlatAST.ASSIGN:
+			varAndParamMap.put(ast.string(ast.operand(stmt)), evaluate(child, varAndParamMap));
+			return false;
+
+		case FlatAST.CALL_STMT:
+			int argCount = 0;
+			for (int arg = child; arg >= 0; arg = ast.nextSibling(arg)) {
+				push(evaluate(arg, varAndParamMap));
+				argCount++;
+			}
+			call(stmt, argCount);
+			return false;
+
+		case FlatAST.WHILE:
+			int loopBody = ast.nextSibling(child);
+			while (condition(stmt, child, varAndParamMap)) {
+				if (executeBlock(loopBody, varAndParamMap)) {
+					return true;
+				}
+			}
+			return false;
+
+		case FlatAST.IF:
+			int thenBody = ast.nextSibling(child);
+			if (condition(stmt, child, varAndParamMap)) {
+				return executeBlock(thenBody, varAndParamMap);
+			}
+			int elseBody = ast.nextSibling(thenBody);
+			return elseBody >= 0 && executeBlock(elseBody, varAndParamMap);
+
+		case FlatAST.PRINT:
+			System.out.print(evaluate(child, varAndParamMap).toString());
+			return false;
+
+		case FlatAST.PRINT_LINE:
+			System.out.println();
+			return false;
+
+		case FlatAST.RETURN:
+			returnVal = child >= 0 ? evaluate(child, varAndParamMap) : null;
+			return true;
+
+		default:
+			throw new ExecutionException("Unknown statement", ast.line(stmt), ast.column(stmt));
+		}
+	}
+
+	private boolean condition(int stmt, int expr, Map<String, Value> varAndParamMap)
+			throws ExecutionException {
+
+		Value conditionValue = evaluate(expr, varAndParamMap);
+		if (!(conditionValue instanceof BooleanValue)) {
+			throw new ExecutionException("Condition must be Boolean", ast.line(stmt), ast.column(stmt));
+		}
+		return ((BooleanValue) conditionValue).getValue();
+	}
+
+	/*
+	 * Evaluates the expression whose root is the given node, going through
+	 * its post-order range once: leaves push their value, and operators and
+	 * calls replace the values of their operands with their result.
+	 */
+	private Value evaluate(int root, Map<String, Value> varAndParamMap)
+			throws ExecutionException {
+
+		for (int node = ast.expressionStart(root); node <= root; node++) {
+			switch (ast.kind(node)) {
+
+			case FlatAST.INT_LITERAL:
+				push(new IntegerValue(ast.operand(node)));
+				break;
+
+			case FlatAST.BOOL_LITERAL:
+				push(new BooleanValue(ast.operand(node) != 0));
+				break;
+
+			case FlatAST.STRING_LITERAL:
+				push(new StringValue(ast.string(ast.operand(node))));
+				break;
+
+			case FlatAST.VARIABLE:
+				Value varValue = varAndParamMap.get(ast.string(ast.operand(node)));
+				if (varValue == null) {
+					throw new ExecutionException("Variable '" + ast.string(ast.operand(node))
+							+ "' is not declared", ast.line(node), ast.column(node));
+				}
+				push(varValue);
+				break;
+
+			case FlatAST.UNARY:
+				stack[stackSize - 1] = computeUnary(node, stack[stackSize - 1]);
+				break;
+
+			case FlatAST.BINARY:
+				Value rightValue = stack[--stackSize];
+				stack[stackSize - 1] = computeBinary(node, stack[stackSize - 1], rightValue);
+				break;
+
+			case FlatAST.CALL_EXPR:
+				push(call(node, ast.childCount(node)));
+				break;
+
+			default:
+				throw new ExecutionException("Unknown expression", ast.line(node), ast.column(node));
+			}
+		}
+
+		Value value = stack[--stackSize];
+		stack[stackSize] = null;
+		return value;
+	}
+
+	/*
+	 * Calls the function named by a CALL_STMT or CALL_EXPR node, with the
+	 * given number of arguments on top of the stack, which it pops.
+	 */
+	private Value call(int node, int argCount) throws ExecutionException {
+
+		int funcNode = funcNodes[ast.operand(node)];
+		if (funcNode < 0) {
+			throw new ExecutionException("Function '" + ast.string(ast.operand(node))
+					+ "' is not declared", ast.line(node), ast.column(node));
+		}
+
+		int params = ast.nextSibling(ast.firstChild(funcNode));
+		int locals = ast.nextSibling(params);
+		int body = ast.nextSibling(locals);
+
+		Map<String, Value> funcScope = new HashMap<String, Value>();
+
+		int arg = stackSize - argCount;
+		for (int param = ast.firstChild(params); param >= 0; param = ast.nextSibling(param)) {
+			funcScope.put(ast.string(ast.operand(param)), stack[arg++]);
+		}
+		Arrays.fill(stack, stackSize - argCount, stackSize, null);
+		stackSize -= argCount;
+
+		for (int local = ast.firstChild(locals); local >= 0; local = ast.nextSibling(local)) {
+			funcScope.put(ast.string(ast.operand(local)), createDefaultValue(ast.firstChild(local), node));
+		}
+
+		if (executeBlock(body, funcScope)) {
+			Value value = returnVal;
+			returnVal = null;
+			return value;
+		}
+		return null;
+	}
+
+	/*
+	 * The initial value of a variable of the given TYPE node.  Errors are
+	 * reported at the call node, or at no position for program variables.
+	 */
+	private Value createDefaultValue(int typeNode, int node) throws ExecutionException {
+		String typeName = ast.string(ast.operand(typeNode));
+
+		if (typeName.equals("Integer")) {
+			return new IntegerValue(0);
+		} else if (typeName.equals("Boolean")) {
+			return new BooleanValue(false);
+		} else if (typeName.equals("String")) {
+			return new StringValue("");
+		} else if (node < 0) {
+			throw new ExecutionException("Unknown type: " + typeName, -1, -1);
+		} else {
+			throw new ExecutionException("Unknown type: " + typeName, ast.line(node), ast.column(node));
+		}
+	}
+
+	private Value computeUnary(int node, Value exprValue) throws ExecutionException {
+
+		if (ast.operand(node) == FlatAST.NOT) {
+			if (!(exprValue instanceof BooleanValue)) {
+				throw error("Unary operator 'not' requires Boolean operand", node);
+			}
+			return new BooleanValue(!((BooleanValue) exprValue).getValue());
+		}
+
+		if (!(exprValue instanceof IntegerValue)) {
+			throw error("Unary operator '-' requires Integer operand", node);
+		}
+		return new IntegerValue(-((IntegerValue) exprValue).getValue());
+	}
+
+	private Value computeBinary(int node, Value leftValue, Value rightValue)
+			throws ExecutionException {
+
+		int op = ast.operand(node);
+
+		if (op <= FlatAST.LESS_EQUAL) {
+			if (!(leftValue instanceof IntegerValue) || !(rightValue instanceof IntegerValue)) {
+				throw error(op <= FlatAST.MODULO ? "Arithmetic operator requires Integer operands"
+						: "Comparison operator requires Integer operands", node);
+			}
+
+			int leftInt = ((IntegerValue) leftValue).getValue();
+			int rightInt = ((IntegerValue) rightValue).getValue();
+
+			switch (op) {
+			case FlatAST.ADD:
+				return new IntegerValue(leftInt + rightInt);
+			case FlatAST.SUBTRACT:
+				return new IntegerValue(leftInt - rightInt);
+			case FlatAST.MULTIPLY:
+				return new IntegerValue(leftInt * rightInt);
+			case FlatAST.DIVIDE:
+				if (rightInt == 0) {
+					throw error("Division by zero", node);
+				}
+				return new IntegerValue(leftInt / rightInt);
+			case FlatAST.MODULO:
+				if (rightInt == 0) {
+					throw error("Modulo by zero", node);
+				}
+				return new IntegerValue(leftInt % rightInt);
+			case FlatAST.GREATER:
+				return new BooleanValue(leftInt > rightInt);
+			case FlatAST.LESS:
+				return new BooleanValue(leftInt < rightInt);
+			case FlatAST.GREATER_EQUAL:
+				return new BooleanValue(leftInt >= rightInt);
+			default:
+				return new BooleanValue(leftInt <= rightInt);
+			}
+		}
+
+		if (op == FlatAST.EQUAL) {
+			if (leftValue instanceof IntegerValue && rightValue instanceof IntegerValue) {
+				return new BooleanValue(((IntegerValue) leftValue).getValue()
+						== ((IntegerValue) rightValue).getValue());
+			} else if (leftValue instanceof BooleanValue && rightValue instanceof BooleanValue) {
+				return new BooleanValue(((BooleanValue) leftValue).getValue()
+						== ((BooleanValue) rightValue).getValue());
+			}
+			throw error("Equality operator requires operands of the same type", node);
+		}
+
+		if (!(leftValue instanceof BooleanValue) || !(rightValue instanceof BooleanValue)) {
+			throw error("Logical operator requires Boolean operands", node);
+		}
+		boolean leftBool = ((BooleanValue) leftValue).getValue();
+		boolean rightBool = ((BooleanValue) rightValue).getValue();
+		return new BooleanValue(op == FlatAST.AND ? leftBool && rightBool : leftBool || rightBool);
+	}
+
+	private ExecutionException error(String msg, int node) {
+		return new ExecutionException(msg, ast.line(node), ast.column(node));
+	}
+
+	private void push(Value value) {
+		if (stackSize == stack.length) {
+			stack = Arrays.copyOf(stack, stackSize * 2);
+		}
+		stack[stackSize++] = value;
+	}
+}
@@ -0,0 +1,38 @@
+package splat.lexer;
+
+/**
+ * A Source held in memory as an array of characters.
+ */
+public final class CharArraySource implements Source {
+
+	private final char[] chars;
+	private final int length;
+
+	public CharArraySource(char[] chars, int length) {
+		if (length < 0 || length > chars.length) {
+			throw new IllegalArgumentException("Invalid source length: " + length);
+		}
+		this.chars = chars;
+		this.length = length;
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public char charAt(int index) {
+		return chars[index];
+	}
+
+	public String text(int start, int length) {
+		return new String(chars, start, length);
+	}
+
+	public void getChars(int start, int end, char[] dst, int dstBegin) {
+		System.arraycopy(chars, start, dst, dstBegin, end - start);
+	}
+
+	public String toString() {
+		return new String(chars, 0, length);
+	}
+}
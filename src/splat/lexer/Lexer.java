@@ -1,165 +1,439 @@
 package splat.lexer;
 
 import java.io.File;
-import java.util.List;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.BufferedReader;
 import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public class Lexer {
 
+  // Character classes used by the scanner.  Every ASCII character is
+  // classified once in CHAR_CLASS; anything else goes through
+  // classifyNonAscii(), which applies the same rules using Character.
+  private static final byte OTHER = 0;
+  private static final byte SPACE = 1;
+  private static final byte NEWLINE = 2;
+  private static final byte IDENT = 3;
+  private static final byte QUOTE = 4;
+  private static final byte OPERATOR = 5;
+
+  private static final byte[] CHAR_CLASS = new byte[128];
+
+  // Operator automaton.  From the start state an operator character c
+  // moves to state c, which accepts the single character operator
+  // SINGLE_OPS[c].  If c is followed by '=' and EQ_OPS[c] is set, the
+  // automaton moves on to the two character operator EQ_OPS[c].  A third
+  // '=' after one of the REJECT_THIRD_EQ operators is an invalid sequence,
+  // except for "<===", which is read as "<=" followed by "==".
+  private static final TokenKind[] SINGLE_OPS = new TokenKind[128];
+  private static final TokenKind[] EQ_OPS = new TokenKind[128];
+  private static final boolean[] REJECT_THIRD_EQ = new boolean[128];
+
+  static {
+    for (char c = 0; c < 128; c++) {
+      if (c == '\n' || c == '\r') {
+        CHAR_CLASS[c] = NEWLINE;
+      } else if (Character.isWhitespace(c)) {
+        CHAR_CLASS[c] = SPACE;
+      } else if (c == '"') {
+        CHAR_CLASS[c] = QUOTE;
+      } else if ("+-*/%=<>();,:".indexOf(c) >= 0) {
+        CHAR_CLASS[c] = OPERATOR;
+        SINGLE_OPS[c] = TokenKind.classify(String.valueOf(c));
+      } else if (Character.isLetterOrDigit(c) || c == '_') {
+        CHAR_CLASS[c] = IDENT;
+      } else {
+        CHAR_CLASS[c] = OTHER;
+      }
+    }
+
+    EQ_OPS['='] = TokenKind.EQUAL;
+    EQ_OPS['<'] = TokenKind.LESS_EQUAL;
+    EQ_OPS['>'] = TokenKind.GREATER_EQUAL;
+    EQ_OPS[':'] = TokenKind.ASSIGN;
+
+    REJECT_THIRD_EQ['='] = true;
+    REJECT_THIRD_EQ['<'] = true;
+    REJECT_THIRD_EQ['>'] = true;
+  }
+
+  // Smallest chunk tokenizeParallel() splits a source into by default;
+  // anything smaller is not worth handing to another thread
+  private static final int PARALLEL_CHUNK_SIZE = 1 << 20;
+
   private File progFile;
+  private Source source;
 
   public Lexer(File progFile) {
     this.progFile = progFile;
   }
 
-  public List<Token> tokenize() throws LexException {
-    List<Token> tokens = new ArrayList<>();
-
-    try (BufferedReader reader = new BufferedReader(new FileReader(this.progFile))) {
-      int lineNumber = 1;
-      int columnNumber = 1;
-
-      String line;
-      while ((line = reader.readLine()) != null) {
-        columnNumber = 1;
-
-        for (int i = 0; i < line.length(); i++) {
-          char currentChar = line.charAt(i);
-          if (Character.isWhitespace(currentChar)) {
-            columnNumber++;
-            continue;
-          } else {
-            StringBuilder currentString = new StringBuilder();
-            int startColumn = columnNumber;
-
-            if (currentChar == '"') {
-              currentString.append(currentChar);
-              i++;
-              columnNumber++;
-
-              boolean foundClosingQuote = false;
-              while (i < line.length()) {
-                char nextChar = line.charAt(i);
-
-                if (nextChar == '"') {
-                  currentString.append(nextChar);
-                  foundClosingQuote = true;
-                  i++;
-                  columnNumber++;
-                  break;
-                }
-
-                currentString.append(nextChar);
-                i++;
-                columnNumber++;
-              }
-
-              if (!foundClosingQuote) {
-                throw new LexException("Unfinished string literal", lineNumber, startColumn);
-              }
+  public Lexer(Source source) {
+    this.source = source;
+  }
 
-              String tokenValue = currentString.toString();
-              tokens.add(new Token(tokenValue, lineNumber, startColumn));
-              i--;
-            } else {
-              if (isOperatorOrDelimiter(currentChar)) {
-                if (i + 1 < line.length()) {
-                  char nextCh = line.charAt(i + 1);
-                  if (isMultiCharOperator(currentChar, nextCh)) {
-                    if (i + 2 < line.length()) {
-                      char thirdCh = line.charAt(i + 2);
-                      if (isInvalidThreeCharSequence(currentChar, nextCh, thirdCh)) {
-                        if (currentChar == '<' && nextCh == '=' && thirdCh == '=') {
-                          if (i + 3 < line.length() && line.charAt(i + 3) == '=') {
-                            tokens.add(new Token(String.valueOf(currentChar) + nextCh, lineNumber, columnNumber));
-                            i += 1;
-                            columnNumber += 2;
-                            continue;
-                          } else {
-                            throw new LexException("Invalid operator sequence: " + currentChar + nextCh + thirdCh,
-                                lineNumber,
-                                columnNumber);
-                          }
-                        } else {
-                          throw new LexException("Invalid operator sequence: " + currentChar + nextCh + thirdCh,
-                              lineNumber,
-                              columnNumber);
-                        }
-                      }
-                    }
-                    tokens.add(new Token(String.valueOf(currentChar) + nextCh, lineNumber, columnNumber));
-                    i += 1;
-                    columnNumber += 2;
-                    continue;
-                  }
-                }
-                tokens.add(new Token(String.valueOf(currentChar), lineNumber, columnNumber));
-                columnNumber++;
-                continue;
-              }
+  public List<Token> tokenize() throws LexException {
+    return tokenizeStream().toList();
+  }
 
-              while (i < line.length() && !Character.isWhitespace(line.charAt(i)) &&
-                  line.charAt(i) != '"' && !isOperatorOrDelimiter(line.charAt(i))) {
-                char ch = line.charAt(i);
+  /**
+   * Tokenizes the program into a compact TokenStream, with the kind of
+   * every token already assigned.
+   */
+  public TokenStream tokenizeStream() throws LexException {
+    Source src = openSource();
+    TokenStream tokens = new TokenStream(src, src.length() / 6);
+    scan(src, 0, src.length(), 1, tokens);
+    return tokens;
+  }
 
-                if (!isValidCharacter(ch)) {
-                  throw new LexException("Invalid character: " + ch, lineNumber, columnNumber);
-                }
+  /**
+   * Tokenizes the program on the common ForkJoinPool, split into chunks
+   * of at least PARALLEL_CHUNK_SIZE characters.
+   */
+  public TokenStream tokenizeParallel() throws LexException {
+    return tokenizeParallel(ForkJoinPool.commonPool(), PARALLEL_CHUNK_SIZE);
+  }
 
-                currentString.append(ch);
-                i++;
-                columnNumber++;
-              }
+  /**
+   * Tokenizes the program on the given pool.  String literals cannot span
+   * lines, so the source is split at line boundaries into chunks of at
+   * least chunkSize characters, and each chunk is scanned on its own with
+   * lines counted from 1.  The chunks are then concatenated, shifting
+   * their line numbers by the number of lines in the chunks before them.
+   *
+   * The tokens, and the LexException if the source is invalid, are the
+   * same as from tokenizeStream(): the error reported is the one from the
+   * earliest failing chunk, which is the first error in the source.
+   */
+  public TokenStream tokenizeParallel(ForkJoinPool pool, int chunkSize) throws LexException {
+    Source src = openSource();
+    int length = src.length();
+    int chunkCount = Math.min(pool.getParallelism() * 4, length / Math.max(1, chunkSize));
 
-              String tokenValue = currentString.toString();
-              if (!tokenValue.isEmpty()) {
-                tokens.add(new Token(tokenValue, lineNumber, startColumn));
-              }
+    if (chunkCount <= 1) {
+      return tokenizeStream();
+    }
 
-              i--;
-            }
+    int[] bounds = new int[chunkCount + 1];
+    for (int k = 1; k < chunkCount; k++) {
+      int target = (int) ((long) length * k / chunkCount);
+      bounds[k] = nextLineStart(src, Math.max(bounds[k - 1], target));
+    }
+    bounds[chunkCount] = length;
 
-          }
+    List<ForkJoinTask<Chunk>> tasks = new ArrayList<ForkJoinTask<Chunk>>(chunkCount);
+    for (int k = 0; k < chunkCount; k++) {
+      int from = bounds[k];
+      int to = bounds[k + 1];
+      tasks.add(pool.submit(() -> scanChunk(src, from, to)));
+    }
 
+    TokenStream[] parts = new TokenStream[chunkCount];
+    int[] lineOffsets = new int[chunkCount];
+    int lineOffset = 0;
+    for (int k = 0; k < chunkCount; k++) {
+      Chunk chunk = tasks.get(k).join();
+      if (chunk.failure != null) {
+        for (int j = k + 1; j < chunkCount; j++) {
+          tasks.get(j).cancel(false);
         }
-        lineNumber++;
+        LexException ex = chunk.failure;
+        throw new LexException(ex.getMessage(), ex.getLine() + lineOffset, ex.getColumn());
       }
+      parts[k] = chunk.tokens;
+      lineOffsets[k] = lineOffset;
+      lineOffset += chunk.lineCount;
+    }
+
+    return TokenStream.concat(src, parts, lineOffsets);
+  }
 
-    } catch (FileNotFoundException e) {
-      throw new LexException("File not found: " + e.getMessage(), 1, 1);
-    } catch (IOException e) {
-      throw new LexException("Error reading file: " + e.getMessage(), 1, 1);
+  /**
+   * The result of scanning one chunk: its tokens and the number of line
+   * breaks in it, or the LexException it failed with.
+   */
+  private static class Chunk {
+    TokenStream tokens;
+    int lineCount;
+    LexException failure;
+  }
+
+  private Chunk scanChunk(Source src, int from, int to) {
+    Chunk chunk = new Chunk();
+    chunk.tokens = new TokenStream(src, (to - from) / 6);
+    try {
+      chunk.lineCount = scan(src, from, to, 1, chunk.tokens) - 1;
+    } catch (LexException ex) {
+      chunk.failure = ex;
     }
+    return chunk;
+  }
+
+  /**
+   * Re-tokenizes a program after an edit, given the tokens of the program
+   * before the edit, which must have come from a Lexer.  The edit replaces
+   * the removedLength characters at offset with insertedText.
+   *
+   * Tokens never span lines, so the tokens before the line holding the
+   * edit are kept as they are, and scanning restarts at the start of that
+   * line.  Once a whole line has been scanned past the end of the edit,
+   * the lexer is in the same state as it was at the matching point of the
+   * old program, so the first token scanned on the next non-blank line
+   * lines up with an old token.  From there the old tokens are reused,
+   * with their offsets and line numbers shifted.  Only the lines touched
+   * by the edit are scanned; the rest is bulk-copied.
+   *
+   * The result, and any LexException, are the same as from tokenizing
+   * the edited program from scratch.
+   */
+  public static TokenStream relex(TokenStream previous, int offset, int removedLength,
+      String insertedText) throws LexException {
+    Source old = previous.getSource();
+    int oldLength = old.length();
+    Objects.checkFromIndexSize(offset, removedLength, oldLength);
+
+    int insertedLength = insertedText.length();
+    int shift = insertedLength - removedLength;
+    char[] chars = new char[oldLength + shift];
+    old.getChars(0, offset, chars, 0);
+    insertedText.getChars(0, insertedLength, chars, offset);
+    old.getChars(offset + removedLength, oldLength, chars, offset + insertedLength);
+    Source src = Source.of(chars);
+
+    // Back up to the start of the line holding the edit.  A '\r' just
+    // before the edit may now pair with an inserted '\n', so its line is
+    // rescanned too.
+    int lineStart = offset;
+    if (lineStart > 0 && src.charAt(lineStart - 1) == '\r') {
+      lineStart--;
+    }
+    while (lineStart > 0 && src.charAt(lineStart - 1) != '\n' && src.charAt(lineStart - 1) != '\r') {
+      lineStart--;
+    }
+
+    int kept = previous.indexAtOrAfter(lineStart);
+    int lineNumber;
+    if (kept > 0) {
+      int lastEnd = previous.start(kept - 1) + previous.length(kept - 1);
+      lineNumber = previous.line(kept - 1) + countLineBreaks(src, lastEnd, lineStart);
+    } else {
+      lineNumber = 1 + countLineBreaks(src, 0, lineStart);
+    }
+
+    TokenStream tokens = new TokenStream(src, previous.size() + insertedLength / 6);
+    tokens.append(previous, 0, kept, 0, 0);
+
+    int editEnd = offset + insertedLength;
+    int i = lineStart;
+    while (i < src.length()) {
+      int lineEnd = nextLineStart(src, i);
+      int mark = tokens.size();
+      int nextLineNumber = scan(src, i, lineEnd, lineNumber, tokens);
+
+      if (i > editEnd && tokens.size() > mark) {
+        int reused = previous.indexAtOrAfter(tokens.start(mark) - shift);
+        int lineShift = tokens.line(mark) - previous.line(reused);
+        tokens.truncate(mark);
+        tokens.append(previous, reused, previous.size(), shift, lineShift);
+        return tokens;
+      }
 
+      i = lineEnd;
+      lineNumber = nextLineNumber;
+    }
     return tokens;
   }
 
-  private boolean isValidCharacter(char ch) {
-    return Character.isLetterOrDigit(ch) || ch == '_';
+  private static int countLineBreaks(Source buf, int from, int to) {
+    int count = 0;
+    for (int i = from; i < to; i++) {
+      char c = buf.charAt(i);
+      if (c == '\n') {
+        count++;
+      } else if (c == '\r') {
+        count++;
+        if (i + 1 < to && buf.charAt(i + 1) == '\n') {
+          i++;
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Returns the index just past the first line break at or after from, or
+   * the end of the source if there is none.  A "\r\n" is never split.
+   */
+  private static int nextLineStart(Source buf, int from) {
+    int length = buf.length();
+    int i = from;
+    while (i < length && buf.charAt(i) != '\n' && buf.charAt(i) != '\r') {
+      i++;
+    }
+    if (i < length) {
+      if (buf.charAt(i) == '\r' && i + 1 < length && buf.charAt(i + 1) == '\n') {
+        i++;
+      }
+      i++;
+    }
+    return i;
   }
 
-  private boolean isMultiCharOperator(char first, char second) {
-    return (first == '=' && second == '=') ||
-        (first == '<' && second == '=') ||
-        (first == '>' && second == '=') ||
-        (first == ':' && second == '=');
+  /**
+   * Starts tokenizing on a separate thread, which feeds the tokens into a
+   * bounded ring buffer of the given capacity as they are found.  The
+   * parser can consume them from the buffer while the lexer is still
+   * running, and must call awaitCompletion() on it once done.
+   */
+  public TokenRingBuffer tokenizeConcurrently(int capacity) throws LexException {
+    Source src = openSource();
+    TokenRingBuffer buffer = new TokenRingBuffer(src, capacity);
+
+    Thread thread = new Thread(() -> {
+      Throwable failure = null;
+      try {
+        scan(src, 0, src.length(), 1, buffer);
+      } catch (LexException | RuntimeException | Error ex) {
+        failure = ex;
+      } finally {
+        buffer.finish(failure);
+      }
+    }, "splat-lexer");
+
+    thread.setDaemon(true);
+    buffer.setProducer(thread);
+    thread.start();
+    return buffer;
   }
 
-  private boolean isInvalidThreeCharSequence(char first, char second, char third) {
-    return (first == '<' && second == '=' && third == '=') ||
-        (first == '>' && second == '=' && third == '=') ||
-        (first == '=' && second == '=' && third == '=');
+  private Source openSource() throws LexException {
+    if (this.source == null) {
+      try {
+        this.source = Source.fromFile(this.progFile);
+      } catch (FileNotFoundException e) {
+        throw new LexException("File not found: " + e.getMessage(), 1, 1);
+      } catch (IOException e) {
+        throw new LexException("Error reading file: " + e.getMessage(), 1, 1);
+      }
+    }
+    return this.source;
   }
 
-  private boolean isOperatorOrDelimiter(char ch) {
-    return ch == '+' || ch == '-' || ch == '*' || ch == '/' || ch == '%' ||
-        ch == '=' || ch == '<' || ch == '>' ||
-        ch == '(' || ch == ')' ||
-        ch == ';' || ch == ',' || ch == ':';
+  /**
+   * Scans the characters from index from up to to in a single pass, and
+   * returns the line number reached at the end.  Lines end at '\n', '\r'
+   * or "\r\n", and columns count characters from 1 at the start of each
+   * line, exactly as the old line-by-line reader did.  The range must
+   * start at the beginning of a line, numbered firstLine, and end at the
+   * end of a line or of the source.
+   */
+  private static int scan(Source buf, int from, int to, int firstLine, TokenSink tokens)
+      throws LexException {
+    int length = to;
+
+    int lineNumber = firstLine;
+    int lineStart = from;
+    int i = from;
+
+    while (i < length) {
+      char c = buf.charAt(i);
+      byte cls = c < 128 ? CHAR_CLASS[c] : classifyNonAscii(c);
+
+      switch (cls) {
+        case SPACE:
+          i++;
+          break;
+
+        case NEWLINE:
+          i++;
+          if (c == '\r' && i < length && buf.charAt(i) == '\n') {
+            i++;
+          }
+          lineNumber++;
+          lineStart = i;
+          break;
+
+        case IDENT: {
+          int start = i;
+          i++;
+          while (i < length) {
+            char ch = buf.charAt(i);
+            if (ch < 128 ? CHAR_CLASS[ch] != IDENT : classifyNonAscii(ch) != IDENT) {
+              break;
+            }
+            i++;
+          }
+
+          // A run of identifier characters may only be ended by whitespace,
+          // a quote, an operator or the end of the file
+          if (i < length) {
+            char ch = buf.charAt(i);
+            if ((ch < 128 ? CHAR_CLASS[ch] : classifyNonAscii(ch)) == OTHER) {
+              throw new LexException("Invalid character: " + ch, lineNumber, i - lineStart + 1);
+            }
+          }
+
+          tokens.add(TokenKind.classifyWord(buf, start, i - start), start, i - start,
+              lineNumber, start - lineStart + 1);
+          break;
+        }
+
+        case QUOTE: {
+          int start = i;
+          i++;
+          while (i < length && buf.charAt(i) != '"' && buf.charAt(i) != '\n' && buf.charAt(i) != '\r') {
+            i++;
+          }
+
+          if (i >= length || buf.charAt(i) != '"') {
+            throw new LexException("Unfinished string literal", lineNumber, start - lineStart + 1);
+          }
+
+          i++;
+          tokens.add(TokenKind.STRING_LITERAL, start, i - start, lineNumber, start - lineStart + 1);
+          break;
+        }
+
+        case OPERATOR: {
+          int column = i - lineStart + 1;
+          TokenKind op = SINGLE_OPS[c];
+          int opLength = 1;
+
+          if (EQ_OPS[c] != null && i + 1 < length && buf.charAt(i + 1) == '=') {
+            op = EQ_OPS[c];
+            opLength = 2;
+
+            if (REJECT_THIRD_EQ[c] && i + 2 < length && buf.charAt(i + 2) == '=') {
+              if (c != '<' || i + 3 >= length || buf.charAt(i + 3) != '=') {
+                throw new LexException("Invalid operator sequence: " + c + "==", lineNumber, column);
+              }
+            }
+          }
+
+          tokens.add(op, i, opLength, lineNumber, column);
+          i += opLength;
+          break;
+        }
+
+        default:
+          throw new LexException("Invalid character: " + c, lineNumber, i - lineStart + 1);
+      }
+    }
+    return lineNumber;
+  }
+
+  private static byte classifyNonAscii(char ch) {
+    if (Character.isWhitespace(ch)) {
+      return SPACE;
+    } else if (Character.isLetterOrDigit(ch)) {
+      return IDENT;
+    }
+    return OTHER;
   }
 
 }
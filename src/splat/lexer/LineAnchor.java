@@ -0,0 +1,22 @@
+package splat.lexer;
+
+/**
+ * A line offset shared by the tokens of one top-level declaration, and by
+ * the AST nodes built from them.  Their line numbers are those of the
+ * source they were parsed from, plus the shift of their anchor.  When an
+ * edit adds or removes lines above a declaration that is otherwise left
+ * alone, its anchor is shifted instead of reparsing it or renumbering
+ * every node.
+ */
+public final class LineAnchor {
+
+	private volatile int shift;
+
+	public int getShift() {
+		return shift;
+	}
+
+	public void shift(int lines) {
+		shift += lines;
+	}
+}
@@ -0,0 +1,96 @@
+package splat.lexer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A Source backed by a read-only memory-mapped file.  Pure ASCII files,
+ * which is almost every Splat program, are scanned directly from the
+ * mapping without copying or decoding.  Anything else is decoded once
+ * into a CharBuffer.
+ */
+public final class MappedFileSource implements Source {
+
+	// The high bit of each byte of a long, to test eight bytes at once
+	private static final long HIGH = 0x8080808080808080L;
+
+	private final ByteBuffer bytes;
+
+	private MappedFileSource(ByteBuffer bytes) {
+		this.bytes = bytes;
+	}
+
+	/**
+	 * Maps the given file.  Throws a FileNotFoundException, with the same
+	 * message a FileReader would give, if the file cannot be opened.
+	 */
+	public static Source open(File file, Charset charset) throws IOException {
+
+		MappedByteBuffer mapped;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+				FileChannel channel = raf.getChannel()) {
+
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("File too large: " + file.getPath());
+			}
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		}
+
+		if (isAscii(mapped) && isAsciiCompatible(charset)) {
+			return new MappedFileSource(mapped);
+		}
+
+		CharBuffer decoded = charset.decode(mapped);
+		if (decoded.hasArray() && decoded.arrayOffset() == 0 && decoded.position() == 0) {
+			return new CharArraySource(decoded.array(), decoded.limit());
+		}
+
+		char[] chars = new char[decoded.remaining()];
+		decoded.get(chars);
+		return new CharArraySource(chars, chars.length);
+	}
+
+	private static boolean isAscii(ByteBuffer buf) {
+		int limit = buf.limit();
+		int i = 0;
+		for (; i + 8 <= limit; i += 8) {
+			if ((buf.getLong(i) & HIGH) != 0) {
+				return false;
+			}
+		}
+		for (; i < limit; i++) {
+			if (buf.get(i) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isAsciiCompatible(Charset charset) {
+		return charset.equals(StandardCharsets.UTF_8)
+				|| charset.equals(StandardCharsets.US_ASCII)
+				|| charset.equals(StandardCharsets.ISO_8859_1);
+	}
+
+	public int length() {
+		return bytes.limit();
+	}
+
+	public char charAt(int index) {
+		return (char) bytes.get(index);
+	}
+
+	public String text(int start, int length) {
+		byte[] dst = new byte[length];
+		bytes.get(start, dst, 0, length);
+		return new String(dst, StandardCharsets.ISO_8859_1);
+	}
+}
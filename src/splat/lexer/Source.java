@@ -0,0 +1,82 @@
+package splat.lexer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * The text of a Splat program.  The lexer reads a Source one character
+ * at a time, and tokens refer back to it by offset and length instead of
+ * holding copies of their text.
+ */
+public interface Source {
+
+	/**
+	 * Returns the number of characters in the program.
+	 */
+	int length();
+
+	char charAt(int index);
+
+	/**
+	 * Materializes the given slice of the program as a String.
+	 */
+	String text(int start, int length);
+
+	/**
+	 * Copies the characters from start up to end into dst, starting at
+	 * dstBegin.
+	 */
+	default void getChars(int start, int end, char[] dst, int dstBegin) {
+		for (int i = start; i < end; i++) {
+			dst[dstBegin++] = charAt(i);
+		}
+	}
+
+	static Source of(String text) {
+		return new CharArraySource(text.toCharArray(), text.length());
+	}
+
+	/**
+	 * Wraps the given characters without copying them.  The array must not
+	 * be modified afterwards.
+	 */
+	static Source of(char[] chars) {
+		return new CharArraySource(chars, chars.length);
+	}
+
+	static Source read(Reader reader) throws IOException {
+		char[] buf = new char[8192];
+		int length = 0;
+
+		while (true) {
+			if (length == buf.length) {
+				buf = Arrays.copyOf(buf, buf.length * 2);
+			}
+			int read = reader.read(buf, length, buf.length - length);
+			if (read < 0) {
+				break;
+			}
+			length += read;
+		}
+
+		return new CharArraySource(buf, length);
+	}
+
+	static Source read(InputStream in, Charset charset) throws IOException {
+		return read(new InputStreamReader(in, charset));
+	}
+
+	/**
+	 * Opens the given file, decoded with the default charset like a
+	 * FileReader would.  The file is memory-mapped read-only; see
+	 * MappedFileSource.
+	 */
+	static Source fromFile(File file) throws IOException {
+		return MappedFileSource.open(file, Charset.defaultCharset());
+	}
+}
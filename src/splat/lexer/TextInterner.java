@@ -0,0 +1,92 @@
+package splat.lexer;
+
+/**
+ * Open-addressing table of the identifier and literal strings taken from
+ * a source so far, so that every occurrence of the same text shares one
+ * String.  Lookups hash the source characters directly, so repeated text
+ * is found without allocating.
+ *
+ * Safe to use from several threads, e.g. when declarations are parsed in
+ * parallel.  Lookups of text already in the table take no lock: slots
+ * only ever go from null to an (immutable) String, and a resized table
+ * is only published once it is complete.  Adding text is synchronized,
+ * and looks the text up again under the lock.
+ */
+class TextInterner {
+
+	private volatile String[] table = new String[64];
+	private int count;
+
+	String intern(Source source, int start, int length) {
+		int hash = 0;
+		for (int i = start; i < start + length; i++) {
+			hash = 31 * hash + source.charAt(i);
+		}
+
+		String text = find(table, hash, source, start, length);
+		if (text != null) {
+			return text;
+		}
+		return add(hash, source, start, length);
+	}
+
+	private static String find(String[] table, int hash, Source source, int start, int length) {
+		int mask = table.length - 1;
+		int slot = (hash ^ (hash >>> 16)) & mask;
+		String candidate;
+		while ((candidate = table[slot]) != null) {
+			if (candidate.length() == length && matches(candidate, source, start)) {
+				return candidate;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return null;
+	}
+
+	private synchronized String add(int hash, Source source, int start, int length) {
+		String[] table = this.table;
+		int mask = table.length - 1;
+		int slot = (hash ^ (hash >>> 16)) & mask;
+		String candidate;
+		while ((candidate = table[slot]) != null) {
+			if (candidate.length() == length && matches(candidate, source, start)) {
+				return candidate;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		String text = source.text(start, length);
+		table[slot] = text;
+		count++;
+		if (count * 2 > table.length) {
+			rehash();
+		}
+		return text;
+	}
+
+	private static boolean matches(String candidate, Source source, int start) {
+		for (int i = 0; i < candidate.length(); i++) {
+			if (candidate.charAt(i) != source.charAt(start + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void rehash() {
+		String[] old = table;
+		String[] resized = new String[old.length * 2];
+		int mask = resized.length - 1;
+		for (String text : old) {
+			if (text != null) {
+				int hash = text.hashCode();
+				int slot = (hash ^ (hash >>> 16)) & mask;
+				while (resized[slot] != null) {
+					slot = (slot + 1) & mask;
+				}
+				resized[slot] = text;
+			}
+		}
+		table = resized;
+	}
+}
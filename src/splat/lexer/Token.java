@@ -8,18 +8,56 @@ public class Token {
     private int line;
     private int column;
 
+    // For tokens that refer to a slice of the program source, the value
+    // is only materialized when it is first asked for
+    private Source source;
+    private int start;
+    private int length;
+
+    // Shared shift of the line number, if the token belongs to a
+    // declaration that can be moved by later edits
+    private LineAnchor anchor;
+
     public Token(String value, int line, int column) {
         this.value = value;
         this.line = line;
         this.column = column;
     }
 
+    public Token(Source source, int start, int length, int line, int column) {
+        this.source = source;
+        this.start = start;
+        this.length = length;
+        this.line = line;
+        this.column = column;
+    }
+
+    /**
+     * Creates a token whose line number moves with the given anchor.
+     */
+    public Token(Source source, int start, int length, int line, int column, LineAnchor anchor) {
+        this(source, start, length, line, column);
+        this.anchor = anchor;
+    }
+
+    public Token(String value, int line, int column, LineAnchor anchor) {
+        this(value, line, column);
+        this.anchor = anchor;
+    }
+
     public String getValue() {
+        if (value == null) {
+            value = source.text(start, length);
+        }
         return value;
     }
 
     public int getLine() {
-        return line;
+        return anchor == null ? line : line + anchor.getShift();
+    }
+
+    public LineAnchor getLineAnchor() {
+        return anchor;
     }
 
     public int getColumn() {
@@ -27,6 +65,6 @@ public class Token {
     }
 
     public String toString() {
-        return "Token(" + value + ", " + line + ", " + column + ")";
+        return "Token(" + getValue() + ", " + getLine() + ", " + column + ")";
     }
 }
@@ -0,0 +1,52 @@
+package splat.lexer;
+
+/**
+ * An index-based view of a sequence of tokens, as consumed by the parser.
+ * Tokens are addressed relative to the current one: ahead 0 is the next
+ * token to be consumed, ahead 1 is the one after that, and so on.  All
+ * accessors throw an IndexOutOfBoundsException if there is no such token.
+ * Consuming a token only moves the cursor, so parsing is linear in the
+ * number of tokens.
+ */
+public interface TokenCursor {
+
+	/**
+	 * Returns true iff there is a token the given number of positions
+	 * ahead of the current one.
+	 */
+	boolean hasToken(int ahead);
+
+	TokenKind kind(int ahead);
+
+	String text(int ahead);
+
+	int line(int ahead);
+
+	int column(int ahead);
+
+	Token token(int ahead);
+
+	/**
+	 * Sets the anchor that the tokens returned by token() from now on are
+	 * attached to, or null for none.  line() includes its shift as well.
+	 */
+	void setLineAnchor(LineAnchor anchor);
+
+	/**
+	 * Consumes the current token.
+	 */
+	void advance();
+
+	/**
+	 * Returns a mark for the current position, which reset() can later
+	 * return to.
+	 */
+	int mark();
+
+	/**
+	 * Moves back (or forward) to a position returned by mark().  Cursors
+	 * that discard consumed tokens throw an UnsupportedOperationException
+	 * unless the mark is the current position.
+	 */
+	void reset(int mark);
+}
@@ -0,0 +1,171 @@
+package splat.lexer;
+
+/**
+ * The kind of a token, assigned once by the lexer so that the parser can
+ * switch on kinds instead of comparing token strings.  Keywords and
+ * operators have a fixed spelling; identifiers and literals don't, and
+ * their text has to be taken from the source.
+ */
+public enum TokenKind {
+
+	IDENTIFIER(null),
+	INTEGER_LITERAL(null),
+	STRING_LITERAL(null),
+
+	// Keywords
+	PROGRAM("program"),
+	BEGIN("begin"),
+	END("end"),
+	IF("if"),
+	THEN("then"),
+	ELSE("else"),
+	WHILE("while"),
+	DO("do"),
+	PRINT("print"),
+	PRINT_LINE("print_line"),
+	RETURN("return"),
+	IS("is"),
+	VOID("void"),
+	INTEGER("Integer"),
+	BOOLEAN("Boolean"),
+	STRING("String"),
+	TRUE("true"),
+	FALSE("false"),
+	AND("and"),
+	OR("or"),
+	NOT("not"),
+
+	// Operators and delimiters
+	PLUS("+"),
+	MINUS("-"),
+	TIMES("*"),
+	DIVIDE("/"),
+	MOD("%"),
+	EQUAL("=="),
+	LESS("<"),
+	GREATER(">"),
+	LESS_EQUAL("<="),
+	GREATER_EQUAL(">="),
+	ASSIGN(":="),
+	LEFT_PAREN("("),
+	RIGHT_PAREN(")"),
+	SEMICOLON(";"),
+	COMMA(","),
+	COLON(":"),
+	EQUALS("=");
+
+	private static final TokenKind[] VALUES = values();
+
+	// Keywords grouped by the length of their spelling, for lookups
+	// straight from the source characters
+	private static final TokenKind[][] KEYWORDS_BY_LENGTH = new TokenKind[11][];
+
+	static {
+		for (int len = 0; len < KEYWORDS_BY_LENGTH.length; len++) {
+			int count = 0;
+			for (TokenKind kind : VALUES) {
+				if (kind.isKeyword() && kind.spelling.length() == len) {
+					count++;
+				}
+			}
+			KEYWORDS_BY_LENGTH[len] = new TokenKind[count];
+			count = 0;
+			for (TokenKind kind : VALUES) {
+				if (kind.isKeyword() && kind.spelling.length() == len) {
+					KEYWORDS_BY_LENGTH[len][count++] = kind;
+				}
+			}
+		}
+	}
+
+	private final String spelling;
+
+	private TokenKind(String spelling) {
+		this.spelling = spelling;
+	}
+
+	/**
+	 * Returns the fixed spelling of a keyword or operator, or null for
+	 * identifiers and literals.
+	 */
+	public String getSpelling() {
+		return spelling;
+	}
+
+	public boolean isKeyword() {
+		return ordinal() >= PROGRAM.ordinal() && ordinal() <= NOT.ordinal();
+	}
+
+	public boolean isBinaryOp() {
+		switch (this) {
+			case AND: case OR:
+			case GREATER: case LESS: case EQUAL: case GREATER_EQUAL: case LESS_EQUAL:
+			case PLUS: case MINUS: case TIMES: case DIVIDE: case MOD:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	private boolean spells(Source buf, int start, int length) {
+		for (int i = 0; i < length; i++) {
+			if (spelling.charAt(i) != buf.charAt(start + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public static TokenKind fromCode(int code) {
+		return VALUES[code];
+	}
+
+	/**
+	 * Classifies a run of identifier characters: a keyword, an integer
+	 * literal, or otherwise an identifier.  A run of digits only counts as
+	 * an integer literal if it fits in an int, matching what
+	 * Integer.parseInt() accepts; anything else is left to the parser as
+	 * a label.
+	 */
+	static TokenKind classifyWord(Source buf, int start, int length) {
+		if (length < KEYWORDS_BY_LENGTH.length) {
+			for (TokenKind kind : KEYWORDS_BY_LENGTH[length]) {
+				if (kind.spells(buf, start, length)) {
+					return kind;
+				}
+			}
+		}
+
+		if (length == 0) {
+			return IDENTIFIER;
+		}
+
+		long value = 0;
+		for (int i = start; i < start + length; i++) {
+			int digit = Character.digit(buf.charAt(i), 10);
+			if (digit < 0) {
+				return IDENTIFIER;
+			}
+			value = value * 10 + digit;
+			if (value > Integer.MAX_VALUE) {
+				return IDENTIFIER;
+			}
+		}
+		return INTEGER_LITERAL;
+	}
+
+	/**
+	 * Classifies a complete token value, as produced by the lexer.
+	 */
+	public static TokenKind classify(String value) {
+		if (value.startsWith("\"")) {
+			return STRING_LITERAL;
+		}
+		for (TokenKind kind : VALUES) {
+			if (value.equals(kind.spelling)) {
+				return kind;
+			}
+		}
+		return classifyWord(Source.of(value), 0, value.length());
+	}
+}
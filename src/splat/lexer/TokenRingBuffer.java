@@ -0,0 +1,220 @@
+package splat.lexer;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded single-producer/single-consumer queue of tokens, used to run
+ * the lexer and the parser concurrently.  The lexer thread adds tokens
+ * through the TokenSink side, and the parser consumes them through the
+ * TokenCursor side, so at most capacity tokens are ever held in memory.
+ *
+ * Like in TokenStream, tokens are stored as parallel int arrays.  The
+ * producer only writes head, and the consumer only writes tail; a slot
+ * is published to the consumer by the volatile write of head, and handed
+ * back to the producer by the volatile write of tail.
+ */
+public class TokenRingBuffer implements TokenSink, TokenCursor {
+
+	// How long a blocked side sleeps before checking again
+	private static final long PARK_NANOS = 20_000;
+
+	private final Source source;
+
+	private final int mask;
+	private final int[] kinds;
+	private final int[] starts;
+	private final int[] lengths;
+	private final int[] lines;
+	private final int[] columns;
+
+	private volatile long head;
+	private volatile long tail;
+
+	private volatile boolean finished;
+	private volatile Throwable failure;
+
+	private Thread producer;
+
+	// Producer-local copy of tail, refreshed only when the buffer looks full
+	private long cachedTail;
+
+	// Consumer-local copies of tail and of the last head value seen
+	private long readPos;
+	private long cachedHead;
+
+	// Only used by the consumer
+	private final TextInterner interner = new TextInterner();
+	private LineAnchor anchor;
+
+	/**
+	 * Creates a buffer for tokens of the given source.  The capacity is
+	 * rounded up to a power of two, and must leave room for the parser's
+	 * lookahead.
+	 */
+	public TokenRingBuffer(Source source, int capacity) {
+		int size = Integer.highestOneBit(Math.max(4, capacity - 1)) << 1;
+		this.source = source;
+		this.mask = size - 1;
+		this.kinds = new int[size];
+		this.starts = new int[size];
+		this.lengths = new int[size];
+		this.lines = new int[size];
+		this.columns = new int[size];
+	}
+
+	// ---------------------------------------------------------------------
+	// Producer side
+	// ---------------------------------------------------------------------
+
+	public void add(TokenKind kind, int start, int length, int line, int column) {
+		long h = head;
+		if (h - cachedTail > mask) {
+			cachedTail = tail;
+			while (h - cachedTail > mask) {
+				LockSupport.parkNanos(PARK_NANOS);
+				cachedTail = tail;
+			}
+		}
+
+		int slot = (int) h & mask;
+		kinds[slot] = kind.ordinal();
+		starts[slot] = start;
+		lengths[slot] = length;
+		lines[slot] = line;
+		columns[slot] = column;
+		head = h + 1;
+	}
+
+	/**
+	 * Called by the producer when there are no more tokens, either because
+	 * the whole source was tokenized (failure is null) or because the
+	 * lexer failed with the given exception.
+	 */
+	void finish(Throwable failure) {
+		this.failure = failure;
+		this.finished = true;
+	}
+
+	void setProducer(Thread producer) {
+		this.producer = producer;
+	}
+
+	// ---------------------------------------------------------------------
+	// Consumer side
+	// ---------------------------------------------------------------------
+
+	public boolean hasToken(int ahead) {
+		if (cachedHead - readPos > ahead) {
+			return true;
+		}
+
+		cachedHead = head;
+		while (cachedHead - readPos <= ahead) {
+			if (finished) {
+				cachedHead = head;
+				return cachedHead - readPos > ahead;
+			}
+			LockSupport.parkNanos(PARK_NANOS);
+			cachedHead = head;
+		}
+		return true;
+	}
+
+	private int slot(int ahead) {
+		if (!hasToken(ahead)) {
+			throw new IndexOutOfBoundsException("No token " + ahead + " ahead");
+		}
+		return (int) (readPos + ahead) & mask;
+	}
+
+	public TokenKind kind(int ahead) {
+		return TokenKind.fromCode(kinds[slot(ahead)]);
+	}
+
+	public String text(int ahead) {
+		int slot = slot(ahead);
+		String spelling = TokenKind.fromCode(kinds[slot]).getSpelling();
+		if (spelling != null) {
+			return spelling;
+		}
+		return interner.intern(source, starts[slot], lengths[slot]);
+	}
+
+	public int line(int ahead) {
+		int line = lines[slot(ahead)];
+		return anchor == null ? line : line + anchor.getShift();
+	}
+
+	public int column(int ahead) {
+		return columns[slot(ahead)];
+	}
+
+	public Token token(int ahead) {
+		int slot = slot(ahead);
+		String spelling = TokenKind.fromCode(kinds[slot]).getSpelling();
+		if (spelling != null) {
+			return new Token(spelling, lines[slot], columns[slot], anchor);
+		}
+		return new Token(source, starts[slot], lengths[slot], lines[slot], columns[slot], anchor);
+	}
+
+	public void setLineAnchor(LineAnchor anchor) {
+		this.anchor = anchor;
+	}
+
+	public void advance() {
+		slot(0);
+		readPos++;
+		tail = readPos;
+	}
+
+	/**
+	 * Returns the number of tokens consumed so far.
+	 */
+	public int mark() {
+		return (int) readPos;
+	}
+
+	/**
+	 * Consumed tokens are handed back to the producer straight away, so
+	 * the buffer cannot move back to them.
+	 */
+	public void reset(int mark) {
+		if (mark != (int) readPos) {
+			throw new UnsupportedOperationException("A token ring buffer can only be read forwards");
+		}
+	}
+
+	/**
+	 * Discards any tokens the consumer did not read, waits for the lexer
+	 * to finish, and rethrows its LexException if it failed.  A lexing
+	 * error anywhere in the source has to win over a parse error, just as
+	 * when the whole source is tokenized before parsing starts.
+	 */
+	public void awaitCompletion() throws LexException {
+		while (!finished || readPos != head) {
+			if (head != readPos) {
+				readPos = head;
+				tail = readPos;
+			} else {
+				LockSupport.parkNanos(PARK_NANOS);
+			}
+		}
+
+		if (producer != null) {
+			try {
+				producer.join();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		if (failure instanceof LexException) {
+			throw (LexException) failure;
+		} else if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		} else if (failure instanceof Error) {
+			throw (Error) failure;
+		}
+	}
+}
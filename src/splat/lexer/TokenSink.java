@@ -0,0 +1,9 @@
+package splat.lexer;
+
+/**
+ * Receives tokens from the lexer, in source order.
+ */
+public interface TokenSink {
+
+	void add(TokenKind kind, int start, int length, int line, int column);
+}
@@ -0,0 +1,270 @@
+package splat.lexer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A compact, indexed sequence of tokens.  Instead of one Token object per
+ * token, the kind, source offset, length, line and column of every token
+ * are kept in parallel int arrays.  The text of identifiers and literals
+ * is only turned into a String when asked for, and is interned so that
+ * every occurrence of the same label shares one String.
+ */
+public class TokenStream implements TokenSink {
+
+	private final Source source;
+
+	private int size;
+	private int[] kinds;
+	private int[] starts;
+	private int[] lengths;
+	private int[] lines;
+	private int[] columns;
+
+	private final TextInterner interner = new TextInterner();
+
+	TokenStream(Source source, int capacity) {
+		this.source = source;
+		capacity = Math.max(16, capacity);
+		this.kinds = new int[capacity];
+		this.starts = new int[capacity];
+		this.lengths = new int[capacity];
+		this.lines = new int[capacity];
+		this.columns = new int[capacity];
+	}
+
+	/**
+	 * Builds a token stream from a list of already materialized tokens,
+	 * classifying each token value into its kind.
+	 */
+	public static TokenStream of(List<Token> tokens) {
+		int total = 0;
+		for (Token tok : tokens) {
+			total += tok.getValue().length();
+		}
+
+		char[] chars = new char[total];
+		TokenStream stream = new TokenStream(Source.of(chars), tokens.size());
+
+		int offset = 0;
+		for (Token tok : tokens) {
+			String value = tok.getValue();
+			value.getChars(0, value.length(), chars, offset);
+			stream.add(TokenKind.classify(value), offset, value.length(),
+					tok.getLine(), tok.getColumn());
+			offset += value.length();
+		}
+		return stream;
+	}
+
+	/**
+	 * Concatenates token streams of consecutive parts of the same source,
+	 * adding lineOffsets[k] to the line numbers of the tokens of parts[k].
+	 */
+	static TokenStream concat(Source source, TokenStream[] parts, int[] lineOffsets) {
+		int total = 0;
+		for (TokenStream part : parts) {
+			total += part.size;
+		}
+
+		TokenStream stream = new TokenStream(source, total);
+		for (int k = 0; k < parts.length; k++) {
+			stream.append(parts[k], 0, parts[k].size, 0, lineOffsets[k]);
+		}
+		return stream;
+	}
+
+	/**
+	 * Appends the tokens from index from up to to of another stream,
+	 * shifting their source offsets by startShift and their line numbers
+	 * by lineShift.
+	 */
+	void append(TokenStream other, int from, int to, int startShift, int lineShift) {
+		int count = to - from;
+		ensureCapacity(size + count);
+		System.arraycopy(other.kinds, from, kinds, size, count);
+		System.arraycopy(other.lengths, from, lengths, size, count);
+		System.arraycopy(other.columns, from, columns, size, count);
+		for (int i = 0; i < count; i++) {
+			starts[size + i] = other.starts[from + i] + startShift;
+			lines[size + i] = other.lines[from + i] + lineShift;
+		}
+		size += count;
+	}
+
+	/**
+	 * Drops every token from the given index on.
+	 */
+	void truncate(int newSize) {
+		Objects.checkFromToIndex(0, newSize, size);
+		size = newSize;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > kinds.length) {
+			capacity = Math.max(capacity, kinds.length + (kinds.length >> 1));
+			kinds = Arrays.copyOf(kinds, capacity);
+			starts = Arrays.copyOf(starts, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+			lines = Arrays.copyOf(lines, capacity);
+			columns = Arrays.copyOf(columns, capacity);
+		}
+	}
+
+	/**
+	 * Returns the index of the first token starting at or after the given
+	 * source offset, or size() if there is none.
+	 */
+	int indexAtOrAfter(int offset) {
+		int lo = 0;
+		int hi = size;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (starts[mid] < offset) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	public void add(TokenKind kind, int start, int length, int line, int column) {
+		if (size == kinds.length) {
+			ensureCapacity(size + 1);
+		}
+		kinds[size] = kind.ordinal();
+		starts[size] = start;
+		lengths[size] = length;
+		lines[size] = line;
+		columns[size] = column;
+		size++;
+	}
+
+	public Source getSource() {
+		return source;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public TokenKind kind(int index) {
+		return TokenKind.fromCode(kinds[Objects.checkIndex(index, size)]);
+	}
+
+	public int start(int index) {
+		return starts[Objects.checkIndex(index, size)];
+	}
+
+	public int length(int index) {
+		return lengths[Objects.checkIndex(index, size)];
+	}
+
+	public int line(int index) {
+		return lines[Objects.checkIndex(index, size)];
+	}
+
+	public int column(int index) {
+		return columns[Objects.checkIndex(index, size)];
+	}
+
+	/**
+	 * Returns the text of the given token.  Keywords and operators return
+	 * their fixed spelling; identifier and literal text is materialized
+	 * from the source and interned.
+	 */
+	public String text(int index) {
+		String spelling = kind(index).getSpelling();
+		if (spelling != null) {
+			return spelling;
+		}
+		return interner.intern(source, starts[index], lengths[index]);
+	}
+
+	/**
+	 * Returns the given token as a Token object.  Identifier and literal
+	 * tokens refer to their slice of the source rather than copying it.
+	 */
+	public Token token(int index) {
+		return token(index, null);
+	}
+
+	/**
+	 * Returns the given token as a Token object attached to the given line
+	 * anchor.
+	 */
+	public Token token(int index, LineAnchor anchor) {
+		String spelling = kind(index).getSpelling();
+		if (spelling != null) {
+			return new Token(spelling, lines[index], columns[index], anchor);
+		}
+		return new Token(source, starts[index], lengths[index], lines[index], columns[index], anchor);
+	}
+
+	/**
+	 * Returns a cursor positioned at the first token of this stream.
+	 */
+	public TokenCursor cursor() {
+		return new Cursor();
+	}
+
+	public List<Token> toList() {
+		List<Token> tokens = new ArrayList<Token>(size);
+		for (int i = 0; i < size; i++) {
+			tokens.add(token(i));
+		}
+		return tokens;
+	}
+
+	private class Cursor implements TokenCursor {
+
+		private int pos;
+
+		private LineAnchor anchor;
+
+		public boolean hasToken(int ahead) {
+			return pos + ahead < size;
+		}
+
+		public TokenKind kind(int ahead) {
+			return TokenStream.this.kind(pos + ahead);
+		}
+
+		public String text(int ahead) {
+			return TokenStream.this.text(pos + ahead);
+		}
+
+		public int line(int ahead) {
+			int line = TokenStream.this.line(pos + ahead);
+			return anchor == null ? line : line + anchor.getShift();
+		}
+
+		public int column(int ahead) {
+			return TokenStream.this.column(pos + ahead);
+		}
+
+		public Token token(int ahead) {
+			return TokenStream.this.token(pos + ahead, anchor);
+		}
+
+		public void setLineAnchor(LineAnchor anchor) {
+			this.anchor = anchor;
+		}
+
+		public void advance() {
+			Objects.checkIndex(pos, size);
+			pos++;
+		}
+
+		public int mark() {
+			return pos;
+		}
+
+		public void reset(int mark) {
+			pos = Objects.checkFromToIndex(mark, size, size);
+		}
+	}
+}
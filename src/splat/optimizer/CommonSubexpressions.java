@@ -0,0 +1,404 @@
+package splat.optimizer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import splat.parser.elements.Assignment;
+import splat.parser.elements.BinaryOp;
+import splat.parser.elements.Expression;
+import splat.parser.elements.FunctionCallExpr;
+import splat.parser.elements.FunctionCallStmt;
+import splat.parser.elements.IfThen;
+import splat.parser.elements.Literal;
+import splat.parser.elements.Print;
+import splat.parser.elements.Return;
+import splat.parser.elements.Statement;
+import splat.parser.elements.UnaryOp;
+import splat.parser.elements.Variable;
+import splat.parser.elements.VariableDecl;
+import splat.parser.elements.WhileLoop;
+
+/**
+ * Computes the repeated expressions of a statement list once, by local
+ * value numbering.
+ *
+ * Every variable has a value number, which changes when the variable is
+ * assigned, and every operation, and every call to a function that never
+ * prints (see Effects.isPureCall), has a number made of its operator or
+ * function and the numbers of its operands, so that expressions with the
+ * same number have the same value.  (The operands of +, *, ==, and and or
+ * may be in either order.)  An expression whose value is already known
+ * is replaced with a variable that holds it: one it was assigned to, if
+ * that has not been assigned since, or else a fresh variable, named $cse
+ * and a number, that is assigned the value just before the statement
+ * that first computes it.
+ *
+ * That only moves a computation ahead of the rest of its statement when
+ * it can neither fail nor have an effect, or when nothing evaluated
+ * before it in the statement can.
+ *
+ * The statement lists nested in if statements and while loops are
+ * numbered on their own, and the variables they assign get new numbers
+ * after them.  The condition of a while loop is left alone, since it runs
+ * again after the statements of the loop, and so is the step of a loop
+ * counter, like i := (i + 1), which LoopOptimizer looks for.
+ */
+class CommonSubexpressions {
+
+  // Where the fresh variables of the body are added
+  private List<VariableDecl> freshVars;
+  private int temps;
+
+  private Effects effects;
+
+  CommonSubexpressions(Effects effects) {
+    this.effects = effects;
+  }
+
+  /**
+   * Returns the given statements with their repeated expressions computed
+   * once, and adds the fresh variables they need to freshVars.
+   */
+  List<Statement> eliminate(List<Statement> stmts, List<VariableDecl> freshVars) {
+    this.freshVars = freshVars;
+    return new Block().eliminate(stmts);
+  }
+
+  /*
+   * One statement, and what replaces its expressions.
+   */
+  private static class Entry {
+
+    Statement stmt;
+
+    // The expressions replaced with variables that hold their values
+    Map<Expression, Expression> replaced = new IdentityHashMap<Expression, Expression>();
+
+    // The expressions whose values go into fresh variables before the
+    // statement, with the variables' labels
+    Map<Expression, String> computedBefore = new IdentityHashMap<Expression, String>();
+
+    Entry(Statement stmt) {
+      this.stmt = stmt;
+    }
+  }
+
+  /*
+   * The value numbers of one statement list.
+   */
+  private class Block {
+
+    // How many value numbers have been given out
+    private int numbered;
+
+    private Map<String, Integer> varNumbers = new HashMap<String, Integer>();
+    private Map<String, Integer> exprNumbers = new HashMap<String, Integer>();
+
+    // The variables that hold the values of operations, by value number,
+    // and the other way around
+    private Map<Integer, String> holders = new HashMap<Integer, String>();
+    private Map<String, Integer> held = new HashMap<String, Integer>();
+
+    // The expressions met once so far, that may still be computed into a
+    // fresh variable before their statements, by value number
+    private Map<Integer, Expression> firstExprs = new HashMap<Integer, Expression>();
+    private Map<Integer, Entry> firstEntries = new HashMap<Integer, Entry>();
+
+    // The numbers of the expressions in the statement being numbered,
+    // whether they are safe, and where their subtrees start in the order
+    // of evaluation
+    private Map<Expression, Integer> numbers;
+    private Set<Expression> safe;
+    private Map<Expression, Integer> starts;
+    private int firstUnsafe;
+
+    List<Statement> eliminate(List<Statement> stmts) {
+
+      List<Entry> entries = new ArrayList<Entry>();
+      for (Statement stmt : stmts) {
+        Entry entry = new Entry(stmt);
+        entries.add(entry);
+
+        if (stmt instanceof Assignment) {
+          Assignment assignment = (Assignment) stmt;
+          String label = assignment.getLabel();
+          boolean step = LoopOptimizer.stepOf(assignment.getExpr(), label) != null;
+          number(Collections.singletonList(assignment.getExpr()), entry, step);
+          Integer number = numbers.get(assignment.getExpr());
+          assign(label);
+          if (number != null) {
+            varNumbers.put(label, number);
+            if (isOperation(assignment.getExpr()) && !holders.containsKey(number)) {
+              holders.put(number, label);
+              held.put(label, number);
+            }
+          }
+
+        } else if (stmt instanceof IfThen) {
+          IfThen ifThen = (IfThen) stmt;
+          number(Collections.singletonList(ifThen.getCondition()), entry, false);
+          List<Statement> elseStmts = ifThen.getElseStmts();
+          entry.stmt = new IfThen(ifThen, ifThen.getCondition(), new Block().eliminate(ifThen.getThenStmts()),
+              elseStmts != null ? new Block().eliminate(elseStmts) : null);
+          assignAll(Collections.singletonList(stmt));
+
+        } else if (stmt instanceof WhileLoop) {
+          WhileLoop whileLoop = (WhileLoop) stmt;
+          entry.stmt = new WhileLoop(whileLoop, whileLoop.getCondition(),
+              new Block().eliminate(whileLoop.getStmts()));
+          assignAll(Collections.singletonList(stmt));
+
+        } else if (stmt instanceof Print) {
+          number(Collections.singletonList(((Print) stmt).getExpr()), entry, false);
+
+        } else if (stmt instanceof Return) {
+          Expression expr = ((Return) stmt).getExpr();
+          if (expr != null) {
+            number(Collections.singletonList(expr), entry, false);
+          }
+
+        } else if (stmt instanceof FunctionCallStmt) {
+          number(((FunctionCallStmt) stmt).getArgs(), entry, false);
+        }
+      }
+
+      List<Statement> eliminated = new ArrayList<Statement>();
+      for (Entry entry : entries) {
+        rebuild(entry, eliminated);
+      }
+      return eliminated;
+    }
+
+    /*
+     * Numbers the given expressions of the statement of the given entry,
+     * which are evaluated in order, and records in the entry which of
+     * them are replaced.  If keepRoot is set, the expression itself is
+     * left alone, though its operands are not.
+     */
+    private void number(List<Expression> exprs, Entry entry, boolean keepRoot) {
+
+      numbers = new IdentityHashMap<Expression, Integer>();
+      safe = Collections.newSetFromMap(new IdentityHashMap<Expression, Boolean>());
+      starts = new IdentityHashMap<Expression, Integer>();
+
+      // From the bottom up, in the order of evaluation
+      final List<Integer> sizes = new ArrayList<Integer>();
+      final int[] count = new int[1];
+      firstUnsafe = Integer.MAX_VALUE;
+      ExpressionRewriter numberer = new ExpressionRewriter() {
+        Expression rewrite(Expression expr, List<Expression> operands) {
+          int size = 1;
+          boolean safeOperands = true;
+          for (Expression operand : operands) {
+            size += sizes.remove(sizes.size() - 1);
+            safeOperands &= safe.contains(operand);
+          }
+          sizes.add(size);
+          starts.put(expr, count[0] - size + 1);
+
+          if (effects.isSafeOperation(expr)) {
+            if (safeOperands) {
+              safe.add(expr);
+            }
+          } else if (firstUnsafe == Integer.MAX_VALUE) {
+            firstUnsafe = count[0];
+          }
+          count[0]++;
+
+          Integer number = numberOf(expr, operands);
+          if (number != null) {
+            numbers.put(expr, number);
+          }
+          return expr;
+        }
+      };
+      for (Expression expr : exprs) {
+        numberer.apply(expr);
+        sizes.clear();
+      }
+
+      // From the top down, so that an expression whose value is known
+      // is replaced as a whole
+      List<Expression> work = new ArrayList<Expression>();
+      for (int i = exprs.size() - 1; i >= 0; i--) {
+        work.add(exprs.get(i));
+      }
+      while (!work.isEmpty()) {
+        Expression expr = work.remove(work.size() - 1);
+        Integer number = numbers.get(expr);
+
+        if (number != null && isOperation(expr) && !(keepRoot && expr == exprs.get(0))) {
+          String label = holders.get(number);
+          if (label == null && firstExprs.containsKey(number)) {
+            label = computeBefore(number);
+          }
+          if (label != null) {
+            entry.replaced.put(expr, new Variable(label, expr));
+            continue;
+          }
+          if (safe.contains(expr) || starts.get(expr) <= firstUnsafe) {
+            firstExprs.put(number, expr);
+            firstEntries.put(number, entry);
+          }
+        }
+
+        List<Expression> operands = ExpressionRewriter.operandsOf(expr);
+        for (int i = operands.size() - 1; i >= 0; i--) {
+          work.add(operands.get(i));
+        }
+      }
+    }
+
+    /*
+     * Has the first expression with the given value number computed into
+     * a fresh variable before its statement, and returns its label.
+     */
+    private String computeBefore(int number) {
+
+      Expression expr = firstExprs.remove(number);
+      Entry entry = firstEntries.remove(number);
+
+      String label = "$cse" + (++temps);
+      freshVars.add(new VariableDecl(label, expr.getType(), expr));
+      entry.computedBefore.put(expr, label);
+
+      // The fresh variable is never assigned again
+      holders.put(number, label);
+      return label;
+    }
+
+    private Integer numberOf(Expression expr, List<Expression> operands) {
+
+      if (expr instanceof Variable) {
+        String label = ((Variable) expr).getLabel();
+        Integer number = varNumbers.get(label);
+        if (number == null) {
+          number = newNumber();
+          varNumbers.put(label, number);
+        }
+        return number;
+      }
+
+      if (expr instanceof Literal) {
+        return numberOf("=" + expr);
+      }
+
+      if (expr.getType() == null || !(expr instanceof BinaryOp || expr instanceof UnaryOp
+          || effects.isPureCall(expr))) {
+        return null;
+      }
+      List<Integer> operandNumbers = new ArrayList<Integer>();
+      for (Expression operand : operands) {
+        Integer number = numbers.get(operand);
+        if (number == null) {
+          return null;
+        }
+        operandNumbers.add(number);
+      }
+
+      String key;
+      if (expr instanceof BinaryOp) {
+        String op = ((BinaryOp) expr).getOp();
+        if (op.equals("+") || op.equals("*") || op.equals("==") || op.equals("and") || op.equals("or")) {
+          Collections.sort(operandNumbers);
+        }
+        key = op;
+      } else if (expr instanceof UnaryOp) {
+        key = ((UnaryOp) expr).getOp();
+      } else {
+        key = ((FunctionCallExpr) expr).getLabel() + "()";
+      }
+      return numberOf(key + " " + operandNumbers);
+    }
+
+    private Integer numberOf(String key) {
+      Integer number = exprNumbers.get(key);
+      if (number == null) {
+        number = newNumber();
+        exprNumbers.put(key, number);
+      }
+      return number;
+    }
+
+    private int newNumber() {
+      return numbered++;
+    }
+
+    /*
+     * Gives the variable with the given label a new value number, since
+     * it is assigned.
+     */
+    private void assign(String label) {
+      varNumbers.put(label, newNumber());
+      Integer number = held.remove(label);
+      if (number != null) {
+        holders.remove(number);
+      }
+    }
+
+    private void assignAll(List<Statement> stmts) {
+      Set<String> assigned = new HashSet<String>();
+      LoopOptimizer.collectAssigned(stmts, assigned);
+      for (String label : assigned) {
+        assign(label);
+      }
+    }
+
+    /*
+     * Adds the statement of the given entry to out, with its expressions
+     * replaced, after the assignments of the fresh variables it needs.
+     */
+    private void rebuild(final Entry entry, final List<Statement> out) {
+
+      ExpressionRewriter rebuilder = new ExpressionRewriter() {
+        Expression rewrite(Expression expr, List<Expression> operands) {
+          String label = entry.computedBefore.get(expr);
+          if (label != null) {
+            out.add(new Assignment(label, withOperands(expr, operands), expr));
+            return new Variable(label, expr);
+          }
+          Expression replacement = entry.replaced.get(expr);
+          return replacement != null ? replacement : withOperands(expr, operands);
+        }
+      };
+
+      Statement stmt = entry.stmt;
+      if (entry.replaced.isEmpty() && entry.computedBefore.isEmpty()) {
+        out.add(stmt);
+
+      } else if (stmt instanceof Assignment) {
+        Assignment assignment = (Assignment) stmt;
+        out.add(new Assignment(assignment.getLabel(), rebuilder.apply(assignment.getExpr()), assignment));
+
+      } else if (stmt instanceof IfThen) {
+        IfThen ifThen = (IfThen) stmt;
+        out.add(new IfThen(ifThen, rebuilder.apply(ifThen.getCondition()), ifThen.getThenStmts(),
+            ifThen.getElseStmts()));
+
+      } else if (stmt instanceof Print) {
+        out.add(new Print(stmt, rebuilder.apply(((Print) stmt).getExpr())));
+
+      } else if (stmt instanceof Return) {
+        out.add(new Return(stmt, rebuilder.apply(((Return) stmt).getExpr())));
+
+      } else {
+        FunctionCallStmt call = (FunctionCallStmt) stmt;
+        List<Expression> args = new ArrayList<Expression>();
+        for (Expression arg : call.getArgs()) {
+          args.add(rebuilder.apply(arg));
+        }
+        out.add(new FunctionCallStmt(call, args));
+      }
+    }
+  }
+
+  private static boolean isOperation(Expression expr) {
+    return !(expr instanceof Variable || expr instanceof Literal);
+  }
+}
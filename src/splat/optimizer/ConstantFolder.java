@@ -0,0 +1,324 @@
+package splat.optimizer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import splat.executor.BooleanValue;
+import splat.executor.ExecutionException;
+import splat.executor.IntegerValue;
+import splat.executor.StringValue;
+import splat.executor.Value;
+import splat.parser.elements.Assignment;
+import splat.parser.elements.BinaryOp;
+import splat.parser.elements.Expression;
+import splat.parser.elements.FunctionCallStmt;
+import splat.parser.elements.IfThen;
+import splat.parser.elements.Literal;
+import splat.parser.elements.Print;
+import splat.parser.elements.Return;
+import splat.parser.elements.Statement;
+import splat.parser.elements.Type;
+import splat.parser.elements.UnaryOp;
+import splat.parser.elements.Variable;
+import splat.parser.elements.VariableDecl;
+import splat.parser.elements.WhileLoop;
+
+/**
+ * Simplifies the body of a function, or of the program, with what is
+ * known before it runs:
+ *
+ * - An operation on literals is replaced with a literal of its result,
+ *   unless working it out fails (a division or modulo by zero), which is
+ *   then left to fail at run time, at the same position.
+ * - A variable that is assigned once, by a statement at the top of the
+ *   body, with a value that folds to a literal, is replaced with that
+ *   literal in the statements after the assignment.  A variable that is
+ *   never assigned is replaced with its default value.
+ * - An if statement whose condition folds to a literal is replaced with
+ *   the branch that runs, and a while loop whose condition folds to false
+ *   is dropped.
+ * - Assignments to variables that are never read are dropped, when the
+ *   assigned expression can neither fail nor call a function (see
+ *   Effects).
+ *
+ * The variables are the local variables of a function, or the program
+ * variables for the program body; parameters are left alone.
+ */
+class ConstantFolder {
+
+  private List<VariableDecl> varDecls;
+  private Effects effects;
+  private Set<String> varLabels = new HashSet<String>();
+
+  // The variables that are assigned once, at the top of the body
+  private Set<String> assignedOnce = new HashSet<String>();
+
+  // The values of the variables known at the current statement
+  private Map<String, Value> constants = new HashMap<String, Value>();
+
+  private ExpressionRewriter folder = new ExpressionRewriter() {
+    Expression rewrite(Expression expr, List<Expression> operands) {
+      return foldExpr(expr, operands);
+    }
+  };
+
+  ConstantFolder(List<VariableDecl> varDecls, Effects effects) {
+    this.varDecls = varDecls;
+    this.effects = effects;
+    for (VariableDecl varDecl : varDecls) {
+      varLabels.add(varDecl.getLabel());
+    }
+  }
+
+  List<Statement> fold(List<Statement> stmts) {
+
+    Map<String, Integer> assignments = new HashMap<String, Integer>();
+    countAssignments(stmts, assignments);
+    for (Statement stmt : stmts) {
+      if (stmt instanceof Assignment) {
+        String label = ((Assignment) stmt).getLabel();
+        if (varLabels.contains(label) && assignments.get(label) == 1) {
+          assignedOnce.add(label);
+        }
+      }
+    }
+
+    for (VariableDecl varDecl : varDecls) {
+      if (!assignments.containsKey(varDecl.getLabel())) {
+        constants.put(varDecl.getLabel(), defaultValue(varDecl.getType()));
+      }
+    }
+
+    return removeDeadStores(foldStmts(stmts, true));
+  }
+
+  private List<Statement> foldStmts(List<Statement> stmts, boolean top) {
+
+    List<Statement> folded = new ArrayList<Statement>();
+    for (Statement stmt : stmts) {
+
+      if (stmt instanceof Assignment) {
+        Assignment assignment = (Assignment) stmt;
+        Expression expr = folder.apply(assignment.getExpr());
+        folded.add(expr == assignment.getExpr() ? assignment
+            : new Assignment(assignment.getLabel(), expr, assignment));
+
+        String label = assignment.getLabel();
+        Value value = valueOf(expr);
+        if (top && value != null && assignedOnce.contains(label)) {
+          constants.put(label, value);
+        }
+
+      } else if (stmt instanceof IfThen) {
+        IfThen ifThen = (IfThen) stmt;
+        Expression condition = folder.apply(ifThen.getCondition());
+        Value value = valueOf(condition);
+        if (value != null) {
+          if (((BooleanValue) value).getValue()) {
+            folded.addAll(foldStmts(ifThen.getThenStmts(), false));
+          } else if (ifThen.getElseStmts() != null) {
+            folded.addAll(foldStmts(ifThen.getElseStmts(), false));
+          }
+        } else {
+          List<Statement> elseStmts = ifThen.getElseStmts();
+          folded.add(new IfThen(ifThen, condition, foldStmts(ifThen.getThenStmts(), false),
+              elseStmts != null ? foldStmts(elseStmts, false) : null));
+        }
+
+      } else if (stmt instanceof WhileLoop) {
+        WhileLoop whileLoop = (WhileLoop) stmt;
+        Expression condition = folder.apply(whileLoop.getCondition());
+        Value value = valueOf(condition);
+        if (value == null || ((BooleanValue) value).getValue()) {
+          folded.add(new WhileLoop(whileLoop, condition, foldStmts(whileLoop.getStmts(), false)));
+        }
+
+      } else if (stmt instanceof Print) {
+        Print print = (Print) stmt;
+        Expression expr = folder.apply(print.getExpr());
+        folded.add(expr == print.getExpr() ? print : new Print(print, expr));
+
+      } else if (stmt instanceof Return) {
+        Return returnStmt = (Return) stmt;
+        Expression expr = returnStmt.getExpr();
+        if (expr != null) {
+          expr = folder.apply(expr);
+        }
+        folded.add(expr == returnStmt.getExpr() ? returnStmt : new Return(returnStmt, expr));
+
+      } else if (stmt instanceof FunctionCallStmt) {
+        FunctionCallStmt call = (FunctionCallStmt) stmt;
+        List<Expression> args = foldArgs(call.getArgs());
+        folded.add(args == call.getArgs() ? call : new FunctionCallStmt(call, args));
+
+      } else {
+        folded.add(stmt);
+      }
+    }
+    return folded;
+  }
+
+  private List<Expression> foldArgs(List<Expression> args) {
+
+    List<Expression> folded = new ArrayList<Expression>();
+    for (Expression arg : args) {
+      folded.add(folder.apply(arg));
+    }
+    return folded.equals(args) ? args : folded;
+  }
+
+  private Expression foldExpr(Expression expr, List<Expression> operands) {
+
+    if (expr instanceof Variable) {
+      Value value = constants.get(((Variable) expr).getLabel());
+      return value != null ? new Literal(value, expr) : expr;
+    }
+
+    Expression rebuilt = ExpressionRewriter.withOperands(expr, operands);
+    try {
+      if (expr instanceof BinaryOp) {
+        Value left = valueOf(operands.get(0));
+        Value right = valueOf(operands.get(1));
+        if (left != null && right != null) {
+          return new Literal(((BinaryOp) expr).compute(left, right), expr);
+        }
+      } else if (expr instanceof UnaryOp) {
+        Value operand = valueOf(operands.get(0));
+        if (operand != null) {
+          return new Literal(((UnaryOp) expr).compute(operand), expr);
+        }
+      }
+    } catch (ExecutionException ex) {
+      // Left to fail when the program runs
+    }
+    return rebuilt;
+  }
+
+  /*
+   * Drops the assignments to variables that are not read anywhere in the
+   * given statements, and whose value is safe to leave unevaluated.
+   */
+  private List<Statement> removeDeadStores(List<Statement> stmts) {
+
+    Set<String> read = new HashSet<String>();
+    collectReads(stmts, read);
+
+    Set<String> unread = new HashSet<String>(varLabels);
+    unread.removeAll(read);
+    return unread.isEmpty() ? stmts : removeStores(stmts, unread);
+  }
+
+  private List<Statement> removeStores(List<Statement> stmts, Set<String> unread) {
+
+    List<Statement> kept = new ArrayList<Statement>();
+    for (Statement stmt : stmts) {
+      if (stmt instanceof Assignment) {
+        Assignment assignment = (Assignment) stmt;
+        if (!unread.contains(assignment.getLabel()) || !effects.isSafe(assignment.getExpr())) {
+          kept.add(stmt);
+        }
+      } else if (stmt instanceof IfThen) {
+        IfThen ifThen = (IfThen) stmt;
+        List<Statement> elseStmts = ifThen.getElseStmts();
+        kept.add(new IfThen(ifThen, ifThen.getCondition(),
+            removeStores(ifThen.getThenStmts(), unread),
+            elseStmts != null ? removeStores(elseStmts, unread) : null));
+      } else if (stmt instanceof WhileLoop) {
+        WhileLoop whileLoop = (WhileLoop) stmt;
+        kept.add(new WhileLoop(whileLoop, whileLoop.getCondition(),
+            removeStores(whileLoop.getStmts(), unread)));
+      } else {
+        kept.add(stmt);
+      }
+    }
+    return kept;
+  }
+
+  private void countAssignments(List<Statement> stmts, Map<String, Integer> assignments) {
+    for (Statement stmt : stmts) {
+      if (stmt instanceof Assignment) {
+        assignments.merge(((Assignment) stmt).getLabel(), 1, Integer::sum);
+      } else if (stmt instanceof IfThen) {
+        IfThen ifThen = (IfThen) stmt;
+        countAssignments(ifThen.getThenStmts(), assignments);
+        if (ifThen.getElseStmts() != null) {
+          countAssignments(ifThen.getElseStmts(), assignments);
+        }
+      } else if (stmt instanceof WhileLoop) {
+        countAssignments(((WhileLoop) stmt).getStmts(), assignments);
+      }
+    }
+  }
+
+  static void collectReads(List<Statement> stmts, Set<String> read) {
+    for (Statement stmt : stmts) {
+      if (stmt instanceof Assignment) {
+        collectReads(((Assignment) stmt).getExpr(), read);
+      } else if (stmt instanceof IfThen) {
+        IfThen ifThen = (IfThen) stmt;
+        collectReads(ifThen.getCondition(), read);
+        collectReads(ifThen.getThenStmts(), read);
+        if (ifThen.getElseStmts() != null) {
+          collectReads(ifThen.getElseStmts(), read);
+        }
+      } else if (stmt instanceof WhileLoop) {
+        WhileLoop whileLoop = (WhileLoop) stmt;
+        collectReads(whileLoop.getCondition(), read);
+        collectReads(whileLoop.getStmts(), read);
+      } else if (stmt instanceof Print) {
+        collectReads(((Print) stmt).getExpr(), read);
+      } else if (stmt instanceof Return) {
+        if (((Return) stmt).getExpr() != null) {
+          collectReads(((Return) stmt).getExpr(), read);
+        }
+      } else if (stmt instanceof FunctionCallStmt) {
+        for (Expression arg : ((FunctionCallStmt) stmt).getArgs()) {
+          collectReads(arg, read);
+        }
+      }
+    }
+  }
+
+  static void collectReads(Expression root, Set<String> read) {
+
+    List<Expression> work = new ArrayList<Expression>();
+    work.add(root);
+    while (!work.isEmpty()) {
+      Expression expr = work.remove(work.size() - 1);
+      if (expr instanceof Variable) {
+        read.add(((Variable) expr).getLabel());
+      } else {
+        work.addAll(ExpressionRewriter.operandsOf(expr));
+      }
+    }
+  }
+
+  /*
+   * The value of the given expression if it is a literal, or else null.
+   */
+  static Value valueOf(Expression expr) {
+
+    if (expr instanceof Literal) {
+      try {
+        return ((Literal) expr).getConstant();
+      } catch (ExecutionException ex) {
+        // Left to fail when the program runs
+      }
+    }
+    return null;
+  }
+
+  static Value defaultValue(Type type) {
+    if (type == Type.INTEGER) {
+      return new IntegerValue(0);
+    } else if (type == Type.BOOLEAN) {
+      return new BooleanValue(false);
+    } else {
+      return new StringValue("");
+    }
+  }
+}
@@ -0,0 +1,231 @@
+package splat.optimizer;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import splat.executor.IntegerValue;
+import splat.executor.Value;
+import splat.parser.elements.BinaryOp;
+import splat.parser.elements.Declaration;
+import splat.parser.elements.Expression;
+import splat.parser.elements.FunctionCallExpr;
+import splat.parser.elements.FunctionDecl;
+import splat.parser.elements.IfThen;
+import splat.parser.elements.ProgramAST;
+import splat.parser.elements.Return;
+import splat.parser.elements.Statement;
+import splat.parser.elements.Type;
+import splat.parser.elements.Variable;
+import splat.parser.elements.WhileLoop;
+import splat.semanticanalyzer.CallGraph;
+
+/**
+ * Tells what evaluating an expression of a program can do besides giving
+ * a value: call a function, which may print or never return, or fail.
+ *
+ * Reading a variable fails when it holds no value, which only happens
+ * when it was given the result of a call to a function that ended
+ * without returning one.  So when every function with a return type
+ * returns a value on every path, reading a variable cannot fail.
+ */
+class Effects {
+
+  // The functions with a return type that return a value on every path
+  private Set<String> returningValue = new HashSet<String>();
+
+  // Whether all the functions with a return type are in returningValue
+  private boolean readsAreSafe = true;
+
+  // The functions that never print, directly or through other functions
+  private Set<String> pure = new HashSet<String>();
+
+  /**
+   * Looks at the functions of the given analyzed program, with its call
+   * graph.
+   */
+  Effects(ProgramAST progAST, CallGraph callGraph) {
+
+    List<FunctionDecl> funcDecls = new ArrayList<FunctionDecl>();
+    for (Declaration decl : progAST.getDecls()) {
+      if (decl instanceof FunctionDecl) {
+        FunctionDecl funcDecl = (FunctionDecl) decl;
+        if (callGraph.isPure(funcDecl)) {
+          pure.add(funcDecl.getLabel());
+        }
+        if (funcDecl.getRetType() != Type.VOID) {
+          funcDecls.add(funcDecl);
+          returningValue.add(funcDecl.getLabel());
+        }
+      }
+    }
+
+    // A function that returns the result of a call returns a value only
+    // if the function called does, so drop functions until none change
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (FunctionDecl funcDecl : funcDecls) {
+        String label = funcDecl.getLabel();
+        if (returningValue.contains(label) && !(alwaysReturns(funcDecl.getStmts())
+            && returnsValues(funcDecl.getStmts()))) {
+          returningValue.remove(label);
+          readsAreSafe = false;
+          changed = true;
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns whether a call to the function with the given label always
+   * gives a value, if it returns at all.
+   */
+  boolean returnsValue(String label) {
+    return returningValue.contains(label);
+  }
+
+  /**
+   * Returns whether the given expression may evaluate to no value: it is
+   * a call to a function that does not always return one.
+   */
+  boolean mayGiveNoValue(Expression expr) {
+    return expr instanceof FunctionCallExpr
+        && !returnsValue(((FunctionCallExpr) expr).getLabel());
+  }
+
+  /**
+   * Returns whether the given expression is a call to a function that
+   * never prints and always gives a value, if it returns at all; since a
+   * function can only read its parameters and local variables, calling it
+   * again with the same arguments gives the same value.
+   */
+  boolean isPureCall(Expression expr) {
+    if (!(expr instanceof FunctionCallExpr)) {
+      return false;
+    }
+    String label = ((FunctionCallExpr) expr).getLabel();
+    return pure.contains(label) && returnsValue(label);
+  }
+
+  /**
+   * Returns whether applying the given expression to the values of its
+   * operands can neither fail nor have an effect: it is not a call, not
+   * a read that may fail, and divides only by a non-zero literal.
+   */
+  boolean isSafeOperation(Expression expr) {
+
+    if (expr instanceof FunctionCallExpr) {
+      return false;
+    }
+    if (expr instanceof Variable) {
+      return readsAreSafe;
+    }
+    if (expr instanceof BinaryOp) {
+      BinaryOp binOp = (BinaryOp) expr;
+      if (binOp.getOp().equals("/") || binOp.getOp().equals("%")) {
+        Value divisor = ConstantFolder.valueOf(binOp.getRight());
+        return divisor != null && ((IntegerValue) divisor).getValue() != 0;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns whether evaluating the given expression can neither fail nor
+   * have an effect.
+   */
+  boolean isSafe(Expression root) {
+
+    List<Expression> work = new ArrayList<Expression>();
+    work.add(root);
+    while (!work.isEmpty()) {
+      Expression expr = work.remove(work.size() - 1);
+      if (!isSafeOperation(expr)) {
+        return false;
+      }
+      work.addAll(ExpressionRewriter.operandsOf(expr));
+    }
+    return true;
+  }
+
+  /**
+   * Returns whether running the given statements always ends in a return
+   * statement, unless one of them fails or never ends.
+   */
+  static boolean alwaysReturns(List<Statement> stmts) {
+    for (Statement stmt : stmts) {
+      if (alwaysReturns(stmt)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  static boolean alwaysReturns(Statement stmt) {
+
+    if (stmt instanceof Return) {
+      return true;
+    }
+    if (stmt instanceof IfThen) {
+      IfThen ifThen = (IfThen) stmt;
+      return ifThen.getElseStmts() != null && alwaysReturns(ifThen.getThenStmts())
+          && alwaysReturns(ifThen.getElseStmts());
+    }
+    return false;
+  }
+
+  /**
+   * Returns whether the given statements contain a return statement.
+   */
+  static boolean containsReturn(List<Statement> stmts) {
+    for (Statement stmt : stmts) {
+      if (containsReturn(stmt)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  static boolean containsReturn(Statement stmt) {
+
+    if (stmt instanceof Return) {
+      return true;
+    } else if (stmt instanceof IfThen) {
+      IfThen ifThen = (IfThen) stmt;
+      return containsReturn(ifThen.getThenStmts())
+          || (ifThen.getElseStmts() != null && containsReturn(ifThen.getElseStmts()));
+    } else if (stmt instanceof WhileLoop) {
+      return containsReturn(((WhileLoop) stmt).getStmts());
+    }
+    return false;
+  }
+
+  /*
+   * Whether every return statement in the given statements returns an
+   * expression that gives a value.
+   */
+  private boolean returnsValues(List<Statement> stmts) {
+
+    for (Statement stmt : stmts) {
+      if (stmt instanceof Return) {
+        Expression expr = ((Return) stmt).getExpr();
+        if (expr == null || mayGiveNoValue(expr)) {
+          return false;
+        }
+      } else if (stmt instanceof IfThen) {
+        IfThen ifThen = (IfThen) stmt;
+        if (!returnsValues(ifThen.getThenStmts())
+            || (ifThen.getElseStmts() != null && !returnsValues(ifThen.getElseStmts()))) {
+          return false;
+        }
+      } else if (stmt instanceof WhileLoop) {
+        if (!returnsValues(((WhileLoop) stmt).getStmts())) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+}
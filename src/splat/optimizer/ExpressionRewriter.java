@@ -0,0 +1,92 @@
+package splat.optimizer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import splat.parser.elements.BinaryOp;
+import splat.parser.elements.Expression;
+import splat.parser.elements.FunctionCallExpr;
+import splat.parser.elements.UnaryOp;
+
+/**
+ * Rebuilds an expression from the bottom up: each expression is handed
+ * its operands already rewritten, from left to right, and returns what
+ * takes its place.  The walk uses a work list rather than recursion,
+ * since expressions may be nested very deeply.
+ */
+abstract class ExpressionRewriter {
+
+  /**
+   * Returns what takes the place of the given expression, whose operands
+   * (none for a literal or a variable) have been rewritten as given.
+   */
+  abstract Expression rewrite(Expression expr, List<Expression> operands);
+
+  Expression apply(Expression root) {
+
+    // An expression is expanded when first on top of the work list, and
+    // rewritten when it is back on top, with its operands' results on
+    // top of the result list
+    List<Expression> work = new ArrayList<Expression>();
+    List<Boolean> expanded = new ArrayList<Boolean>();
+    List<Expression> results = new ArrayList<Expression>();
+    work.add(root);
+    expanded.add(false);
+
+    while (!work.isEmpty()) {
+      int top = work.size() - 1;
+      Expression expr = work.get(top);
+      List<Expression> operands = operandsOf(expr);
+
+      if (!expanded.get(top) && !operands.isEmpty()) {
+        expanded.set(top, true);
+        for (int i = operands.size() - 1; i >= 0; i--) {
+          work.add(operands.get(i));
+          expanded.add(false);
+        }
+      } else {
+        work.remove(top);
+        expanded.remove(top);
+        List<Expression> last = results.subList(results.size() - operands.size(), results.size());
+        List<Expression> rewritten = new ArrayList<Expression>(last);
+        last.clear();
+        results.add(rewrite(expr, rewritten));
+      }
+    }
+    return results.get(0);
+  }
+
+  static List<Expression> operandsOf(Expression expr) {
+
+    if (expr instanceof BinaryOp) {
+      BinaryOp binOp = (BinaryOp) expr;
+      return Arrays.asList(binOp.getLeft(), binOp.getRight());
+    } else if (expr instanceof UnaryOp) {
+      return Collections.singletonList(((UnaryOp) expr).getExpr());
+    } else if (expr instanceof FunctionCallExpr) {
+      return ((FunctionCallExpr) expr).getArgs();
+    }
+    return Collections.emptyList();
+  }
+
+  /**
+   * Returns the given expression with the given operands: itself if they
+   * are its own, or else a copy.
+   */
+  static Expression withOperands(Expression expr, List<Expression> operands) {
+
+    if (operands.equals(operandsOf(expr))) {
+      return expr;
+    }
+
+    if (expr instanceof BinaryOp) {
+      return new BinaryOp((BinaryOp) expr, operands.get(0), operands.get(1));
+    } else if (expr instanceof UnaryOp) {
+      return new UnaryOp((UnaryOp) expr, operands.get(0));
+    } else {
+      return new FunctionCallExpr((FunctionCallExpr) expr, operands);
+    }
+  }
+}
@@ -0,0 +1,616 @@
+package splat.optimizer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import splat.executor.BooleanValue;
+import splat.parser.elements.ASTElement;
+import splat.parser.elements.Assignment;
+import splat.parser.elements.Expression;
+import splat.parser.elements.FunctionCallExpr;
+import splat.parser.elements.FunctionCallStmt;
+import splat.parser.elements.FunctionDecl;
+import splat.parser.elements.IfThen;
+import splat.parser.elements.Literal;
+import splat.parser.elements.Print;
+import splat.parser.elements.Return;
+import splat.parser.elements.Statement;
+import splat.parser.elements.Type;
+import splat.parser.elements.UnaryOp;
+import splat.parser.elements.Variable;
+import splat.parser.elements.VariableDecl;
+import splat.parser.elements.WhileLoop;
+
+/**
+ * Replaces calls to small functions that do not call themselves with the
+ * statements of their bodies, which saves the argument list, the frame
+ * and the ReturnFromCall of every call.
+ *
+ * The parameters and local variables of an inlined function become fresh
+ * variables of the caller, named after them with a '$' and the number of
+ * the call, which no label in a program can contain.  At each call:
+ *
+ * - the arguments are assigned to the parameters, in order, and the local
+ *   variables that may be read before they are assigned are reset to
+ *   their default values;
+ * - a return assigns its value, if it has one, to a fresh variable that
+ *   takes the place of the call in its expression;
+ * - a return before the end of the body also sets a fresh flag, which
+ *   skips the statements after it and ends the loops around it.
+ *
+ * A call in an expression is only inlined if the function returns a value
+ * on every path, and if everything evaluated before the call in the same
+ * statement can be evaluated after it instead (see Effects), since its
+ * body then runs before the statement.  Calls in the condition of a while
+ * loop are left alone, as they run again on every iteration.  Calls with
+ * an argument that may give no value are left alone too, so that reading
+ * the parameter fails as before, with the parameter's name.
+ *
+ * A function is not inlined if it has a local variable of a type other
+ * than Integer, Boolean and String, whose default value fails to be made
+ * when the function is called, or if it assigns a local variable the
+ * result of a call that may give no value, since reading the variable
+ * would then fail with its fresh name instead.
+ */
+class Inliner {
+
+  private Effects effects;
+  private int sizeLimit;
+
+  // The functions whose calls may be inlined, by label
+  private Map<String, FunctionDecl> inlinable = new HashMap<String, FunctionDecl>();
+
+  // The number of calls inlined so far, which numbers the fresh variables
+  private int inlined;
+
+  // Where the fresh variables of the body being inlined into are added
+  private List<VariableDecl> freshVars;
+
+  Inliner(Effects effects, int sizeLimit) {
+    this.effects = effects;
+    this.sizeLimit = sizeLimit;
+  }
+
+  /**
+   * Lets the calls to the given function, as it is after optimization,
+   * be inlined, if it does not call itself and its body is no larger
+   * than the size limit (in expressions and statements).
+   */
+  void addFunction(FunctionDecl funcDecl, boolean recursive) {
+
+    if (sizeLimit > 0 && !recursive && returnsConsistently(funcDecl.getStmts(), funcDecl.getRetType() != Type.VOID)
+        && sizeOf(funcDecl.getStmts(), sizeLimit) <= sizeLimit && hasBasicLocals(funcDecl)
+        && !assignsNoValue(funcDecl.getStmts())) {
+      inlinable.put(funcDecl.getLabel(), funcDecl);
+    }
+  }
+
+  private static boolean hasBasicLocals(FunctionDecl funcDecl) {
+    for (VariableDecl locVar : funcDecl.getLocVarDecls()) {
+      Type type = locVar.getType();
+      if (type != Type.INTEGER && type != Type.BOOLEAN && type != Type.STRING) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /*
+   * Whether one of the given statements assigns a variable the result of
+   * a call that may give no value.
+   */
+  private boolean assignsNoValue(List<Statement> stmts) {
+
+    for (Statement stmt : stmts) {
+      if (stmt instanceof Assignment) {
+        if (effects.mayGiveNoValue(((Assignment) stmt).getExpr())) {
+          return true;
+        }
+      } else if (stmt instanceof IfThen) {
+        IfThen ifThen = (IfThen) stmt;
+        if (assignsNoValue(ifThen.getThenStmts())
+            || (ifThen.getElseStmts() != null && assignsNoValue(ifThen.getElseStmts()))) {
+          return true;
+        }
+      } else if (stmt instanceof WhileLoop) {
+        if (assignsNoValue(((WhileLoop) stmt).getStmts())) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the given statements with the calls in them inlined, and adds
+   * the fresh variables they need to freshVars.
+   */
+  List<Statement> inline(List<Statement> stmts, List<VariableDecl> freshVars) {
+    this.freshVars = freshVars;
+    return inlineStmts(stmts);
+  }
+
+  private List<Statement> inlineStmts(List<Statement> stmts) {
+
+    List<Statement> inlinedStmts = new ArrayList<Statement>();
+    for (Statement stmt : stmts) {
+      inlineStmt(stmt, inlinedStmts);
+    }
+    return inlinedStmts;
+  }
+
+  private void inlineStmt(Statement stmt, List<Statement> out) {
+
+    if (stmt instanceof Assignment) {
+      Assignment assignment = (Assignment) stmt;
+      Expression expr = inlineCalls(assignment.getExpr(), out);
+      out.add(expr == assignment.getExpr() ? assignment
+          : new Assignment(assignment.getLabel(), expr, assignment));
+
+    } else if (stmt instanceof IfThen) {
+      IfThen ifThen = (IfThen) stmt;
+      Expression condition = inlineCalls(ifThen.getCondition(), out);
+      List<Statement> elseStmts = ifThen.getElseStmts();
+      out.add(new IfThen(ifThen, condition, inlineStmts(ifThen.getThenStmts()),
+          elseStmts != null ? inlineStmts(elseStmts) : null));
+
+    } else if (stmt instanceof WhileLoop) {
+      WhileLoop whileLoop = (WhileLoop) stmt;
+      out.add(new WhileLoop(whileLoop, whileLoop.getCondition(), inlineStmts(whileLoop.getStmts())));
+
+    } else if (stmt instanceof Print) {
+      Print print = (Print) stmt;
+      Expression expr = inlineCalls(print.getExpr(), out);
+      out.add(expr == print.getExpr() ? print : new Print(print, expr));
+
+    } else if (stmt instanceof Return) {
+      Return returnStmt = (Return) stmt;
+      Expression expr = returnStmt.getExpr();
+      if (expr != null) {
+        expr = inlineCalls(expr, out);
+      }
+      out.add(expr == returnStmt.getExpr() ? returnStmt : new Return(returnStmt, expr));
+
+    } else if (stmt instanceof FunctionCallStmt) {
+      FunctionCallStmt call = (FunctionCallStmt) stmt;
+      List<Expression> args = inlineCalls(call.getArgs(), out);
+      FunctionDecl funcDecl = inlinable.get(call.getLabel());
+      if (funcDecl != null && givesValues(args)) {
+        expand(funcDecl, args, call, out);
+      } else {
+        out.add(args == call.getArgs() ? call : new FunctionCallStmt(call, args));
+      }
+
+    } else {
+      out.add(stmt);
+    }
+  }
+
+  private Expression inlineCalls(Expression expr, List<Statement> out) {
+    return inlineCalls(Collections.singletonList(expr), out).get(0);
+  }
+
+  /*
+   * Inlines the calls in the given expressions, which are evaluated in
+   * order, adding the statements that replace them to out, and returns
+   * the expressions with each inlined call replaced with its result.
+   */
+  private List<Expression> inlineCalls(List<Expression> exprs, List<Statement> out) {
+
+    FunctionCallExpr call;
+    while ((call = firstInlinableCall(exprs)) != null) {
+      final FunctionCallExpr inlinedCall = call;
+      final Variable result = new Variable(expand(inlinable.get(call.getLabel()), call.getArgs(), call, out), call);
+      ExpressionRewriter replacer = new ExpressionRewriter() {
+        Expression rewrite(Expression expr, List<Expression> operands) {
+          return expr == inlinedCall ? result : withOperands(expr, operands);
+        }
+      };
+
+      List<Expression> replaced = new ArrayList<Expression>();
+      for (Expression expr : exprs) {
+        replaced.add(replacer.apply(expr));
+      }
+      exprs = replaced;
+    }
+    return exprs;
+  }
+
+  /*
+   * Returns the first call, in the order of evaluation, that can be
+   * inlined, and that only has safe operations evaluated before it (its
+   * own arguments are evaluated before its body either way), or null if
+   * there is none.
+   */
+  private FunctionCallExpr firstInlinableCall(List<Expression> exprs) {
+
+    // The expressions in the order they are evaluated, with the size of
+    // their subtrees, which end with them
+    final List<Expression> order = new ArrayList<Expression>();
+    final List<Integer> sizes = new ArrayList<Integer>();
+    final List<Integer> pending = new ArrayList<Integer>();
+    ExpressionRewriter walk = new ExpressionRewriter() {
+      Expression rewrite(Expression expr, List<Expression> operands) {
+        int size = 1;
+        for (int i = 0; i < operands.size(); i++) {
+          size += pending.remove(pending.size() - 1);
+        }
+        pending.add(size);
+        order.add(expr);
+        sizes.add(size);
+        return expr;
+      }
+    };
+    for (Expression expr : exprs) {
+      walk.apply(expr);
+      pending.clear();
+    }
+
+    int firstUnsafe = order.size();
+    for (int i = 0; i < order.size(); i++) {
+      Expression expr = order.get(i);
+      if (expr instanceof FunctionCallExpr && i - sizes.get(i) + 1 <= firstUnsafe) {
+        FunctionCallExpr call = (FunctionCallExpr) expr;
+        if (inlinable.containsKey(call.getLabel()) && effects.returnsValue(call.getLabel())
+            && givesValues(call.getArgs())) {
+          return call;
+        }
+      }
+      if (firstUnsafe == order.size() && !effects.isSafeOperation(expr)) {
+        firstUnsafe = i;
+      }
+    }
+    return null;
+  }
+
+  private boolean givesValues(List<Expression> args) {
+    for (Expression arg : args) {
+      if (effects.mayGiveNoValue(arg)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /*
+   * Adds the statements that run the body of the given function with the
+   * given arguments to out, and returns the label of the variable that
+   * holds the value it returns, if it has a return type.
+   */
+  private String expand(FunctionDecl funcDecl, List<Expression> args, ASTElement call,
+      List<Statement> out) {
+
+    Site site = new Site(++inlined, call);
+
+    List<VariableDecl> params = funcDecl.getParams();
+    for (int i = 0; i < params.size(); i++) {
+      String label = site.rename(params.get(i));
+      inlineStmt(new Assignment(label, args.get(i), call), out);
+    }
+
+    Set<String> assignedFirst = assignedFirst(funcDecl.getStmts());
+    for (VariableDecl locVar : funcDecl.getLocVarDecls()) {
+      String label = site.rename(locVar);
+      if (locVar.getLabel().indexOf('$') < 0 && !assignedFirst.contains(locVar.getLabel())) {
+        out.add(new Assignment(label, new Literal(ConstantFolder.defaultValue(locVar.getType()), locVar), call));
+      }
+    }
+
+    if (funcDecl.getRetType() != Type.VOID) {
+      site.result = site.fresh("", funcDecl.getRetType());
+    }
+
+    List<Statement> body = site.lower(funcDecl.getStmts(), true);
+    if (site.done != null) {
+      out.add(new Assignment(site.done, site.literal(false), call));
+    }
+    out.addAll(body);
+    return site.result;
+  }
+
+  /*
+   * The labels of the variables that are assigned by one of the given
+   * statements before any of them reads the variable.  (The fresh
+   * variables of an earlier inlining, which have a '$' in their labels,
+   * are always assigned before they are read.)
+   */
+  private static Set<String> assignedFirst(List<Statement> stmts) {
+
+    Set<String> read = new HashSet<String>();
+    Set<String> assigned = new HashSet<String>();
+    for (Statement stmt : stmts) {
+      if (stmt instanceof Assignment) {
+        Assignment assignment = (Assignment) stmt;
+        ConstantFolder.collectReads(assignment.getExpr(), read);
+        if (!read.contains(assignment.getLabel())) {
+          assigned.add(assignment.getLabel());
+        }
+      } else {
+        ConstantFolder.collectReads(Collections.singletonList(stmt), read);
+      }
+    }
+    return assigned;
+  }
+
+  /*
+   * Whether the return statements in the given statements all return a
+   * value, or all return none.
+   */
+  private static boolean returnsConsistently(List<Statement> stmts, boolean withValue) {
+
+    for (Statement stmt : stmts) {
+      if (stmt instanceof Return) {
+        if ((((Return) stmt).getExpr() != null) != withValue) {
+          return false;
+        }
+      } else if (stmt instanceof IfThen) {
+        IfThen ifThen = (IfThen) stmt;
+        if (!returnsConsistently(ifThen.getThenStmts(), withValue) || (ifThen.getElseStmts() != null
+            && !returnsConsistently(ifThen.getElseStmts(), withValue))) {
+          return false;
+        }
+      } else if (stmt instanceof WhileLoop) {
+        if (!returnsConsistently(((WhileLoop) stmt).getStmts(), withValue)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /*
+   * The number of statements and expressions in the given statements,
+   * counted up to a little over the given limit.
+   */
+  private static int sizeOf(List<Statement> stmts, int limit) {
+
+    int size = 0;
+    for (Statement stmt : stmts) {
+      if (size > limit) {
+        break;
+      }
+      size++;
+      if (stmt instanceof IfThen) {
+        IfThen ifThen = (IfThen) stmt;
+        size += sizeOf(ifThen.getCondition());
+        size += sizeOf(ifThen.getThenStmts(), limit);
+        if (ifThen.getElseStmts() != null) {
+          size += sizeOf(ifThen.getElseStmts(), limit);
+        }
+      } else if (stmt instanceof WhileLoop) {
+        WhileLoop whileLoop = (WhileLoop) stmt;
+        size += sizeOf(whileLoop.getCondition());
+        size += sizeOf(whileLoop.getStmts(), limit);
+      } else if (stmt instanceof Assignment) {
+        size += sizeOf(((Assignment) stmt).getExpr());
+      } else if (stmt instanceof Print) {
+        size += sizeOf(((Print) stmt).getExpr());
+      } else if (stmt instanceof Return) {
+        Expression expr = ((Return) stmt).getExpr();
+        size += expr != null ? sizeOf(expr) : 0;
+      } else if (stmt instanceof FunctionCallStmt) {
+        for (Expression arg : ((FunctionCallStmt) stmt).getArgs()) {
+          size += sizeOf(arg);
+        }
+      }
+    }
+    return size;
+  }
+
+  private static int sizeOf(Expression root) {
+
+    int size = 0;
+    List<Expression> work = new ArrayList<Expression>();
+    work.add(root);
+    while (!work.isEmpty()) {
+      size++;
+      work.addAll(ExpressionRewriter.operandsOf(work.remove(work.size() - 1)));
+    }
+    return size;
+  }
+
+  /*
+   * One inlined call: the fresh variables for it, and the lowering of
+   * the returns in the body of the function.
+   */
+  private class Site {
+
+    private int number;
+    private ASTElement call;
+    private Map<String, String> labels = new HashMap<String, String>();
+    private int loops;
+
+    // The variable for the result, if any, and the flag that a return
+    // has run, if the body needs one
+    String result;
+    String done;
+
+    private ExpressionRewriter renamer = new ExpressionRewriter() {
+      Expression rewrite(Expression expr, List<Expression> operands) {
+        if (expr instanceof Variable) {
+          return new Variable(labels.get(((Variable) expr).getLabel()), expr);
+        }
+        return withOperands(expr, operands);
+      }
+    };
+
+    Site(int number, ASTElement call) {
+      this.number = number;
+      this.call = call;
+    }
+
+    /*
+     * Declares the fresh variable that takes the place of the given
+     * parameter or local variable, and returns its label.
+     */
+    String rename(VariableDecl varDecl) {
+      String label = varDecl.getLabel() + "$" + number;
+      labels.put(varDecl.getLabel(), label);
+      freshVars.add(new VariableDecl(label, varDecl.getType(), varDecl));
+      return label;
+    }
+
+    /*
+     * Declares a fresh variable of the inlining itself, and returns its
+     * label; these start with a '$', unlike the renamed ones.
+     */
+    String fresh(String name, Type type) {
+      String label = "$" + number + name;
+      freshVars.add(new VariableDecl(label, type, call));
+      return label;
+    }
+
+    Literal literal(boolean value) {
+      return new Literal(new BooleanValue(value), call);
+    }
+
+    Expression notDone() {
+      return new UnaryOp("not", new Variable(done, call), call);
+    }
+
+    /*
+     * Returns the given statements of the body, renamed, with the return
+     * statements replaced with assignments.  Running the statements at
+     * the end of the body (tail) ends the body, so returns there need not
+     * set the flag.
+     */
+    List<Statement> lower(List<Statement> stmts, boolean tail) {
+
+      List<Statement> lowered = new ArrayList<Statement>();
+      for (int i = 0; i < stmts.size(); i++) {
+        Statement stmt = stmts.get(i);
+        boolean returns = Effects.alwaysReturns(stmt);
+        boolean last = i == stmts.size() - 1 || returns;
+
+        if (stmt instanceof Return) {
+          Expression expr = ((Return) stmt).getExpr();
+          if (expr != null) {
+            lowered.add(new Assignment(result, renamer.apply(expr), stmt));
+          }
+          if (!tail) {
+            if (done == null) {
+              done = fresh("$done", Type.BOOLEAN);
+            }
+            lowered.add(new Assignment(done, literal(true), stmt));
+          }
+          return lowered;
+        }
+
+        if (!Effects.containsReturn(stmt)) {
+          lowered.add(rename(stmt));
+          continue;
+        }
+
+        if (stmt instanceof IfThen) {
+          IfThen ifThen = (IfThen) stmt;
+          Expression condition = renamer.apply(ifThen.getCondition());
+          List<Statement> thenStmts = ifThen.getThenStmts();
+          List<Statement> elseStmts = ifThen.getElseStmts();
+          List<Statement> rest = stmts.subList(i + 1, stmts.size());
+
+          // When one branch always returns, the rest of the body can go
+          // in the other branch, which then needs no flag
+          if (!last && Effects.alwaysReturns(thenStmts)) {
+            List<Statement> otherStmts = new ArrayList<Statement>();
+            if (elseStmts != null) {
+              otherStmts.addAll(elseStmts);
+            }
+            otherStmts.addAll(rest);
+            lowered.add(new IfThen(ifThen, condition, lower(thenStmts, tail), lower(otherStmts, tail)));
+            return lowered;
+          }
+          if (!last && elseStmts != null && Effects.alwaysReturns(elseStmts)) {
+            List<Statement> otherStmts = new ArrayList<Statement>(thenStmts);
+            otherStmts.addAll(rest);
+            lowered.add(new IfThen(ifThen, condition, lower(otherStmts, tail), lower(elseStmts, tail)));
+            return lowered;
+          }
+
+          lowered.add(new IfThen(ifThen, condition, lower(thenStmts, tail && last),
+              elseStmts != null ? lower(elseStmts, tail && last) : null));
+        } else {
+          lowered.addAll(lowerLoop((WhileLoop) stmt));
+        }
+
+        if (last) {
+          return lowered;
+        }
+        if (done != null) {
+          lowered.add(new IfThen(stmt, notDone(), lower(stmts.subList(i + 1, stmts.size()), tail), null));
+          return lowered;
+        }
+      }
+      return lowered;
+    }
+
+    /*
+     * A loop with a return in it runs while a fresh flag is set, which
+     * its condition clears, and so does a return:
+     *
+     *   cont := true ;
+     *   while cont do
+     *     if condition then ... ; cont := not done ; else cont := false ; end if ;
+     *   end while ;
+     */
+    private List<Statement> lowerLoop(WhileLoop whileLoop) {
+
+      String cont = fresh("$loop" + (++loops), Type.BOOLEAN);
+      List<Statement> body = lower(whileLoop.getStmts(), false);
+      body.add(new Assignment(cont, notDone(), whileLoop));
+      List<Statement> exit = new ArrayList<Statement>();
+      exit.add(new Assignment(cont, literal(false), whileLoop));
+
+      List<Statement> loopStmts = new ArrayList<Statement>();
+      loopStmts.add(new IfThen(whileLoop, renamer.apply(whileLoop.getCondition()), body, exit));
+
+      List<Statement> lowered = new ArrayList<Statement>();
+      lowered.add(new Assignment(cont, literal(true), whileLoop));
+      lowered.add(new WhileLoop(whileLoop, new Variable(cont, whileLoop), loopStmts));
+      return lowered;
+    }
+
+    /*
+     * Returns the given statement, which has no return in it, renamed.
+     */
+    private Statement rename(Statement stmt) {
+
+      if (stmt instanceof Assignment) {
+        Assignment assignment = (Assignment) stmt;
+        return new Assignment(labels.get(assignment.getLabel()), renamer.apply(assignment.getExpr()),
+            assignment);
+      } else if (stmt instanceof IfThen) {
+        IfThen ifThen = (IfThen) stmt;
+        List<Statement> elseStmts = ifThen.getElseStmts();
+        return new IfThen(ifThen, renamer.apply(ifThen.getCondition()), renameAll(ifThen.getThenStmts()),
+            elseStmts != null ? renameAll(elseStmts) : null);
+      } else if (stmt instanceof WhileLoop) {
+        WhileLoop whileLoop = (WhileLoop) stmt;
+        return new WhileLoop(whileLoop, renamer.apply(whileLoop.getCondition()),
+            renameAll(whileLoop.getStmts()));
+      } else if (stmt instanceof Print) {
+        return new Print(stmt, renamer.apply(((Print) stmt).getExpr()));
+      } else if (stmt instanceof FunctionCallStmt) {
+        FunctionCallStmt call = (FunctionCallStmt) stmt;
+        List<Expression> args = new ArrayList<Expression>();
+        for (Expression arg : call.getArgs()) {
+          args.add(renamer.apply(arg));
+        }
+        return new FunctionCallStmt(call, args);
+      }
+      return stmt;
+    }
+
+    private List<Statement> renameAll(List<Statement> stmts) {
+      List<Statement> renamed = new ArrayList<Statement>();
+      for (Statement stmt : stmts) {
+        renamed.add(rename(stmt));
+      }
+      return renamed;
+    }
+  }
+}
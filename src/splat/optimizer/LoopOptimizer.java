@@ -0,0 +1,315 @@
+package splat.optimizer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import splat.executor.IntegerValue;
+import splat.executor.Value;
+import splat.parser.elements.Assignment;
+import splat.parser.elements.BinaryOp;
+import splat.parser.elements.CountedLoop;
+import splat.parser.elements.Expression;
+import splat.parser.elements.FunctionCallExpr;
+import splat.parser.elements.FunctionCallStmt;
+import splat.parser.elements.IfThen;
+import splat.parser.elements.Literal;
+import splat.parser.elements.Print;
+import splat.parser.elements.Return;
+import splat.parser.elements.Statement;
+import splat.parser.elements.Variable;
+import splat.parser.elements.VariableDecl;
+import splat.parser.elements.WhileLoop;
+
+/**
+ * Speeds up the while loops of a function, or of the program body, outer
+ * loops first:
+ *
+ * - An expression in a loop that only reads variables the loop does not
+ *   assign, and that can neither fail nor have an effect (see Effects),
+ *   is computed once before the loop, into a fresh variable that the
+ *   loop reads instead.  The largest such expressions are moved, not
+ *   their parts, and single variables and literals stay where they are.
+ * - A loop that steps a counter by a constant, as its last statement, up
+ *   to a bound that the loop does not change, becomes a CountedLoop.
+ *
+ * The fresh variables are named $inv and a number, which no label in a
+ * program can start with.
+ */
+class LoopOptimizer {
+
+  private Effects effects;
+
+  // Where the fresh variables of the body are added
+  private List<VariableDecl> freshVars;
+  private int hoisted;
+
+  LoopOptimizer(Effects effects) {
+    this.effects = effects;
+  }
+
+  /**
+   * Returns the given statements with their loops optimized, and adds the
+   * fresh variables they need to freshVars.
+   */
+  List<Statement> optimize(List<Statement> stmts, List<VariableDecl> freshVars) {
+    this.freshVars = freshVars;
+    return optimizeStmts(stmts);
+  }
+
+  private List<Statement> optimizeStmts(List<Statement> stmts) {
+
+    List<Statement> optimized = new ArrayList<Statement>();
+    for (Statement stmt : stmts) {
+      if (stmt instanceof IfThen) {
+        IfThen ifThen = (IfThen) stmt;
+        List<Statement> elseStmts = ifThen.getElseStmts();
+        optimized.add(new IfThen(ifThen, ifThen.getCondition(), optimizeStmts(ifThen.getThenStmts()),
+            elseStmts != null ? optimizeStmts(elseStmts) : null));
+      } else if (stmt instanceof WhileLoop) {
+        optimizeLoop((WhileLoop) stmt, optimized);
+      } else {
+        optimized.add(stmt);
+      }
+    }
+    return optimized;
+  }
+
+  /*
+   * Adds the assignments of the expressions moved out of the given loop
+   * to out, followed by the loop itself.
+   */
+  private void optimizeLoop(WhileLoop whileLoop, List<Statement> out) {
+
+    Set<String> assigned = new HashSet<String>();
+    collectAssigned(whileLoop.getStmts(), assigned);
+
+    Hoister hoister = new Hoister(assigned, out);
+    Expression condition = hoister.hoistFrom(whileLoop.getCondition());
+    List<Statement> stmts = optimizeStmts(hoistStmts(whileLoop.getStmts(), hoister));
+
+    out.add(countedLoopOf(new WhileLoop(whileLoop, condition, stmts)));
+  }
+
+  private List<Statement> hoistStmts(List<Statement> stmts, Hoister hoister) {
+
+    List<Statement> hoistedStmts = new ArrayList<Statement>();
+    for (Statement stmt : stmts) {
+
+      if (stmt instanceof Assignment) {
+        Assignment assignment = (Assignment) stmt;
+        Expression expr = hoister.hoistFrom(assignment.getExpr());
+        hoistedStmts.add(expr == assignment.getExpr() ? assignment
+            : new Assignment(assignment.getLabel(), expr, assignment));
+
+      } else if (stmt instanceof IfThen) {
+        IfThen ifThen = (IfThen) stmt;
+        List<Statement> elseStmts = ifThen.getElseStmts();
+        hoistedStmts.add(new IfThen(ifThen, hoister.hoistFrom(ifThen.getCondition()),
+            hoistStmts(ifThen.getThenStmts(), hoister),
+            elseStmts != null ? hoistStmts(elseStmts, hoister) : null));
+
+      } else if (stmt instanceof WhileLoop) {
+        WhileLoop whileLoop = (WhileLoop) stmt;
+        hoistedStmts.add(new WhileLoop(whileLoop, hoister.hoistFrom(whileLoop.getCondition()),
+            hoistStmts(whileLoop.getStmts(), hoister)));
+
+      } else if (stmt instanceof Print) {
+        Print print = (Print) stmt;
+        Expression expr = hoister.hoistFrom(print.getExpr());
+        hoistedStmts.add(expr == print.getExpr() ? print : new Print(print, expr));
+
+      } else if (stmt instanceof Return) {
+        Return returnStmt = (Return) stmt;
+        Expression expr = returnStmt.getExpr();
+        if (expr != null) {
+          expr = hoister.hoistFrom(expr);
+        }
+        hoistedStmts.add(expr == returnStmt.getExpr() ? returnStmt : new Return(returnStmt, expr));
+
+      } else if (stmt instanceof FunctionCallStmt) {
+        FunctionCallStmt call = (FunctionCallStmt) stmt;
+        List<Expression> args = new ArrayList<Expression>();
+        for (Expression arg : call.getArgs()) {
+          args.add(hoister.hoistFrom(arg));
+        }
+        hoistedStmts.add(args.equals(call.getArgs()) ? call : new FunctionCallStmt(call, args));
+
+      } else {
+        hoistedStmts.add(stmt);
+      }
+    }
+    return hoistedStmts;
+  }
+
+  /*
+   * Returns the given loop as a CountedLoop, if it is one, or else as it
+   * is.
+   */
+  private WhileLoop countedLoopOf(WhileLoop whileLoop) {
+
+    if (!(whileLoop.getCondition() instanceof BinaryOp)) {
+      return whileLoop;
+    }
+    BinaryOp comparison = (BinaryOp) whileLoop.getCondition();
+    String op = comparison.getOp();
+    if (!op.equals("<") && !op.equals("<=") && !op.equals(">") && !op.equals(">=")) {
+      return whileLoop;
+    }
+
+    List<Statement> stmts = whileLoop.getStmts();
+    if (stmts.isEmpty() || !(stmts.get(stmts.size() - 1) instanceof Assignment)) {
+      return whileLoop;
+    }
+    Assignment stepStmt = (Assignment) stmts.get(stmts.size() - 1);
+    String label = stepStmt.getLabel();
+
+    Variable counter;
+    Expression bound;
+    if (isVariable(comparison.getLeft(), label)) {
+      counter = (Variable) comparison.getLeft();
+      bound = comparison.getRight();
+    } else if (isVariable(comparison.getRight(), label)) {
+      counter = (Variable) comparison.getRight();
+      bound = comparison.getLeft();
+      op = (op.startsWith("<") ? ">" : "<") + op.substring(1);
+    } else {
+      return whileLoop;
+    }
+
+    Set<String> assigned = new HashSet<String>();
+    List<Statement> body = stmts.subList(0, stmts.size() - 1);
+    collectAssigned(body, assigned);
+    if (assigned.contains(label)) {
+      return whileLoop;
+    }
+    assigned.add(label);
+    if (!(bound instanceof Literal
+        || (bound instanceof Variable && !assigned.contains(((Variable) bound).getLabel())))) {
+      return whileLoop;
+    }
+
+    Integer step = stepOf(stepStmt.getExpr(), label);
+    if (step == null) {
+      return whileLoop;
+    }
+
+    Set<String> read = new HashSet<String>();
+    ConstantFolder.collectReads(body, read);
+    return new CountedLoop(whileLoop, counter, bound, op, step, read.contains(label));
+  }
+
+  /*
+   * The constant added to the variable with the given label by the given
+   * expression, if it is one of (i + c), (c + i) and (i - c), or else
+   * null.
+   */
+  static Integer stepOf(Expression expr, String label) {
+
+    if (!(expr instanceof BinaryOp)) {
+      return null;
+    }
+    BinaryOp binOp = (BinaryOp) expr;
+    Value left = ConstantFolder.valueOf(binOp.getLeft());
+    Value right = ConstantFolder.valueOf(binOp.getRight());
+
+    if (binOp.getOp().equals("+")) {
+      if (isVariable(binOp.getLeft(), label) && right instanceof IntegerValue) {
+        return ((IntegerValue) right).getValue();
+      } else if (isVariable(binOp.getRight(), label) && left instanceof IntegerValue) {
+        return ((IntegerValue) left).getValue();
+      }
+    } else if (binOp.getOp().equals("-")) {
+      if (isVariable(binOp.getLeft(), label) && right instanceof IntegerValue) {
+        return -((IntegerValue) right).getValue();
+      }
+    }
+    return null;
+  }
+
+  private static boolean isVariable(Expression expr, String label) {
+    return expr instanceof Variable && ((Variable) expr).getLabel().equals(label);
+  }
+
+  static void collectAssigned(List<Statement> stmts, Set<String> assigned) {
+    for (Statement stmt : stmts) {
+      if (stmt instanceof Assignment) {
+        assigned.add(((Assignment) stmt).getLabel());
+      } else if (stmt instanceof IfThen) {
+        IfThen ifThen = (IfThen) stmt;
+        collectAssigned(ifThen.getThenStmts(), assigned);
+        if (ifThen.getElseStmts() != null) {
+          collectAssigned(ifThen.getElseStmts(), assigned);
+        }
+      } else if (stmt instanceof WhileLoop) {
+        collectAssigned(((WhileLoop) stmt).getStmts(), assigned);
+      }
+    }
+  }
+
+  /*
+   * Moves the expressions that do not change in one loop out of it.
+   */
+  private class Hoister extends ExpressionRewriter {
+
+    private Set<String> assigned;
+    private List<Statement> out;
+
+    // The expressions rewritten so far that do not change in the loop,
+    // which are returned as they are
+    private Set<Expression> invariant = Collections.newSetFromMap(new IdentityHashMap<Expression, Boolean>());
+
+    Hoister(Set<String> assigned, List<Statement> out) {
+      this.assigned = assigned;
+      this.out = out;
+    }
+
+    Expression hoistFrom(Expression root) {
+      Expression expr = apply(root);
+      return invariant.contains(expr) ? hoist(expr) : expr;
+    }
+
+    Expression rewrite(Expression expr, List<Expression> operands) {
+
+      boolean invariantOperands = invariant.containsAll(operands);
+      if (invariantOperands && isInvariant(expr)) {
+        invariant.add(expr);
+        return expr;
+      }
+
+      List<Expression> hoistedOperands = new ArrayList<Expression>();
+      for (Expression operand : operands) {
+        hoistedOperands.add(invariant.contains(operand) ? hoist(operand) : operand);
+      }
+      return withOperands(expr, hoistedOperands);
+    }
+
+    private boolean isInvariant(Expression expr) {
+
+      if (expr instanceof Variable && assigned.contains(((Variable) expr).getLabel())) {
+        return false;
+      }
+      return !(expr instanceof FunctionCallExpr) && effects.isSafeOperation(expr);
+    }
+
+    /*
+     * Adds the assignment of the given expression to a fresh variable to
+     * the statements before the loop, and returns the variable, unless
+     * the expression is not worth it.
+     */
+    private Expression hoist(Expression expr) {
+
+      if (expr instanceof Literal || expr instanceof Variable || expr.getType() == null) {
+        return expr;
+      }
+
+      String label = "$inv" + (++hoisted);
+      freshVars.add(new VariableDecl(label, expr.getType(), expr));
+      out.add(new Assignment(label, expr, expr));
+      return new Variable(label, expr);
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package splat.optimizer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import splat.parser.ParseException;
+import splat.parser.elements.Declaration;
+import splat.parser.elements.FunctionDecl;
+import splat.parser.elements.ProgramAST;
+import splat.parser.elements.Statement;
+import splat.parser.elements.VariableDecl;
+import splat.semanticanalyzer.CallGraph;
+
+/**
+ * Rewrites an analyzed program into a simpler one that runs the same:
+ * same output, and the same run-time errors at the same positions.  See
+ * Inliner, ConstantFolder, CommonSubexpressions and LoopOptimizer for
+ * what is simplified, in that order.
+ *
+ * The functions are optimized before their callers, so that a function
+ * is inlined as it is after its own optimization.
+ *
+ * The program given is left as it is; the elements that change are
+ * copied.  Run the Resolver on the program returned, not before.
+ */
+public class Optimizer {
+
+  private ProgramAST progAST;
+  private int inlineLimit = 32;
+
+  public Optimizer(ProgramAST progAST) {
+    this.progAST = progAST;
+  }
+
+  /**
+   * Sets the size, in statements and expressions, of the largest function
+   * body to inline; 0 turns inlining off.
+   */
+  public void setInlineLimit(int inlineLimit) {
+    this.inlineLimit = inlineLimit;
+  }
+
+  public ProgramAST optimize() throws ParseException {
+
+    CallGraph callGraph = new CallGraph(progAST);
+    Effects effects = new Effects(progAST, callGraph);
+    Inliner inliner = new Inliner(effects, inlineLimit);
+
+    Map<FunctionDecl, FunctionDecl> optimized = new HashMap<FunctionDecl, FunctionDecl>();
+    for (List<FunctionDecl> component : callGraph.getComponents()) {
+      for (FunctionDecl funcDecl : component) {
+        optimized.put(funcDecl, optimizeFuncDecl(funcDecl, inliner, effects));
+      }
+      for (FunctionDecl funcDecl : component) {
+        inliner.addFunction(optimized.get(funcDecl), callGraph.isRecursive(funcDecl));
+      }
+    }
+
+    List<Declaration> decls = new ArrayList<Declaration>();
+    List<VariableDecl> progVars = new ArrayList<VariableDecl>();
+    for (Declaration decl : progAST.getDecls()) {
+      if (decl instanceof FunctionDecl) {
+        decls.add(optimized.get(decl));
+      } else {
+        decls.add(decl);
+        if (decl instanceof VariableDecl) {
+          progVars.add((VariableDecl) decl);
+        }
+      }
+    }
+
+    List<VariableDecl> freshVars = new ArrayList<VariableDecl>();
+    List<Statement> stmts = inliner.inline(progAST.getStmts(), freshVars);
+    progVars.addAll(freshVars);
+    stmts = new ConstantFolder(progVars, effects).fold(stmts);
+    stmts = new CommonSubexpressions(effects).eliminate(stmts, freshVars);
+    stmts = new LoopOptimizer(effects).optimize(stmts, freshVars);
+    decls.addAll(freshVars);
+
+    return new ProgramAST(progAST, decls, stmts);
+  }
+
+  private FunctionDecl optimizeFuncDecl(FunctionDecl funcDecl, Inliner inliner, Effects effects) {
+
+    List<VariableDecl> locVarDecls = new ArrayList<VariableDecl>(funcDecl.getLocVarDecls());
+    List<Statement> stmts = inliner.inline(funcDecl.getStmts(), locVarDecls);
+    stmts = new ConstantFolder(locVarDecls, effects).fold(stmts);
+    stmts = new CommonSubexpressions(effects).eliminate(stmts, locVarDecls);
+    stmts = new LoopOptimizer(effects).optimize(stmts, locVarDecls);
+    return new FunctionDecl(funcDecl, locVarDecls, stmts);
+  }
+}
@@ -0,0 +1,262 @@
+package splat.parser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+import splat.lexer.LexException;
+import splat.lexer.Lexer;
+import splat.lexer.LineAnchor;
+import splat.lexer.Source;
+import splat.lexer.Token;
+import splat.lexer.TokenKind;
+import splat.lexer.TokenStream;
+import splat.parser.elements.*;
+
+/**
+ * Keeps a program parsed while it is being edited.  Each edit is
+ * re-tokenized with Lexer.relex(), and only the top-level declarations
+ * it touches are parsed again.  The new ProgramAST shares every other
+ * declaration with the previous one, so the cost of an edit depends on
+ * the size of the declarations it touches (and of the main program
+ * body, which is always parsed again), not on the size of the program.
+ *
+ * Declarations below the edit are moved by shifting their line anchors
+ * (see LineAnchor), so their line numbers are those of the edited
+ * program afterwards, also as seen through the previous ProgramAST.
+ * The previous ProgramAST should not be used once an edit is applied.
+ *
+ * The ProgramAST returned, and any exception thrown, are the same as
+ * from tokenizing and parsing the edited program from scratch.  If an
+ * edit fails to tokenize or parse, the next one is applied to the whole
+ * program again.
+ */
+public class IncrementalParser {
+
+	// The current program; tokens and program are null if it didn't
+	// tokenize or parse
+	private Source source;
+	private TokenStream tokens;
+	private ProgramAST program;
+
+	// Index in tokens of the first token of each declaration in program,
+	// then of its 'begin'
+	private int[] declStarts;
+
+	private boolean lazyFunctionBodies;
+
+	/**
+	 * Parses the given tokens, which must have come from a Lexer, as the
+	 * starting point for edits.
+	 */
+	public IncrementalParser(TokenStream tokens) throws ParseException {
+		this.source = tokens.getSource();
+		parseFully(tokens);
+	}
+
+	/**
+	 * Parses function bodies lazily from now on; see
+	 * Parser.setLazyFunctionBodies().
+	 */
+	public void setLazyFunctionBodies(boolean lazyFunctionBodies) {
+		this.lazyFunctionBodies = lazyFunctionBodies;
+	}
+
+	public ProgramAST getProgram() {
+		return program;
+	}
+
+	public TokenStream getTokens() {
+		return tokens;
+	}
+
+	/**
+	 * Replaces the removedLength characters at offset with insertedText,
+	 * and returns the edited program parsed.
+	 */
+	public ProgramAST applyEdit(int offset, int removedLength, String insertedText)
+			throws LexException, ParseException {
+
+		Objects.checkFromIndexSize(offset, removedLength, source.length());
+		TokenStream previous = tokens;
+		TokenStream next;
+		try {
+			if (previous != null) {
+				next = Lexer.relex(previous, offset, removedLength, insertedText);
+			} else {
+				next = new Lexer(edit(source, offset, removedLength, insertedText)).tokenizeStream();
+			}
+		} catch (LexException ex) {
+			source = edit(source, offset, removedLength, insertedText);
+			tokens = null;
+			program = null;
+			throw ex;
+		}
+		source = next.getSource();
+
+		if (program == null || !reparse(previous, next, offset, removedLength)) {
+			parseFully(next);
+		}
+		return program;
+	}
+
+	private void parseFully(TokenStream next) throws ParseException {
+		tokens = next;
+		program = null;
+
+		Parser parser = new Parser(next);
+		parser.setLazyFunctionBodies(lazyFunctionBodies);
+		ProgramAST parsed = parser.parse();
+
+		List<Integer> starts = parser.getDeclStarts();
+		declStarts = new int[starts.size()];
+		for (int i = 0; i < declStarts.length; i++) {
+			declStarts[i] = starts.get(i);
+		}
+		program = parsed;
+	}
+
+	/*
+	 * Parses the edited program by reusing the declarations of the previous
+	 * one that are entirely on lines before or after the edit.  Returns
+	 * false if that can't be done, e.g. because the edit touches 'program'
+	 * or makes the program invalid, so that it has to be parsed in full.
+	 */
+	private boolean reparse(TokenStream previous, TokenStream next,
+			int offset, int removedLength) {
+
+		Source old = previous.getSource();
+		List<Declaration> oldDecls = program.getDecls();
+		int declCount = oldDecls.size();
+
+		// The lines of the edit, as relex() rescans them: from the start of
+		// the line holding it (or of the line before, if a '\r' might now
+		// pair up with an inserted '\n') up to the start of the first line
+		// after it
+		int editStart = offset;
+		if (editStart > 0 && old.charAt(editStart - 1) == '\r') {
+			editStart--;
+		}
+		while (editStart > 0 && old.charAt(editStart - 1) != '\n' && old.charAt(editStart - 1) != '\r') {
+			editStart--;
+		}
+		int editEnd = offset + removedLength;
+		while (editEnd < old.length() && old.charAt(editEnd) != '\n' && old.charAt(editEnd) != '\r') {
+			editEnd++;
+		}
+		if (editEnd < old.length() && old.charAt(editEnd) == '\r') {
+			editEnd++;
+		}
+		if (editEnd < old.length() && old.charAt(editEnd) == '\n') {
+			editEnd++;
+		}
+
+		if (previous.size() == 0 || end(previous, 0) > editStart) {
+			return false;
+		}
+
+		// Declarations before..after-1 touch the edit
+		int before = 0;
+		int high = declCount;
+		while (before < high) {
+			int mid = (before + high) >>> 1;
+			if (end(previous, declStarts[mid + 1] - 1) <= editStart) {
+				before = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		int after = before;
+		high = declCount;
+		while (after < high) {
+			int mid = (after + high) >>> 1;
+			if (previous.start(declStarts[mid]) < editEnd) {
+				after = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+
+		// Tokens after the edit keep their place counting from the end
+		int tokenShift = next.size() - previous.size();
+		int lineShift = 0;
+		if (after < declCount) {
+			int first = declStarts[after];
+			if (first + tokenShift < 0
+					|| next.kind(first + tokenShift) != previous.kind(first)
+					|| next.column(first + tokenShift) != previous.column(first)) {
+				return false;
+			}
+			lineShift = next.line(first + tokenShift) - previous.line(first);
+		}
+
+		List<Declaration> decls = new ArrayList<Declaration>(declCount + 1);
+		List<Integer> starts = new ArrayList<Integer>();
+		decls.addAll(oldDecls.subList(0, before));
+
+		Parser parser = new Parser(next);
+		parser.setLazyFunctionBodies(lazyFunctionBodies);
+		List<Statement> stmts;
+		int begin;
+		try {
+			int stop = after < declCount ? declStarts[after] + tokenShift : -1;
+			parser.tokens.reset(declStarts[before]);
+			while (stop >= 0 ? parser.tokens.mark() < stop
+					: parser.tokens.kind(0) != TokenKind.BEGIN) {
+				starts.add(parser.tokens.mark());
+				decls.add(parser.parseTopLevelDecl());
+			}
+			if (stop >= 0) {
+				if (parser.tokens.mark() != stop) {
+					return false;
+				}
+				decls.addAll(oldDecls.subList(after, declCount));
+				parser.tokens.reset(declStarts[declCount] + tokenShift);
+			}
+			begin = parser.tokens.mark();
+			stmts = parser.parseProgramBody();
+
+		} catch (ParseException | IndexOutOfBoundsException ex) {
+			return false;
+		}
+
+		if (lineShift != 0) {
+			for (int d = after; d < declCount; d++) {
+				LineAnchor anchor = oldDecls.get(d).getLineAnchor();
+				if (anchor != null) {
+					anchor.shift(lineShift);
+				}
+			}
+		}
+
+		int[] newStarts = new int[decls.size() + 1];
+		System.arraycopy(declStarts, 0, newStarts, 0, before);
+		for (int i = 0; i < starts.size(); i++) {
+			newStarts[before + i] = starts.get(i);
+		}
+		int moved = before + starts.size();
+		for (int d = after; d < declCount; d++) {
+			newStarts[moved++] = declStarts[d] + tokenShift;
+		}
+		newStarts[moved] = begin;
+
+		Token startTok = next.token(0);
+		tokens = next;
+		declStarts = newStarts;
+		program = new ProgramAST(decls, stmts, startTok);
+		return true;
+	}
+
+	private static int end(TokenStream tokens, int index) {
+		return tokens.start(index) + tokens.length(index);
+	}
+
+	private static Source edit(Source source, int offset, int removedLength, String insertedText) {
+		int insertedLength = insertedText.length();
+		char[] chars = new char[source.length() - removedLength + insertedLength];
+		source.getChars(0, offset, chars, 0);
+		insertedText.getChars(0, insertedLength, chars, offset);
+		source.getChars(offset + removedLength, source.length(), chars, offset + insertedLength);
+		return Source.of(chars);
+	}
+}
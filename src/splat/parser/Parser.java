@@ -2,18 +2,112 @@ package splat.parser;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
+import splat.lexer.LexException;
+import splat.lexer.Lexer;
+import splat.lexer.LineAnchor;
 import splat.lexer.Token;
+import splat.lexer.TokenCursor;
+import splat.lexer.TokenKind;
+import splat.lexer.TokenRingBuffer;
+import splat.lexer.TokenStream;
 import splat.parser.elements.*;
 
 public class Parser {
 
-	private List<Token> tokens;
+	// Positioned at the next (front-most) token
+	TokenCursor tokens;
+	
+	// The tokens being parsed, if they are all in memory
+	private TokenStream stream;
+	
+	private boolean lazyFunctionBodies;
+	
+	// Parses the top-level declarations in parallel if set
+	private ForkJoinPool declarationPool;
+	
+	// Index of the first token of each top-level declaration parsed, then
+	// of the 'begin' after them
+	private List<Integer> declStarts;
 	
 	public Parser(List<Token> tokens) {
+		this(TokenStream.of(tokens));
+	}
+	
+	public Parser(TokenStream tokens) {
+		this(tokens.cursor());
+		this.stream = tokens;
+	}
+	
+	public Parser(TokenCursor tokens) {
 		this.tokens = tokens;
 	}
 
+	/**
+	 * Switches lazy parsing of function bodies on or off.  When it is on,
+	 * only the header of each function is parsed, and its body is skipped
+	 * up to the closing "end ;".  The body is parsed the first time the
+	 * function is analyzed or called (see FunctionDecl.parseBody()), so
+	 * syntax errors in it are only reported then.  Needs the tokens to be
+	 * in a TokenStream, which the bodies are parsed from later.
+	 */
+	public void setLazyFunctionBodies(boolean lazyFunctionBodies) {
+		if (lazyFunctionBodies && stream == null) {
+			throw new IllegalStateException("Lazy function bodies need a TokenStream");
+		}
+		this.lazyFunctionBodies = lazyFunctionBodies;
+	}
+
+	/**
+	 * Has the top-level declarations parsed in parallel on the given pool,
+	 * or one by one if it is null.  The resulting ProgramAST, and any
+	 * ParseException, are the same either way.  Needs the tokens to be in
+	 * a TokenStream.
+	 */
+	public void setDeclarationPool(ForkJoinPool declarationPool) {
+		if (declarationPool != null && stream == null) {
+			throw new IllegalStateException("Parallel parsing needs a TokenStream");
+		}
+		this.declarationPool = declarationPool;
+	}
+
+	/**
+	 * Tokenizes and parses the lexer's program concurrently: the lexer
+	 * runs on its own thread, and the parser consumes its tokens through a
+	 * ring buffer of the given capacity as they are produced.  Errors are
+	 * reported exactly as if the whole program had been tokenized first,
+	 * i.e. a LexException anywhere in the program wins over a parse error.
+	 */
+	public static ProgramAST parseConcurrently(Lexer lexer, int bufferCapacity)
+			throws LexException, ParseException {
+		
+		TokenRingBuffer buffer = lexer.tokenizeConcurrently(bufferCapacity);
+		ProgramAST progAST;
+		
+		try {
+			progAST = new Parser(buffer).parse();
+		} catch (ParseException ex) {
+			buffer.awaitCompletion();
+			throw ex;
+		}
+		
+		buffer.awaitCompletion();
+		return progAST;
+	}
+
+	/**
+	 * Consumes the next token, and returns its text.
+	 * 
+	 * @throws IndexOutOfBoundsException if there are no tokens left
+	 */
+	private String nextText() {
+		String text = tokens.text(0);
+		tokens.advance();
+		return text;
+	}
+
 	/**
 	 * Compares the next token to an expected value, and throws
 	 * an exception if they don't match.  This removes the front-most
@@ -23,14 +117,14 @@ public class Parser {
 	 * @throws ParseException if the actual token doesn't match what 
 	 * 			was expected
 	 */
-	private void checkNext(String expected) throws ParseException {
+	private void checkNext(TokenKind expected) throws ParseException {
 
-		Token tok = tokens.remove(0);
-		
-		if (!tok.getValue().equals(expected)) {
-			throw new ParseException("Expected '"+ expected + "', got '" 
-					+ tok.getValue()+ "'.", tok);
+		if (tokens.kind(0) != expected) {
+			throw new ParseException("Expected '"+ expected.getSpelling() + "', got '" 
+					+ tokens.text(0) + "'.", tokens.line(0), tokens.column(0));
 		}
+		
+		tokens.advance();
 	}
 	
 	/**
@@ -41,9 +135,9 @@ public class Parser {
 	 * @param expected value of the next token
 	 * @return true iff the token value matches the expected string
 	 */
-	private boolean peekNext(String expected) {
-		if (tokens.isEmpty()) return false;
-		return tokens.get(0).getValue().equals(expected);
+	private boolean peekNext(TokenKind expected) {
+		if (!tokens.hasToken(0)) return false;
+		return tokens.kind(0) == expected;
 	}
 	
 	/**
@@ -54,24 +148,22 @@ public class Parser {
 	 * @param expected value of the token directly after the next token
 	 * @return true iff the value matches the expected string
 	 */
-	private boolean peekTwoAhead(String expected) {
-		if (tokens.size() < 2) return false;
-		return tokens.get(1).getValue().equals(expected);
+	private boolean peekTwoAhead(TokenKind expected) {
+		if (!tokens.hasToken(1)) return false;
+		return tokens.kind(1) == expected;
 	}
 	
+	/**
+	 * Consumes the next token as a label.  Any token other than a keyword
+	 * is accepted here; the semantic analyzer reports labels that were
+	 * never declared.
+	 */
 	private String getLabel() throws ParseException {
-		Token tok = tokens.remove(0);
-		String value = tok.getValue();
-		if (value.equals("program") || value.equals("begin") || value.equals("end") ||
-			value.equals("if") || value.equals("then") || value.equals("else") ||
-			value.equals("while") || value.equals("do") || value.equals("print") ||
-			value.equals("print_line") || value.equals("return") || value.equals("is") ||
-			value.equals("void") || value.equals("Integer") || value.equals("Boolean") ||
-			value.equals("String") || value.equals("true") || value.equals("false") ||
-			value.equals("and") || value.equals("or") || value.equals("not")) {
-			throw new ParseException("Expected identifier, got keyword '" + value + "'.", tok);
+		if (tokens.kind(0).isKeyword()) {
+			throw new ParseException("Expected identifier, got keyword '" 
+					+ tokens.text(0) + "'.", tokens.line(0), tokens.column(0));
 		}
-		return value;
+		return nextText();
 	}
 	
 	
@@ -82,53 +174,190 @@ public class Parser {
 		
 		try {
 			// Needed for 'program' token position info
-			Token startTok = tokens.get(0);
-			
-			checkNext("program");
+			Token startTok = tokens.token(0);
 			
-			List<Declaration> decls = parseDecls();
+			checkNext(TokenKind.PROGRAM);
 			
-			checkNext("begin");
-			
-			List<Statement> stmts = parseStmts();
+			List<Declaration> decls = declarationPool != null
+					? parseDeclsInParallel() : parseDecls();
 			
-		checkNext("end");
-		checkNext(";");
+			List<Statement> stmts = parseProgramBody();
 
 		return new ProgramAST(decls, stmts, startTok);
 			
-		// This might happen if we do a tokens.get(), and nothing is there!
+		// This might happen if we run past the last token!
 		} catch (IndexOutOfBoundsException ex) {
 			
 			throw new ParseException("Unexpectedly reached the end of file.", -1, -1);
 		}
 	}
 	
+	/*
+	 *  begin <stmts> end ;  at the end of the program
+	 */
+	List<Statement> parseProgramBody() throws ParseException {
+		checkNext(TokenKind.BEGIN);
+		List<Statement> stmts = parseStmts();
+		checkNext(TokenKind.END);
+		checkNext(TokenKind.SEMICOLON);
+		return stmts;
+	}
+	
 	/*
 	 *  <decls> ::= (  <decl>  )*
 	 */
 	private List<Declaration> parseDecls() throws ParseException {
 		
 		List<Declaration> decls = new ArrayList<Declaration>();
+		declStarts = new ArrayList<Integer>();
 		
-		while (!peekNext("begin")) {
-			Declaration decl = parseDecl();
+		while (!peekNext(TokenKind.BEGIN)) {
+			declStarts.add(tokens.mark());
+			Declaration decl = parseTopLevelDecl();
 			decls.add(decl);
 		}
 		
+		declStarts.add(tokens.mark());
+		return decls;
+	}
+	
+	/**
+	 * Returns the index of the first token of each top-level declaration
+	 * in the program parsed, followed by the index of its 'begin'.
+	 */
+	List<Integer> getDeclStarts() {
+		return declStarts;
+	}
+	
+	/*
+	 * Parses the declarations like parseDecls(), but in parallel.  A quick
+	 * pre-scan finds where each declaration ends: a variable declaration
+	 * at the next ';', a function at the next "end ;".  The declarations
+	 * are then parsed in batches on the pool, each by its own Parser
+	 * positioned at the start of the batch.  If the pre-scan or any batch
+	 * fails, or a declaration doesn't end where the pre-scan said, the
+	 * program is not valid, and the declarations are parsed again one by
+	 * one to get exactly the error the sequential parser would report.
+	 */
+	private List<Declaration> parseDeclsInParallel() throws ParseException {
+		
+		int start = tokens.mark();
+		List<Integer> bounds = scanDeclBoundaries(start);
+		if (bounds == null) {
+			return parseDecls();
+		}
+		
+		int declCount = bounds.size() - 1;
+		int batchCount = Math.min(declCount, declarationPool.getParallelism() * 4);
+		List<ForkJoinTask<List<Declaration>>> tasks = new ArrayList<ForkJoinTask<List<Declaration>>>();
+		for (int b = 0; b < batchCount; b++) {
+			int from = (int) ((long) declCount * b / batchCount);
+			int to = (int) ((long) declCount * (b + 1) / batchCount);
+			tasks.add(declarationPool.submit(() -> parseDeclBatch(bounds, from, to)));
+		}
+		
+		List<Declaration> decls = new ArrayList<Declaration>(declCount);
+		for (ForkJoinTask<List<Declaration>> task : tasks) {
+			List<Declaration> batch = task.join();
+			if (batch == null) {
+				tokens.reset(start);
+				return parseDecls();
+			}
+			decls.addAll(batch);
+		}
+		
+		tokens.reset(bounds.get(declCount));
+		declStarts = bounds;
+		return decls;
+	}
+	
+	/*
+	 * Returns the index of the first token of every declaration from the
+	 * given one on, followed by the index of the 'begin' after them, or
+	 * null if the declarations can't be told apart.
+	 */
+	private List<Integer> scanDeclBoundaries(int start) {
+		
+		List<Integer> bounds = new ArrayList<Integer>();
+		int size = stream.size();
+		int i = start;
+		
+		while (i < size && stream.kind(i) != TokenKind.BEGIN) {
+			bounds.add(i);
+			if (i + 1 >= size) {
+				return null;
+			}
+			
+			if (stream.kind(i + 1) == TokenKind.COLON) {
+				while (i < size && stream.kind(i) != TokenKind.SEMICOLON) {
+					i++;
+				}
+				i++;
+			} else if (stream.kind(i + 1) == TokenKind.LEFT_PAREN) {
+				while (i + 1 < size && (stream.kind(i) != TokenKind.END
+						|| stream.kind(i + 1) != TokenKind.SEMICOLON)) {
+					i++;
+				}
+				i += 2;
+			} else {
+				return null;
+			}
+		}
+		
+		if (i >= size) {
+			return null;
+		}
+		bounds.add(i);
+		return bounds;
+	}
+	
+	/*
+	 * Parses declarations from..to-1 found by scanDeclBoundaries(), or
+	 * returns null if they are not all valid.
+	 */
+	private List<Declaration> parseDeclBatch(List<Integer> bounds, int from, int to) {
+		
+		Parser parser = new Parser(stream);
+		parser.lazyFunctionBodies = lazyFunctionBodies;
+		parser.tokens.reset(bounds.get(from));
+		
+		List<Declaration> decls = new ArrayList<Declaration>(to - from);
+		try {
+			for (int d = from; d < to; d++) {
+				decls.add(parser.parseTopLevelDecl());
+				if (parser.tokens.mark() != bounds.get(d + 1)) {
+					return null;
+				}
+			}
+		} catch (ParseException | IndexOutOfBoundsException ex) {
+			return null;
+		}
 		return decls;
 	}
 	
+	/*
+	 * Parses a top-level declaration, giving its tokens and nodes a line
+	 * anchor of their own, so that edits above it can move it later.
+	 */
+	Declaration parseTopLevelDecl() throws ParseException {
+		tokens.setLineAnchor(new LineAnchor());
+		try {
+			return parseDecl();
+		} finally {
+			tokens.setLineAnchor(null);
+		}
+	}
+	
 	/*
 	 * <decl> ::= <var-decl> | <func-decl>
 	 */
 	private Declaration parseDecl() throws ParseException {
-		if (peekTwoAhead(":")) {
+		if (peekTwoAhead(TokenKind.COLON)) {
 			return parseVarDecl();
-		} else if (peekTwoAhead("(")) {
+		} else if (peekTwoAhead(TokenKind.LEFT_PAREN)) {
 			return parseFuncDecl();
 		} else {
-			Token tok = tokens.get(0);
+			Token tok = tokens.token(0);
 			throw new ParseException("Declaration expected", tok);
 		}
 	}
@@ -138,32 +367,98 @@ public class Parser {
 	 * 						<loc-var-decls> begin <stmts> end ;
 	 */
 	private FunctionDecl parseFuncDecl() throws ParseException {
-		Token startTok = tokens.get(0);
+		Token startTok = tokens.token(0);
 		String label = getLabel();
-		checkNext("(");
+		checkNext(TokenKind.LEFT_PAREN);
 		List<VariableDecl> params = parseParams();
-		checkNext(")");
-		checkNext(":");
-		String retTypeName = tokens.remove(0).getValue();
-		Type retType = new Type(retTypeName);
-		checkNext("is");
+		checkNext(TokenKind.RIGHT_PAREN);
+		checkNext(TokenKind.COLON);
+		String retTypeName = nextText();
+		Type retType = Type.of(retTypeName);
+		checkNext(TokenKind.IS);
+		
+		if (lazyFunctionBodies) {
+			SkippedBody body = new SkippedBody(stream, tokens.mark(), startTok.getLineAnchor());
+			skipFuncBody();
+			return new FunctionDecl(label, params, retType, body, startTok);
+		}
+		
 		List<VariableDecl> locVarDecls = parseLocVarDecls();
-		checkNext("begin");
+		checkNext(TokenKind.BEGIN);
 		List<Statement> stmts = parseStmts();
-		checkNext("end");
-		checkNext(";");
+		checkNext(TokenKind.END);
+		checkNext(TokenKind.SEMICOLON);
 		return new FunctionDecl(label, params, retType, locVarDecls, stmts, startTok);
 	}
 	
+	/*
+	 * Skips the rest of a function after 'is', up to and including the
+	 * first 'end' that is not followed by 'while' or 'if', and the ';'
+	 * after it.  Nested blocks always close with "end while ;" or
+	 * "end if ;", and no other statement or expression can contain 'end',
+	 * so that is where the body of a valid function ends, and a function
+	 * that misses its ';' fails right there, as it does when parsed.
+	 */
+	private void skipFuncBody() throws ParseException {
+		while (tokens.kind(0) != TokenKind.END || peekTwoAhead(TokenKind.WHILE)
+				|| peekTwoAhead(TokenKind.IF)) {
+			tokens.advance();
+		}
+		tokens.advance();
+		checkNext(TokenKind.SEMICOLON);
+	}
+	
+	/*
+	 * <loc-var-decls> begin <stmts> end ;  of a function skipped by
+	 * skipFuncBody()
+	 */
+	private void parseFuncBody(FunctionDecl funcDecl) throws ParseException {
+		try {
+			List<VariableDecl> locVarDecls = parseLocVarDecls();
+			checkNext(TokenKind.BEGIN);
+			List<Statement> stmts = parseStmts();
+			checkNext(TokenKind.END);
+			checkNext(TokenKind.SEMICOLON);
+			funcDecl.setBody(locVarDecls, stmts);
+			
+		} catch (IndexOutOfBoundsException ex) {
+			
+			throw new ParseException("Unexpectedly reached the end of file.", -1, -1);
+		}
+	}
+	
+	/**
+	 * The position of a skipped function body in the token stream.
+	 */
+	private static class SkippedBody implements FunctionDecl.LazyBody {
+		
+		private final TokenStream stream;
+		private final int start;
+		private final LineAnchor anchor;
+		
+		SkippedBody(TokenStream stream, int start, LineAnchor anchor) {
+			this.stream = stream;
+			this.start = start;
+			this.anchor = anchor;
+		}
+		
+		public void parseInto(FunctionDecl funcDecl) throws ParseException {
+			Parser parser = new Parser(stream);
+			parser.tokens.reset(start);
+			parser.tokens.setLineAnchor(anchor);
+			parser.parseFuncBody(funcDecl);
+		}
+	}
+	
 	/*
 	 * <params> ::= ( <param> ( , <param> )* )?
 	 */
 	private List<VariableDecl> parseParams() throws ParseException {
 		List<VariableDecl> params = new ArrayList<VariableDecl>();
-		if (!peekNext(")")) {
+		if (!peekNext(TokenKind.RIGHT_PAREN)) {
 			params.add(parseParam());
-			while (peekNext(",")) {
-				checkNext(",");
+			while (peekNext(TokenKind.COMMA)) {
+				checkNext(TokenKind.COMMA);
 				params.add(parseParam());
 			}
 		}
@@ -174,11 +469,11 @@ public class Parser {
 	 * <param> ::= <label> : <type>
 	 */
 	private VariableDecl parseParam() throws ParseException {
-		Token startTok = tokens.get(0);
+		Token startTok = tokens.token(0);
 		String label = getLabel();
-		checkNext(":");
-		String typeName = tokens.remove(0).getValue();
-		Type type = new Type(typeName);
+		checkNext(TokenKind.COLON);
+		String typeName = nextText();
+		Type type = Type.of(typeName);
 		return new VariableDecl(label, type, startTok);
 	}
 	
@@ -187,7 +482,7 @@ public class Parser {
 	 */
 	private List<VariableDecl> parseLocVarDecls() throws ParseException {
 		List<VariableDecl> decls = new ArrayList<VariableDecl>();
-		while (!peekNext("begin")) {
+		while (!peekNext(TokenKind.BEGIN)) {
 			decls.add(parseVarDecl());
 		}
 		return decls;
@@ -197,12 +492,12 @@ public class Parser {
 	 * <var-decl> ::= <label> : <type> ;
 	 */
 	private VariableDecl parseVarDecl() throws ParseException {
-		Token startTok = tokens.get(0);
+		Token startTok = tokens.token(0);
 		String label = getLabel();
-		checkNext(":");
-		String typeName = tokens.remove(0).getValue();
-		Type type = new Type(typeName);
-		checkNext(";");
+		checkNext(TokenKind.COLON);
+		String typeName = nextText();
+		Type type = Type.of(typeName);
+		checkNext(TokenKind.SEMICOLON);
 		return new VariableDecl(label, type, startTok);
 	}
 	
@@ -211,7 +506,7 @@ public class Parser {
 	 */
 	private List<Statement> parseStmts() throws ParseException {
 		List<Statement> stmts = new ArrayList<Statement>();
-		while (!tokens.isEmpty() && !peekNext("end") && !peekNext("else")) {
+		while (tokens.hasToken(0) && !peekNext(TokenKind.END) && !peekNext(TokenKind.ELSE)) {
 			stmts.add(parseStmt());
 		}
 		return stmts;
@@ -222,47 +517,48 @@ public class Parser {
 	 *             <print-line> | <return> | <function-call>
 	 */
 	private Statement parseStmt() throws ParseException {
-		Token startTok = tokens.get(0);
-		String first = startTok.getValue();
+		Token startTok = tokens.token(0);
 		
-		if (first.equals("while")) {
+		switch (tokens.kind(0)) {
+		case WHILE:
 			return parseWhileLoop();
-		} else if (first.equals("if")) {
+		case IF:
 			return parseIfThen();
-		} else if (first.equals("print_line")) {
-			checkNext("print_line");
-			checkNext(";");
+		case PRINT_LINE:
+			checkNext(TokenKind.PRINT_LINE);
+			checkNext(TokenKind.SEMICOLON);
 			return new PrintLine(startTok);
-		} else if (first.equals("print")) {
-			checkNext("print");
+		case PRINT: {
+			checkNext(TokenKind.PRINT);
 			Expression expr = parseExpression();
-			checkNext(";");
+			checkNext(TokenKind.SEMICOLON);
 			return new Print(expr, startTok);
-		} else if (first.equals("return")) {
-			checkNext("return");
-			if (peekNext(";")) {
-				checkNext(";");
+		}
+		case RETURN:
+			checkNext(TokenKind.RETURN);
+			if (peekNext(TokenKind.SEMICOLON)) {
+				checkNext(TokenKind.SEMICOLON);
 				return new Return(null, startTok);
 			} else {
 				Expression expr = parseExpression();
-				checkNext(";");
+				checkNext(TokenKind.SEMICOLON);
 				return new Return(expr, startTok);
 			}
-		} else {
+		default:
 			String label = getLabel();
-			if (peekNext(":=")) {
-				checkNext(":=");
+			if (peekNext(TokenKind.ASSIGN)) {
+				checkNext(TokenKind.ASSIGN);
 				Expression expr = parseExpression();
-				checkNext(";");
+				checkNext(TokenKind.SEMICOLON);
 				return new Assignment(label, expr, startTok);
-			} else if (peekNext("(")) {
-				checkNext("(");
+			} else if (peekNext(TokenKind.LEFT_PAREN)) {
+				checkNext(TokenKind.LEFT_PAREN);
 				List<Expression> args = parseArgs();
-				checkNext(")");
-				checkNext(";");
+				checkNext(TokenKind.RIGHT_PAREN);
+				checkNext(TokenKind.SEMICOLON);
 				return new FunctionCallStmt(label, args, startTok);
 			} else {
-				throw new ParseException("Expected ':=' or '(' after identifier", tokens.get(0));
+				throw new ParseException("Expected ':=' or '(' after identifier", tokens.token(0));
 			}
 		}
 	}
@@ -271,14 +567,14 @@ public class Parser {
 	 * <while-loop> ::= while <expr> do <stmts> end while ;
 	 */
 	private WhileLoop parseWhileLoop() throws ParseException {
-		Token startTok = tokens.get(0);
-		checkNext("while");
+		Token startTok = tokens.token(0);
+		checkNext(TokenKind.WHILE);
 		Expression condition = parseExpression();
-		checkNext("do");
+		checkNext(TokenKind.DO);
 		List<Statement> stmts = parseStmts();
-		checkNext("end");
-		checkNext("while");
-		checkNext(";");
+		checkNext(TokenKind.END);
+		checkNext(TokenKind.WHILE);
+		checkNext(TokenKind.SEMICOLON);
 		return new WhileLoop(condition, stmts, startTok);
 	}
 	
@@ -286,21 +582,21 @@ public class Parser {
 	 * <if-then> ::= if <expr> then <stmts> [ else <stmts> ] end if ;
 	 */
 	private IfThen parseIfThen() throws ParseException {
-		Token startTok = tokens.get(0);
-		checkNext("if");
+		Token startTok = tokens.token(0);
+		checkNext(TokenKind.IF);
 		Expression condition = parseExpression();
-		checkNext("then");
+		checkNext(TokenKind.THEN);
 		List<Statement> thenStmts = parseStmts();
 		List<Statement> elseStmts = null;
 		
-		if (peekNext("else")) {
-			checkNext("else");
+		if (peekNext(TokenKind.ELSE)) {
+			checkNext(TokenKind.ELSE);
 			elseStmts = parseStmts();
 		}
 		
-		checkNext("end");
-		checkNext("if");
-		checkNext(";");
+		checkNext(TokenKind.END);
+		checkNext(TokenKind.IF);
+		checkNext(TokenKind.SEMICOLON);
 		return new IfThen(condition, thenStmts, elseStmts, startTok);
 	}
 	
@@ -309,10 +605,10 @@ public class Parser {
 	 */
 	private List<Expression> parseArgs() throws ParseException {
 		List<Expression> args = new ArrayList<Expression>();
-		if (!peekNext(")")) {
+		if (!peekNext(TokenKind.RIGHT_PAREN)) {
 			args.add(parseExpression());
-			while (peekNext(",")) {
-				checkNext(",");
+			while (peekNext(TokenKind.COMMA)) {
+				checkNext(TokenKind.COMMA);
 				args.add(parseExpression());
 			}
 		}
@@ -327,67 +623,138 @@ public class Parser {
 	 * | <literal>
 	 * <bin-op> ::= and | or | > | < | == | >= | <= | + | - | * | / | %
 	 * <unary-op> ::= not | -
+	 * 
+	 * Expressions are fully parenthesized, so generated code can nest them
+	 * arbitrarily deep.  Instead of recursing once per level, this keeps
+	 * the expressions still being parsed on an explicit stack of frames,
+	 * so nesting depth is only limited by the heap.  Tokens are consumed,
+	 * and errors reported, in exactly the order of a recursive descent.
 	 */
 	private Expression parseExpression() throws ParseException {
-		Token startTok = tokens.get(0);
-		String value = startTok.getValue();
 		
-		if (value.equals("(")) {
-			checkNext("(");
+		List<ExprFrame> frames = new ArrayList<ExprFrame>();
+		
+		while (true) {
 			
-			if (peekNext("not") || peekNext("-")) {
-				Token opTok = tokens.remove(0);
-				String op = opTok.getValue();
-				Expression expr = parseExpression();
-				checkNext(")");
-				return new UnaryOp(op, expr, opTok);
-			} else {
-				Expression left = parseExpression();
-				
-				Token opTok = tokens.remove(0);
-				String op = opTok.getValue();
+			// Parse the start of an expression, until either a complete
+			// operand is found, or a frame is opened for a nested one
+			Token startTok = tokens.token(0);
+			TokenKind kind = tokens.kind(0);
+			Expression result;
+			
+			if (kind == TokenKind.LEFT_PAREN) {
+				checkNext(TokenKind.LEFT_PAREN);
 				
-				if (!isBinaryOp(op)) {
-					throw new ParseException("Expected binary operator, got '" + op + "'.", opTok);
+				if (peekNext(TokenKind.NOT) || peekNext(TokenKind.MINUS)) {
+					Token opTok = tokens.token(0);
+					tokens.advance();
+					frames.add(ExprFrame.unary(opTok.getValue(), opTok));
+				} else {
+					frames.add(ExprFrame.binary());
+				}
+				continue;
+			}
+			else if (kind == TokenKind.TRUE || kind == TokenKind.FALSE || 
+					 kind == TokenKind.STRING_LITERAL || kind == TokenKind.INTEGER_LITERAL) {
+				result = new Literal(nextText(), startTok);
+			}
+			else if (peekTwoAhead(TokenKind.LEFT_PAREN)) {
+				String label = getLabel();
+				checkNext(TokenKind.LEFT_PAREN);
+				if (!peekNext(TokenKind.RIGHT_PAREN)) {
+					frames.add(ExprFrame.call(label, startTok));
+					continue;
+				}
+				checkNext(TokenKind.RIGHT_PAREN);
+				result = new FunctionCallExpr(label, new ArrayList<Expression>(), startTok);
+			}
+			else {
+				String label = getLabel();
+				result = new Variable(label, startTok);
+			}
+			
+			// Hand the operand to the innermost open frame, closing every
+			// frame it completes, until one needs another operand
+			while (true) {
+				if (frames.isEmpty()) {
+					return result;
 				}
+				ExprFrame frame = frames.get(frames.size() - 1);
 				
-				Expression right = parseExpression();
-				checkNext(")");
-				return new BinaryOp(left, op, right, opTok);
+				if (frame.kind == ExprFrame.UNARY) {
+					checkNext(TokenKind.RIGHT_PAREN);
+					result = new UnaryOp(frame.op, result, frame.tok);
+				} else if (frame.kind == ExprFrame.BINARY && frame.left == null) {
+					Token opTok = tokens.token(0);
+					String op = opTok.getValue();
+					
+					if (!tokens.kind(0).isBinaryOp()) {
+						throw new ParseException("Expected binary operator, got '" + op + "'.", opTok);
+					}
+					tokens.advance();
+					
+					frame.left = result;
+					frame.op = op;
+					frame.tok = opTok;
+					break;
+				} else if (frame.kind == ExprFrame.BINARY) {
+					checkNext(TokenKind.RIGHT_PAREN);
+					result = new BinaryOp(frame.left, frame.op, result, frame.tok);
+				} else {
+					frame.args.add(result);
+					if (peekNext(TokenKind.COMMA)) {
+						checkNext(TokenKind.COMMA);
+						break;
+					}
+					checkNext(TokenKind.RIGHT_PAREN);
+					result = new FunctionCallExpr(frame.op, frame.args, frame.tok);
+				}
+				frames.remove(frames.size() - 1);
 			}
 		}
-		else if (value.equals("true") || value.equals("false") || 
-				 value.startsWith("\"") || isNumeric(value)) {
-			tokens.remove(0);
-			return new Literal(value, startTok);
+	}
+	
+	/*
+	 * An expression that parseExpression() has started but not finished:
+	 * a unary operation waiting for its operand, a binary operation waiting
+	 * for its left or right operand, or a function call collecting its
+	 * arguments.
+	 */
+	private static class ExprFrame {
+		
+		static final int UNARY = 0;
+		static final int BINARY = 1;
+		static final int CALL = 2;
+		
+		final int kind;
+		
+		// The operator, or the label of the function called
+		String op;
+		Token tok;
+		Expression left;
+		List<Expression> args;
+		
+		private ExprFrame(int kind) {
+			this.kind = kind;
 		}
-		else if (peekTwoAhead("(")) {
-			String label = getLabel();
-			checkNext("(");
-			List<Expression> args = parseArgs();
-			checkNext(")");
-			return new FunctionCallExpr(label, args, startTok);
+		
+		static ExprFrame unary(String op, Token opTok) {
+			ExprFrame frame = new ExprFrame(UNARY);
+			frame.op = op;
+			frame.tok = opTok;
+			return frame;
 		}
-		else {
-			String label = getLabel();
-			return new Variable(label, startTok);
+		
+		static ExprFrame binary() {
+			return new ExprFrame(BINARY);
 		}
-	}
-	
-	private boolean isBinaryOp(String op) {
-		return op.equals("and") || op.equals("or") || 
-			   op.equals(">") || op.equals("<") || op.equals("==") || 
-			   op.equals(">=") || op.equals("<=") || 
-			   op.equals("+") || op.equals("-") || op.equals("*") || 
-			   op.equals("/") || op.equals("%");
-	}
-	
-	private boolean isNumeric(String str) {
-		try {
-			Integer.parseInt(str);
-			return true;
-		} catch (NumberFormatException e) {
-			return false;
+		
+		static ExprFrame call(String label, Token startTok) {
+			ExprFrame frame = new ExprFrame(CALL);
+			frame.op = label;
+			frame.tok = startTok;
+			frame.args = new ArrayList<Expression>();
+			return frame;
 		}
 	}
 
@@ -1,5 +1,6 @@
 package splat.parser.elements;
 
+import splat.lexer.LineAnchor;
 import splat.lexer.Token;
 
 public abstract class ASTElement {
@@ -7,13 +8,30 @@ public abstract class ASTElement {
 	private int line;
 	private int column;
 	
+	// If set, line is relative to the shift of this anchor
+	private LineAnchor anchor;
+	
 	public ASTElement(Token tok) {
-		this.line = tok.getLine();
+		this.anchor = tok.getLineAnchor();
+		this.line = tok.getLine() - (anchor == null ? 0 : anchor.getShift());
 		this.column = tok.getColumn();
 	}
 	
+	/**
+	 * Creates an element at the same position as the given one.
+	 */
+	protected ASTElement(ASTElement elem) {
+		this.anchor = elem.anchor;
+		this.line = elem.line;
+		this.column = elem.column;
+	}
+	
 	public int getLine() {
-		return line;
+		return anchor == null ? line : line + anchor.getShift();
+	}
+	
+	public LineAnchor getLineAnchor() {
+		return anchor;
 	}
 	
 	public int getColumn() {
@@ -12,12 +12,24 @@ public class Assignment extends Statement {
   private String label;
   private Expression expr;
 
+  // Index of the assigned variable in the frame, set by the Resolver
+  private int slot = -1;
+
   public Assignment(String label, Expression expr, Token tok) {
     super(tok);
     this.label = label;
     this.expr = expr;
   }
 
+  /**
+   * Creates an assignment at the position of the given element.
+   */
+  public Assignment(String label, Expression expr, ASTElement elem) {
+    super(elem);
+    this.label = label;
+    this.expr = expr;
+  }
+
   public String getLabel() {
     return label;
   }
@@ -26,6 +38,14 @@ public class Assignment extends Statement {
     return expr;
   }
 
+  public int getSlot() {
+    return slot;
+  }
+
+  public void setSlot(int slot) {
+    this.slot = slot;
+  }
+
   public String toString() {
     return label + " := " + expr + " ;";
   }
@@ -51,9 +71,12 @@ public class Assignment extends Statement {
   }
   
   public void execute(Map<String, FunctionDecl> funcMap,
-      Map<String, Value> varAndParamMap) throws ReturnFromCall, ExecutionException {
+      Value[] frame) throws ReturnFromCall, ExecutionException {
     
-    Value exprValue = expr.evaluate(funcMap, varAndParamMap);
-    varAndParamMap.put(label, exprValue);
+    Value exprValue = expr.evaluate(funcMap, frame);
+    if (slot < 0) {
+      throw new ExecutionException("Variable '" + label + "' is not declared", this);
+    }
+    frame[slot] = exprValue;
   }
 }
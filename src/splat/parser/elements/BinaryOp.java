@@ -14,11 +14,27 @@ public class BinaryOp extends Expression {
 	private String op;
 	private Expression right;
 	
+	// Number of nested operators in this expression, including this one
+	private int height;
+	
 	public BinaryOp(Expression left, String op, Expression right, Token tok) {
 		super(tok);
 		this.left = left;
 		this.op = op;
 		this.right = right;
+		this.height = 1 + Math.max(OperatorWalk.heightOf(left), OperatorWalk.heightOf(right));
+	}
+	
+	/**
+	 * Creates a copy of the given operation, with the given operands.
+	 */
+	public BinaryOp(BinaryOp binOp, Expression left, Expression right) {
+		super(binOp);
+		this.left = left;
+		this.op = binOp.op;
+		this.right = right;
+		this.height = 1 + Math.max(OperatorWalk.heightOf(left), OperatorWalk.heightOf(right));
+		recordType(binOp.getType());
 	}
 	
 	public Expression getLeft() {
@@ -33,33 +49,49 @@ public class BinaryOp extends Expression {
 		return right;
 	}
 	
+	int getHeight() {
+		return height;
+	}
+	
 	public Type analyzeAndGetType(Map<String, FunctionDecl> funcMap,
 	                             Map<String, Type> varAndParamMap)
 	                             throws SemanticAnalysisException {
 		
+		if (height > OperatorWalk.MAX_RECURSIVE_HEIGHT) {
+			return OperatorWalk.analyze(this, funcMap, varAndParamMap);
+		}
+		
 		Type leftType = left.analyzeAndGetType(funcMap, varAndParamMap);
 		Type rightType = right.analyzeAndGetType(funcMap, varAndParamMap);
-		
-		Type integerType = new Type("Integer");
-		Type booleanType = new Type("Boolean");
-		
+		return getResultType(leftType, rightType);
+	}
+	
+	/**
+	 * Checks the operand types, which have already been analyzed, and
+	 * returns (and records) the type of the result.
+	 */
+	Type getResultType(Type leftType, Type rightType) throws SemanticAnalysisException {
+		return recordType(resultType(leftType, rightType));
+	}
+	
+	private Type resultType(Type leftType, Type rightType) throws SemanticAnalysisException {
 		if (op.equals("+") || op.equals("-") || op.equals("*") || 
 		    op.equals("/") || op.equals("%")) {
-			if (!leftType.equals(integerType) || !rightType.equals(integerType)) {
+			if (leftType != Type.INTEGER || rightType != Type.INTEGER) {
 				throw new SemanticAnalysisException(
 					"Arithmetic operator '" + op + "' requires Integer operands, " +
 					"got " + leftType.getName() + " and " + rightType.getName(), this);
 			}
-			return integerType;
+			return Type.INTEGER;
 		}
 		
 		if (op.equals(">") || op.equals("<") || op.equals(">=") || op.equals("<=")) {
-			if (!leftType.equals(integerType) || !rightType.equals(integerType)) {
+			if (leftType != Type.INTEGER || rightType != Type.INTEGER) {
 				throw new SemanticAnalysisException(
 					"Comparison operator '" + op + "' requires Integer operands, " +
 					"got " + leftType.getName() + " and " + rightType.getName(), this);
 			}
-			return booleanType;
+			return Type.BOOLEAN;
 		}
 		
 		if (op.equals("==")) {
@@ -68,21 +100,21 @@ public class BinaryOp extends Expression {
 					"Equality operator '==' requires operands of the same type, " +
 					"got " + leftType.getName() + " and " + rightType.getName(), this);
 			}
-			if (!leftType.equals(integerType) && !leftType.equals(booleanType)) {
+			if (leftType != Type.INTEGER && leftType != Type.BOOLEAN) {
 				throw new SemanticAnalysisException(
 					"Equality operator '==' requires Integer or Boolean operands, " +
 					"got " + leftType.getName(), this);
 			}
-			return booleanType;
+			return Type.BOOLEAN;
 		}
 		
 		if (op.equals("and") || op.equals("or")) {
-			if (!leftType.equals(booleanType) || !rightType.equals(booleanType)) {
+			if (leftType != Type.BOOLEAN || rightType != Type.BOOLEAN) {
 				throw new SemanticAnalysisException(
 					"Logical operator '" + op + "' requires Boolean operands, " +
 					"got " + leftType.getName() + " and " + rightType.getName(), this);
 			}
-			return booleanType;
+			return Type.BOOLEAN;
 		}
 		
 		throw new SemanticAnalysisException(
@@ -90,14 +122,29 @@ public class BinaryOp extends Expression {
 	}
 	
 	public String toString() {
+		if (height > OperatorWalk.MAX_RECURSIVE_HEIGHT) {
+			return OperatorWalk.format(this);
+		}
 		return "(" + left + " " + op + " " + right + ")";
 	}
 	
 	public Value evaluate(Map<String, FunctionDecl> funcMap,
-	                     Map<String, Value> varAndParamMap) throws ExecutionException {
+	                     Value[] frame) throws ExecutionException {
+		
+		if (height > OperatorWalk.MAX_RECURSIVE_HEIGHT) {
+			return OperatorWalk.evaluate(this, funcMap, frame);
+		}
 		
-		Value leftValue = left.evaluate(funcMap, varAndParamMap);
-		Value rightValue = right.evaluate(funcMap, varAndParamMap);
+		Value leftValue = left.evaluate(funcMap, frame);
+		Value rightValue = right.evaluate(funcMap, frame);
+		return compute(leftValue, rightValue);
+	}
+	
+	/**
+	 * Applies the operator to the values of the operands, which have
+	 * already been evaluated (left first).
+	 */
+	public Value compute(Value leftValue, Value rightValue) throws ExecutionException {
 		
 		if (op.equals("+") || op.equals("-") || op.equals("*") || 
 		    op.equals("/") || op.equals("%")) {
@@ -0,0 +1,98 @@
+package splat.parser.elements;
+
+import java.util.List;
+import java.util.Map;
+import splat.executor.BooleanValue;
+import splat.executor.ExecutionException;
+import splat.executor.IntegerValue;
+import splat.executor.ReturnFromCall;
+import splat.executor.Value;
+
+/**
+ * A while loop that steps a counter by a constant up to a bound:
+ *
+ *   while (i < bound) do ... ; i := (i + step) ; end while ;
+ *
+ * where the comparison is any of <, <=, > and >=, either way around,
+ * nothing else in the loop assigns the counter, and the bound does not
+ * change while the loop runs.
+ *
+ * The condition is evaluated as usual the first time, so that it fails
+ * as it would in a while loop.  After that the counter is kept in an int
+ * and compared with the bound's int value, and it is only stored back in
+ * the counter's slot when the statements of the loop read it, or when
+ * the loop ends.  Anything else sees the loop as the while loop it is.
+ */
+public class CountedLoop extends WhileLoop {
+
+  private Variable counter;
+  private Expression bound;
+  private int step;
+
+  // Whether the loop runs while the counter is below the bound (or else
+  // above it), and whether it runs at the bound too
+  private boolean below;
+  private boolean inclusive;
+  private boolean counterRead;
+
+  // The statements of the loop, without the step
+  private List<Statement> body;
+
+  /**
+   * Creates a counted loop from the given while loop, whose condition
+   * compares the given counter with the given bound using op (as if the
+   * counter were on the left), and whose last statement adds step to the
+   * counter.  counterRead tells whether the other statements read the
+   * counter.
+   */
+  public CountedLoop(WhileLoop whileLoop, Variable counter, Expression bound, String op, int step,
+      boolean counterRead) {
+    super(whileLoop, whileLoop.getCondition(), whileLoop.getStmts());
+    this.counter = counter;
+    this.bound = bound;
+    this.below = op.startsWith("<");
+    this.inclusive = op.endsWith("=");
+    this.step = step;
+    this.counterRead = counterRead;
+    this.body = whileLoop.getStmts().subList(0, whileLoop.getStmts().size() - 1);
+  }
+
+  public void execute(Map<String, FunctionDecl> funcMap,
+      Value[] frame) throws ReturnFromCall, ExecutionException {
+
+    Value conditionValue = getCondition().evaluate(funcMap, frame);
+    if (!(conditionValue instanceof BooleanValue)) {
+      throw new ExecutionException("Condition must be Boolean", this);
+    }
+    if (!((BooleanValue) conditionValue).getValue()) {
+      return;
+    }
+
+    // Both are Integers, or the comparison would have failed
+    int slot = counter.getSlot();
+    int i = ((IntegerValue) frame[slot]).getValue();
+    int limit = ((IntegerValue) bound.evaluate(funcMap, frame)).getValue();
+
+    do {
+      for (Statement stmt : body) {
+        stmt.execute(funcMap, frame);
+      }
+      i += step;
+      if (counterRead) {
+        frame[slot] = new IntegerValue(i);
+      }
+    } while (compare(i, limit));
+
+    if (!counterRead) {
+      frame[slot] = new IntegerValue(i);
+    }
+  }
+
+  private boolean compare(int i, int limit) {
+    if (below) {
+      return inclusive ? i <= limit : i < limit;
+    } else {
+      return inclusive ? i >= limit : i > limit;
+    }
+  }
+}
@@ -7,6 +7,13 @@ public abstract class Declaration extends ASTElement {
 	public Declaration(Token tok) {
 		super(tok);
 	}
+
+	/**
+	 * Creates a declaration at the position of the given element.
+	 */
+	protected Declaration(ASTElement elem) {
+		super(elem);
+	}
 	
 	public abstract String getLabel();
 }
@@ -8,10 +8,37 @@ import splat.semanticanalyzer.SemanticAnalysisException;
 
 public abstract class Expression extends ASTElement {
 
+	// Found by analyzeAndGetType()
+	private Type type;
+
 	public Expression(Token tok) {
 		super(tok);
 	}
 
+	/**
+	 * Creates an expression at the position of the given element.
+	 */
+	protected Expression(ASTElement elem) {
+		super(elem);
+	}
+
+	/**
+	 * Returns the type of this expression, as found by the last call of
+	 * analyzeAndGetType(), or null if it has not been analyzed.
+	 */
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Records the type analyzeAndGetType() found for this expression, and
+	 * returns it.
+	 */
+	Type recordType(Type type) {
+		this.type = type;
+		return type;
+	}
+
 	/**
 	 * This will be needed for Phase 3 - this abstract method will need to be
 	 * implemented by every Expression subclass.  This method does two things:
@@ -43,13 +70,13 @@ public abstract class Expression extends ASTElement {
 	 * 
 	 * funcMap is needed in case this expression or a sub-expression contains
 	 * a function call -- we will have to evaluate the individual arguments and 
-	 * create a new varAndParamMap to bind the function params to the new values
+	 * create a new frame to bind the function params to the new values
 	 * and then execute the function body.  More on this later...
 	 *  
-	 * varAndParamMap is needed in case this expression or a sub-expression
-	 * contains variables or parameters -- we use this map to keep track of the
-	 * values of the items that are currently in scope
+	 * frame is needed in case this expression or a sub-expression contains
+	 * variables or parameters -- it holds the values of the items that are
+	 * currently in scope, each at the slot the Resolver gave it
 	 */
 	public abstract Value evaluate(Map<String, FunctionDecl> funcMap,
-                                Map<String, Value> varAndParamMap) throws ExecutionException;
+                                Value[] frame) throws ExecutionException;
 }
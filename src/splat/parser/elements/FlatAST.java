@@ -0,0 +1,559 @@
+package splat.parser.elements;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import splat.parser.ParseException;
+
+/**
+ * A compact form of a ProgramAST for very large programs.  Nodes are
+ * numbered from 0 (the program), and stored as a struct of int arrays
+ * instead of one object each: kind, first child, next sibling, an operand
+ * whose meaning depends on the kind, and the source position.  Labels,
+ * type names and string literals are kept once each in a string table,
+ * and operands refer to them by index.
+ *
+ * The children of a node, in order:
+ *
+ *   PROGRAM      its declarations, then a BODY with the statements
+ *   VAR_DECL     a TYPE                           (operand: label)
+ *   FUNC_DECL    a TYPE for the return type, a PARAMS and a LOCALS of
+ *                VAR_DECLs, and a BODY            (operand: label)
+ *   ASSIGN       the expression                   (operand: label)
+ *   CALL_STMT    the arguments                    (operand: label)
+ *   WHILE        the condition and a BODY
+ *   IF           the condition, a BODY, and a second BODY if there is an
+ *                'else'
+ *   PRINT        the expression
+ *   RETURN       the expression, if any
+ *   UNARY        the operand                      (operand: operator)
+ *   BINARY       the left and right operands      (operand: operator)
+ *   CALL_EXPR    the arguments                    (operand: label)
+ *
+ * TYPE, VARIABLE and STRING_LITERAL have a string as their operand,
+ * INT_LITERAL its value and BOOL_LITERAL 0 or 1.
+ *
+ * The nodes of each expression are stored in post-order: an expression
+ * node comes right after its last operand, and its subtree is the range
+ * from its leftmost leaf up to itself.  So an expression can be evaluated
+ * in one pass over that range, without recursion.
+ */
+public final class FlatAST {
+
+	public static final int PROGRAM = 0;
+	public static final int BODY = 1;
+	public static final int VAR_DECL = 2;
+	public static final int FUNC_DECL = 3;
+	public static final int PARAMS = 4;
+	public static final int LOCALS = 5;
+	public static final int TYPE = 6;
+	public static final int ASSIGN = 7;
+	public static final int CALL_STMT = 8;
+	public static final int WHILE = 9;
+	public static final int IF = 10;
+	public static final int PRINT = 11;
+	public static final int PRINT_LINE = 12;
+	public static final int RETURN = 13;
+	public static final int INT_LITERAL = 14;
+	public static final int BOOL_LITERAL = 15;
+	public static final int STRING_LITERAL = 16;
+	public static final int VARIABLE = 17;
+	public static final int UNARY = 18;
+	public static final int BINARY = 19;
+	public static final int CALL_EXPR = 20;
+
+	// Operators, as the operands of UNARY and BINARY nodes
+	public static final int ADD = 0;
+	public static final int SUBTRACT = 1;
+	public static final int MULTIPLY = 2;
+	public static final int DIVIDE = 3;
+	public static final int MODULO = 4;
+	public static final int GREATER = 5;
+	public static final int LESS = 6;
+	public static final int GREATER_EQUAL = 7;
+	public static final int LESS_EQUAL = 8;
+	public static final int EQUAL = 9;
+	public static final int AND = 10;
+	public static final int OR = 11;
+	public static final int NOT = 12;
+	public static final int NEGATE = 13;
+
+	private static final String[] OPERATORS = {
+		"+", "-", "*", "/", "%", ">", "<", ">=", "<=", "==", "and", "or", "not", "-"
+	};
+
+	private int[] kinds;
+	private int[] firstChildren;
+	private int[] nextSiblings;
+	private int[] operands;
+	private int[] lines;
+	private int[] columns;
+	private int size;
+
+	private String[] strings;
+	private int stringCount;
+
+	// Only used while converting
+	private Map<String, Integer> stringIndex = new HashMap<String, Integer>();
+
+	private FlatAST(int capacity) {
+		kinds = new int[capacity];
+		firstChildren = new int[capacity];
+		nextSiblings = new int[capacity];
+		operands = new int[capacity];
+		lines = new int[capacity];
+		columns = new int[capacity];
+		strings = new String[64];
+	}
+
+	/**
+	 * Converts a program, parsing any function bodies that were skipped by
+	 * a lazy parser.  The program should have passed semantic analysis.
+	 */
+	public static FlatAST of(ProgramAST program) throws ParseException {
+
+		FlatAST ast = new FlatAST(1024);
+		int root = ast.add(PROGRAM, 0, program);
+
+		List<Integer> children = new ArrayList<Integer>();
+		for (Declaration decl : program.getDecls()) {
+			if (decl instanceof FunctionDecl) {
+				children.add(ast.addFuncDecl((FunctionDecl) decl));
+			} else {
+				children.add(ast.addVarDecl((VariableDecl) decl));
+			}
+		}
+		children.add(ast.addBody(program.getStmts(), program));
+		ast.link(root, children);
+
+		ast.trim();
+		return ast;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int kind(int node) {
+		return kinds[node];
+	}
+
+	/**
+	 * Returns the first child of the node, or -1 if it has none.
+	 */
+	public int firstChild(int node) {
+		return firstChildren[node];
+	}
+
+	/**
+	 * Returns the next child of the node's parent, or -1 if it is the
+	 * last.
+	 */
+	public int nextSibling(int node) {
+		return nextSiblings[node];
+	}
+
+	public int operand(int node) {
+		return operands[node];
+	}
+
+	public int line(int node) {
+		return lines[node];
+	}
+
+	public int column(int node) {
+		return columns[node];
+	}
+
+	public String string(int index) {
+		return strings[index];
+	}
+
+	public int stringCount() {
+		return stringCount;
+	}
+
+	/**
+	 * Returns the number of children of the node.
+	 */
+	public int childCount(int node) {
+		int count = 0;
+		for (int child = firstChildren[node]; child >= 0; child = nextSiblings[child]) {
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the first node of the post-order range of an expression,
+	 * i.e. its leftmost leaf.
+	 */
+	public int expressionStart(int node) {
+		while (firstChildren[node] >= 0) {
+			node = firstChildren[node];
+		}
+		return node;
+	}
+
+	public static String operatorSpelling(int operator) {
+		return OPERATORS[operator];
+	}
+
+	/**
+	 * Returns the number of bytes writeTo() writes.
+	 */
+	public int serializedSize() {
+		long bytes = 8 + 24L * size;
+		for (int i = 0; i < stringCount; i++) {
+			bytes += 4 + 2L * strings[i].length();
+		}
+		if (bytes > Integer.MAX_VALUE) {
+			throw new IllegalStateException("Program too large to serialize");
+		}
+		return (int) bytes;
+	}
+
+	/**
+	 * Writes the arrays and the string table to the buffer, little-endian,
+	 * in a form that readFrom() can load with bulk copies.
+	 */
+	public void writeTo(ByteBuffer buf) {
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		buf.putInt(size);
+		buf.putInt(stringCount);
+
+		IntBuffer ints = buf.asIntBuffer();
+		for (int[] array : new int[][] { kinds, firstChildren, nextSiblings, operands, lines, columns }) {
+			ints.put(array, 0, size);
+		}
+		buf.position(buf.position() + 24 * size);
+
+		for (int i = 0; i < stringCount; i++) {
+			buf.putInt(strings[i].length());
+			buf.asCharBuffer().put(strings[i]);
+			buf.position(buf.position() + 2 * strings[i].length());
+		}
+	}
+
+	/**
+	 * Reads a FlatAST written by writeTo().  Throws an
+	 * IllegalArgumentException (or a BufferUnderflowException) if the
+	 * buffer doesn't hold a well-formed one.
+	 */
+	public static FlatAST readFrom(ByteBuffer buf) {
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		int size = buf.getInt();
+		int stringCount = buf.getInt();
+		if (size < 1 || stringCount < 0 || (long) size * 24 > buf.remaining()) {
+			throw new IllegalArgumentException("Bad FlatAST header");
+		}
+
+		FlatAST ast = new FlatAST(size);
+		ast.size = size;
+		IntBuffer ints = buf.asIntBuffer();
+		for (int[] array : new int[][] { ast.kinds, ast.firstChildren, ast.nextSiblings,
+				ast.operands, ast.lines, ast.columns }) {
+			ints.get(array);
+		}
+		buf.position(buf.position() + 24 * size);
+
+		ast.strings = new String[stringCount];
+		ast.stringCount = stringCount;
+		for (int i = 0; i < stringCount; i++) {
+			int length = buf.getInt();
+			if (length < 0 || 2L * length > buf.remaining()) {
+				throw new IllegalArgumentException("Bad FlatAST string");
+			}
+			CharBuffer chars = buf.asCharBuffer();
+			chars.limit(length);
+			ast.strings[i] = chars.toString();
+			buf.position(buf.position() + 2 * length);
+		}
+		ast.stringIndex = null;
+
+		ast.check();
+		return ast;
+	}
+
+	/*
+	 * Checks that the links stay within the nodes and the operands within
+	 * the string table, so a damaged file can't send an interpreter off
+	 * the end of the arrays.
+	 */
+	private void check() {
+		for (int node = 0; node < size; node++) {
+			int kind = kinds[node];
+			if (kind < PROGRAM || kind > CALL_EXPR
+					|| firstChildren[node] < -1 || firstChildren[node] >= size
+					|| nextSiblings[node] < -1 || nextSiblings[node] >= size) {
+				throw new IllegalArgumentException("Bad FlatAST node " + node);
+			}
+			boolean hasString = kind == VAR_DECL || kind == FUNC_DECL || kind == TYPE
+					|| kind == ASSIGN || kind == CALL_STMT || kind == STRING_LITERAL
+					|| kind == VARIABLE || kind == CALL_EXPR;
+			if (hasString && (operands[node] < 0 || operands[node] >= stringCount)) {
+				throw new IllegalArgumentException("Bad FlatAST operand " + node);
+			}
+		}
+	}
+
+	private int addVarDecl(VariableDecl varDecl) {
+		int node = add(VAR_DECL, intern(varDecl.getLabel()), varDecl);
+		// add() may grow the arrays, so it must run before firstChildren is read
+		int typeNode = add(TYPE, intern(varDecl.getType().getName()), varDecl);
+		firstChildren[node] = typeNode;
+		return node;
+	}
+
+	private int addFuncDecl(FunctionDecl funcDecl) throws ParseException {
+
+		funcDecl.parseBody();
+		int node = add(FUNC_DECL, intern(funcDecl.getLabel()), funcDecl);
+
+		List<Integer> children = new ArrayList<Integer>();
+		children.add(add(TYPE, intern(funcDecl.getRetType().getName()), funcDecl));
+		children.add(addVarDecls(PARAMS, funcDecl.getParams(), funcDecl));
+		children.add(addVarDecls(LOCALS, funcDecl.getLocVarDecls(), funcDecl));
+		children.add(addBody(funcDecl.getStmts(), funcDecl));
+		link(node, children);
+		return node;
+	}
+
+	private int addVarDecls(int kind, List<VariableDecl> varDecls, ASTElement elem) {
+		int node = add(kind, 0, elem);
+		List<Integer> children = new ArrayList<Integer>(varDecls.size());
+		for (VariableDecl varDecl : varDecls) {
+			children.add(addVarDecl(varDecl));
+		}
+		link(node, children);
+		return node;
+	}
+
+	private int addBody(List<Statement> stmts, ASTElement elem) {
+		int node = add(BODY, 0, elem);
+		List<Integer> children = new ArrayList<Integer>(stmts.size());
+		for (Statement stmt : stmts) {
+			children.add(addStmt(stmt));
+		}
+		link(node, children);
+		return node;
+	}
+
+	private int addStmt(Statement stmt) {
+
+		List<Integer> children = new ArrayList<Integer>();
+		int node;
+
+		if (stmt instanceof Assignment) {
+			Assignment assignment = (Assignment) stmt;
+			node = add(ASSIGN, intern(assignment.getLabel()), stmt);
+			children.add(addExpression(assignment.getExpr()));
+
+		} else if (stmt instanceof FunctionCallStmt) {
+			FunctionCallStmt call = (FunctionCallStmt) stmt;
+			node = add(CALL_STMT, intern(call.getLabel()), stmt);
+			for (Expression arg : call.getArgs()) {
+				children.add(addExpression(arg));
+			}
+
+		} else if (stmt instanceof WhileLoop) {
+			WhileLoop loop = (WhileLoop) stmt;
+			node = add(WHILE, 0, stmt);
+			children.add(addExpression(loop.getCondition()));
+			children.add(addBody(loop.getStmts(), stmt));
+
+		} else if (stmt instanceof IfThen) {
+			IfThen ifThen = (IfThen) stmt;
+			node = add(IF, 0, stmt);
+			children.add(addExpression(ifThen.getCondition()));
+			children.add(addBody(ifThen.getThenStmts(), stmt));
+			if (ifThen.getElseStmts() != null) {
+				children.add(addBody(ifThen.getElseStmts(), stmt));
+			}
+
+		} else if (stmt instanceof Print) {
+			node = add(PRINT, 0, stmt);
+			children.add(addExpression(((Print) stmt).getExpr()));
+
+		} else if (stmt instanceof PrintLine) {
+			node = add(PRINT_LINE, 0, stmt);
+
+		} else if (stmt instanceof Return) {
+			node = add(RETURN, 0, stmt);
+			Expression expr = ((Return) stmt).getExpr();
+			if (expr != null) {
+				children.add(addExpression(expr));
+			}
+
+		} else {
+			throw new IllegalArgumentException("Unknown statement: " + stmt.getClass().getName());
+		}
+
+		link(node, children);
+		return node;
+	}
+
+	/*
+	 * Adds the nodes of an expression in post-order, and returns the index
+	 * of its root (the last one).  Walks the tree with an explicit stack,
+	 * as expressions can be nested far too deep for recursion.
+	 */
+	private int addExpression(Expression root) {
+
+		// Expressions to add, each pushed once to expand its operands and
+		// once more to add itself after them
+		List<Expression> pending = new ArrayList<Expression>();
+		List<Boolean> expanded = new ArrayList<Boolean>();
+		// Nodes added whose parent isn't added yet
+		int[] added = new int[16];
+		int addedCount = 0;
+
+		pending.add(root);
+		expanded.add(false);
+
+		while (!pending.isEmpty()) {
+			int top = pending.size() - 1;
+			Expression expr = pending.get(top);
+
+			if (!expanded.get(top)) {
+				expanded.set(top, true);
+				List<Expression> operands = operandsOf(expr);
+				for (int i = operands.size() - 1; i >= 0; i--) {
+					pending.add(operands.get(i));
+					expanded.add(false);
+				}
+				continue;
+			}
+
+			pending.remove(top);
+			expanded.remove(top);
+
+			int node = addExpressionNode(expr);
+			int operandCount = operandsOf(expr).size();
+			addedCount -= operandCount;
+			int prev = -1;
+			for (int i = addedCount; i < addedCount + operandCount; i++) {
+				if (prev < 0) {
+					firstChildren[node] = added[i];
+				} else {
+					nextSiblings[prev] = added[i];
+				}
+				prev = added[i];
+			}
+
+			if (addedCount == added.length) {
+				added = Arrays.copyOf(added, added.length * 2);
+			}
+			added[addedCount++] = node;
+		}
+
+		return added[0];
+	}
+
+	private static List<Expression> operandsOf(Expression expr) {
+		if (expr instanceof BinaryOp) {
+			BinaryOp binaryOp = (BinaryOp) expr;
+			return Arrays.asList(binaryOp.getLeft(), binaryOp.getRight());
+		} else if (expr instanceof UnaryOp) {
+			return Arrays.asList(((UnaryOp) expr).getExpr());
+		} else if (expr instanceof FunctionCallExpr) {
+			return ((FunctionCallExpr) expr).getArgs();
+		}
+		return Arrays.asList();
+	}
+
+	private int addExpressionNode(Expression expr) {
+
+		if (expr instanceof Literal) {
+			String value = ((Literal) expr).getValue();
+			if (value.equals("true") || value.equals("false")) {
+				return add(BOOL_LITERAL, value.equals("true") ? 1 : 0, expr);
+			} else if (value.startsWith("\"") && value.endsWith("\"")) {
+				return add(STRING_LITERAL, intern(value.substring(1, value.length() - 1)), expr);
+			} else {
+				return add(INT_LITERAL, Integer.parseInt(value), expr);
+			}
+
+		} else if (expr instanceof Variable) {
+			return add(VARIABLE, intern(((Variable) expr).getLabel()), expr);
+
+		} else if (expr instanceof UnaryOp) {
+			String op = ((UnaryOp) expr).getOp();
+			return add(UNARY, op.equals("not") ? NOT : NEGATE, expr);
+
+		} else if (expr instanceof BinaryOp) {
+			String op = ((BinaryOp) expr).getOp();
+			for (int operator = ADD; operator <= OR; operator++) {
+				if (OPERATORS[operator].equals(op)) {
+					return add(BINARY, operator, expr);
+				}
+			}
+			throw new IllegalArgumentException("Unknown binary operator: " + op);
+
+		} else if (expr instanceof FunctionCallExpr) {
+			return add(CALL_EXPR, intern(((FunctionCallExpr) expr).getLabel()), expr);
+		}
+
+		throw new IllegalArgumentException("Unknown expression: " + expr.getClass().getName());
+	}
+
+	private int add(int kind, int operand, ASTElement elem) {
+		if (size == kinds.length) {
+			resize(size * 2);
+		}
+		kinds[size] = kind;
+		firstChildren[size] = -1;
+		nextSiblings[size] = -1;
+		operands[size] = operand;
+		lines[size] = elem.getLine();
+		columns[size] = elem.getColumn();
+		return size++;
+	}
+
+	private void link(int parent, List<Integer> children) {
+		int prev = -1;
+		for (int child : children) {
+			if (prev < 0) {
+				firstChildren[parent] = child;
+			} else {
+				nextSiblings[prev] = child;
+			}
+			prev = child;
+		}
+	}
+
+	private int intern(String text) {
+		Integer index = stringIndex.get(text);
+		if (index == null) {
+			if (stringCount == strings.length) {
+				strings = Arrays.copyOf(strings, stringCount * 2);
+			}
+			index = stringCount;
+			strings[stringCount++] = text;
+			stringIndex.put(text, index);
+		}
+		return index;
+	}
+
+	private void resize(int capacity) {
+		kinds = Arrays.copyOf(kinds, capacity);
+		firstChildren = Arrays.copyOf(firstChildren, capacity);
+		nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+		operands = Arrays.copyOf(operands, capacity);
+		lines = Arrays.copyOf(lines, capacity);
+		columns = Arrays.copyOf(columns, capacity);
+	}
+
+	private void trim() {
+		resize(size);
+		strings = Arrays.copyOf(strings, stringCount);
+		stringIndex = null;
+	}
+}
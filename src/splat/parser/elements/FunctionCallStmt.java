@@ -1,6 +1,5 @@
 package splat.parser.elements;
 
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import splat.executor.ExecutionException;
@@ -10,6 +9,7 @@ import splat.executor.StringValue;
 import splat.executor.ReturnFromCall;
 import splat.executor.Value;
 import splat.lexer.Token;
+import splat.parser.ParseException;
 import splat.semanticanalyzer.SemanticAnalysisException;
 
 public class FunctionCallStmt extends Statement {
@@ -23,6 +23,15 @@ public class FunctionCallStmt extends Statement {
 		this.args = args;
 	}
 	
+	/**
+	 * Creates a copy of the given call, with the given arguments.
+	 */
+	public FunctionCallStmt(FunctionCallStmt call, List<Expression> args) {
+		super(call);
+		this.label = call.label;
+		this.args = args;
+	}
+	
 	public String getLabel() {
 		return label;
 	}
@@ -71,51 +80,52 @@ public class FunctionCallStmt extends Statement {
 	}
 	
 	public void execute(Map<String, FunctionDecl> funcMap,
-	                   Map<String, Value> varAndParamMap) throws ReturnFromCall, ExecutionException {
+	                   Value[] frame) throws ReturnFromCall, ExecutionException {
 		
 		FunctionDecl funcDecl = funcMap.get(label);
 		if (funcDecl == null) {
 			throw new ExecutionException("Function '" + label + "' is not declared", this);
 		}
 		
-		List<Value> argValues = new java.util.ArrayList<Value>();
-		for (Expression arg : args) {
-			Value argValue = arg.evaluate(funcMap, varAndParamMap);
-			argValues.add(argValue);
+		if (!funcDecl.isBodyParsed()) {
+			try {
+				funcDecl.parseBody();
+			} catch (ParseException ex) {
+				throw new ExecutionException(ex.getMessage(), ex.getLine(), ex.getColumn());
+			}
 		}
 		
-		Map<String, Value> funcScope = new HashMap<String, Value>();
+		// The arguments go straight into the parameters' slots, in order
+		Value[] funcFrame = new Value[funcDecl.getFrameSize()];
 		
 		List<VariableDecl> params = funcDecl.getParams();
 		for (int i = 0; i < params.size(); i++) {
 			VariableDecl param = params.get(i);
-			funcScope.put(param.getLabel(), argValues.get(i));
+			funcFrame[param.getSlot()] = args.get(i).evaluate(funcMap, frame);
 		}
 		
 		for (VariableDecl locVar : funcDecl.getLocVarDecls()) {
 			Value defaultValue = createDefaultValue(locVar.getType());
-			funcScope.put(locVar.getLabel(), defaultValue);
+			funcFrame[locVar.getSlot()] = defaultValue;
 		}
 		
 		try {
 			for (Statement stmt : funcDecl.getStmts()) {
-				stmt.execute(funcMap, funcScope);
+				stmt.execute(funcMap, funcFrame);
 			}
 		} catch (ReturnFromCall ex) {
 		}
 	}
 	
 	private Value createDefaultValue(Type type) throws ExecutionException {
-		String typeName = type.getName();
-		
-		if (typeName.equals("Integer")) {
+		if (type == Type.INTEGER) {
 			return new IntegerValue(0);
-		} else if (typeName.equals("Boolean")) {
+		} else if (type == Type.BOOLEAN) {
 			return new BooleanValue(false);
-		} else if (typeName.equals("String")) {
+		} else if (type == Type.STRING) {
 			return new StringValue("");
 		} else {
-			throw new ExecutionException("Unknown type: " + typeName, this);
+			throw new ExecutionException("Unknown type: " + type.getName(), this);
 		}
 	}
 }
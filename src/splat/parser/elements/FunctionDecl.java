@@ -2,14 +2,28 @@ package splat.parser.elements;
 
 import java.util.List;
 import splat.lexer.Token;
+import splat.parser.ParseException;
 
 public class FunctionDecl extends Declaration {
 
+	/**
+	 * A function body that a lazy parser skipped over.  It is parsed, and
+	 * handed to setBody(), the first time the function is analyzed or
+	 * called.
+	 */
+	public interface LazyBody {
+		void parseInto(FunctionDecl funcDecl) throws ParseException;
+	}
+
 	private String label;
 	private List<VariableDecl> params;
 	private Type retType;
 	private List<VariableDecl> locVarDecls;
 	private List<Statement> stmts;
+	private volatile LazyBody lazyBody;
+	
+	// Number of parameters and local variables, set by the Resolver
+	private int frameSize = -1;
 	
 	public FunctionDecl(String label, List<VariableDecl> params, Type retType,
 						List<VariableDecl> locVarDecls, List<Statement> stmts, Token tok) {
@@ -21,6 +35,53 @@ public class FunctionDecl extends Declaration {
 		this.stmts = stmts;
 	}
 
+	/**
+	 * Creates a function whose local variables and statements have not
+	 * been parsed yet.
+	 */
+	public FunctionDecl(String label, List<VariableDecl> params, Type retType,
+						LazyBody lazyBody, Token tok) {
+		super(tok);
+		this.label = label;
+		this.params = params;
+		this.retType = retType;
+		this.lazyBody = lazyBody;
+	}
+
+	/**
+	 * Creates a copy of the given function, whose body must have been
+	 * parsed, with the given local variables and statements.
+	 */
+	public FunctionDecl(FunctionDecl funcDecl, List<VariableDecl> locVarDecls,
+						List<Statement> stmts) {
+		super(funcDecl);
+		this.label = funcDecl.label;
+		this.params = funcDecl.params;
+		this.retType = funcDecl.retType;
+		this.locVarDecls = locVarDecls;
+		this.stmts = stmts;
+	}
+
+	public boolean isBodyParsed() {
+		return lazyBody == null;
+	}
+
+	/**
+	 * Parses the body of the function if that was deferred, reporting any
+	 * syntax error in it.  Does nothing if the body is already parsed.
+	 */
+	public synchronized void parseBody() throws ParseException {
+		if (lazyBody != null) {
+			lazyBody.parseInto(this);
+			lazyBody = null;
+		}
+	}
+
+	public void setBody(List<VariableDecl> locVarDecls, List<Statement> stmts) {
+		this.locVarDecls = locVarDecls;
+		this.stmts = stmts;
+	}
+
 	public String getLabel() {
 		return label;
 	}
@@ -33,13 +94,29 @@ public class FunctionDecl extends Declaration {
 		return retType;
 	}
 	
+	public int getFrameSize() {
+		return frameSize;
+	}
+	
+	public void setFrameSize(int frameSize) {
+		this.frameSize = frameSize;
+	}
+	
 	public List<VariableDecl> getLocVarDecls() {
+		checkBodyParsed();
 		return locVarDecls;
 	}
 	
 	public List<Statement> getStmts() {
+		checkBodyParsed();
 		return stmts;
 	}
+
+	private void checkBodyParsed() {
+		if (lazyBody != null) {
+			throw new IllegalStateException("Body of function '" + label + "' has not been parsed");
+		}
+	}
 	
 	public String toString() {
 		String result = label + "(";
@@ -48,6 +125,9 @@ public class FunctionDecl extends Declaration {
 			result += params.get(i).getLabel() + " : " + params.get(i).getType();
 		}
 		result += ") : " + retType + " is\n";
+		if (lazyBody != null) {
+			return result + "   ...\nend ;";
+		}
 		for (VariableDecl decl : locVarDecls) {
 			result += "   " + decl + "\n";
 		}
@@ -23,6 +23,17 @@ public class IfThen extends Statement {
     this.elseStmts = elseStmts;
   }
 
+  /**
+   * Creates an if statement at the position of the given element.
+   */
+  public IfThen(ASTElement elem, Expression condition, List<Statement> thenStmts,
+      List<Statement> elseStmts) {
+    super(elem);
+    this.condition = condition;
+    this.thenStmts = thenStmts;
+    this.elseStmts = elseStmts;
+  }
+
   public Expression getCondition() {
     return condition;
   }
@@ -35,17 +46,26 @@ public class IfThen extends Statement {
     return elseStmts;
   }
 
-  public void analyze(Map<String, FunctionDecl> funcMap,
+  /**
+   * Checks the condition alone, without the nested statements.
+   */
+  public void analyzeCondition(Map<String, FunctionDecl> funcMap,
       Map<String, Type> varAndParamMap)
       throws SemanticAnalysisException {
 
     Type conditionType = condition.analyzeAndGetType(funcMap, varAndParamMap);
-    Type booleanType = new Type("Boolean");
-    if (!conditionType.equals(booleanType)) {
+    if (conditionType != Type.BOOLEAN) {
       throw new SemanticAnalysisException(
           "Condition in if statement must be Boolean, got " + conditionType.getName(),
           condition);
     }
+  }
+
+  public void analyze(Map<String, FunctionDecl> funcMap,
+      Map<String, Type> varAndParamMap)
+      throws SemanticAnalysisException {
+
+    analyzeCondition(funcMap, varAndParamMap);
 
     for (Statement stmt : thenStmts) {
       stmt.analyze(funcMap, varAndParamMap);
@@ -74,9 +94,9 @@ public class IfThen extends Statement {
   }
 
   public void execute(Map<String, FunctionDecl> funcMap,
-      Map<String, Value> varAndParamMap) throws ReturnFromCall, ExecutionException {
+      Value[] frame) throws ReturnFromCall, ExecutionException {
 
-    Value conditionValue = condition.evaluate(funcMap, varAndParamMap);
+    Value conditionValue = condition.evaluate(funcMap, frame);
 
     if (!(conditionValue instanceof BooleanValue)) {
       throw new ExecutionException("Condition must be Boolean", this);
@@ -86,11 +106,11 @@ public class IfThen extends Statement {
 
     if (boolValue.getValue()) {
       for (Statement stmt : thenStmts) {
-        stmt.execute(funcMap, varAndParamMap);
+        stmt.execute(funcMap, frame);
       }
     } else if (elseStmts != null) {
       for (Statement stmt : elseStmts) {
-        stmt.execute(funcMap, varAndParamMap);
+        stmt.execute(funcMap, frame);
       }
     }
   }
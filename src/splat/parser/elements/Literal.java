@@ -13,28 +13,59 @@ public class Literal extends Expression {
 
   private String value;
 
+  // The value of the literal, made the first time it is needed
+  private Value constant;
+
   public Literal(String value, Token tok) {
     super(tok);
     this.value = value;
   }
 
+  /**
+   * Creates a literal for a value found before the program runs, at the
+   * position of the given element.
+   */
+  public Literal(Value constant, ASTElement elem) {
+    super(elem);
+    this.constant = constant;
+    if (constant instanceof StringValue) {
+      this.value = "\"" + constant + "\"";
+      recordType(Type.STRING);
+    } else {
+      this.value = constant.toString();
+      recordType(constant instanceof BooleanValue ? Type.BOOLEAN : Type.INTEGER);
+    }
+  }
+
   public String getValue() {
     return value;
   }
 
+  /**
+   * Returns the value of this literal.  It is only made once, rather than
+   * every time the literal is evaluated.
+   */
+  public Value getConstant() throws ExecutionException {
+
+    if (constant == null) {
+      constant = parseConstant();
+    }
+    return constant;
+  }
+
   public Type analyzeAndGetType(Map<String, FunctionDecl> funcMap,
       Map<String, Type> varAndParamMap)
       throws SemanticAnalysisException {
 
     if (value.equals("true") || value.equals("false")) {
-      return new Type("Boolean");
+      return recordType(Type.BOOLEAN);
     } else if (value.startsWith("\"") && value.endsWith("\"")) {
-      return new Type("String");
+      return recordType(Type.STRING);
     } else {
 
       try {
         Integer.parseInt(value);
-        return new Type("Integer");
+        return recordType(Type.INTEGER);
       } catch (NumberFormatException e) {
         throw new SemanticAnalysisException("Invalid literal value: " + value, this);
       }
@@ -46,7 +77,11 @@ public class Literal extends Expression {
   }
 
   public Value evaluate(Map<String, FunctionDecl> funcMap,
-      Map<String, Value> varAndParamMap) throws ExecutionException {
+      Value[] frame) throws ExecutionException {
+    return getConstant();
+  }
+
+  private Value parseConstant() throws ExecutionException {
 
     if (value.equals("true")) {
       return new BooleanValue(true);
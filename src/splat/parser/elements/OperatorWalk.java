@@ -0,0 +1,203 @@
+package splat.parser.elements;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import splat.executor.ExecutionException;
+import splat.executor.Value;
+import splat.semanticanalyzer.SemanticAnalysisException;
+
+/**
+ * Iterative walks over trees of BinaryOp and UnaryOp nodes.  Expressions
+ * can be nested arbitrarily deep, so instead of recursing into operands,
+ * these keep the operators still waiting for their operands on an explicit
+ * stack.  Operands are visited left to right and each operator is applied
+ * after its operands, exactly like the recursive walk, so errors and side
+ * effects of function calls happen in the same order.  Any other kind of
+ * expression, and any operator subtree shallow enough to recurse into, is
+ * handed to its own analyzeAndGetType(), evaluate() or toString().
+ *
+ * The operator nodes only use these walks when they are more than
+ * MAX_RECURSIVE_HEIGHT operators deep, so that the common shallow
+ * expressions don't pay for the explicit stack.
+ */
+final class OperatorWalk {
+
+	static final int MAX_RECURSIVE_HEIGHT = 64;
+
+	private OperatorWalk() {
+	}
+
+	/**
+	 * Returns the number of nested operators in the given expression, or
+	 * 0 if it is not an operator.
+	 */
+	static int heightOf(Expression expr) {
+		if (expr instanceof BinaryOp) {
+			return ((BinaryOp) expr).getHeight();
+		} else if (expr instanceof UnaryOp) {
+			return ((UnaryOp) expr).getHeight();
+		}
+		return 0;
+	}
+
+	private static boolean isDeep(Expression expr) {
+		return heightOf(expr) > MAX_RECURSIVE_HEIGHT;
+	}
+
+	static Type analyze(Expression root, Map<String, FunctionDecl> funcMap,
+			Map<String, Type> varAndParamMap) throws SemanticAnalysisException {
+
+		WorkStack work = new WorkStack(root);
+		List<Type> operands = new ArrayList<Type>();
+
+		while (!work.isEmpty()) {
+			boolean expanded = work.topExpanded();
+			Expression expr = work.pop();
+
+			if (expr instanceof BinaryOp && isDeep(expr)) {
+				BinaryOp binOp = (BinaryOp) expr;
+				if (!expanded) {
+					work.pushOperands(binOp, binOp.getLeft(), binOp.getRight());
+				} else {
+					Type rightType = operands.remove(operands.size() - 1);
+					Type leftType = operands.remove(operands.size() - 1);
+					operands.add(binOp.getResultType(leftType, rightType));
+				}
+			} else if (expr instanceof UnaryOp && isDeep(expr)) {
+				UnaryOp unaryOp = (UnaryOp) expr;
+				if (!expanded) {
+					work.pushOperands(unaryOp, unaryOp.getExpr(), null);
+				} else {
+					Type exprType = operands.remove(operands.size() - 1);
+					operands.add(unaryOp.getResultType(exprType));
+				}
+			} else {
+				operands.add(expr.analyzeAndGetType(funcMap, varAndParamMap));
+			}
+		}
+
+		return operands.get(0);
+	}
+
+	static Value evaluate(Expression root, Map<String, FunctionDecl> funcMap,
+			Value[] frame) throws ExecutionException {
+
+		WorkStack work = new WorkStack(root);
+		List<Value> operands = new ArrayList<Value>();
+
+		while (!work.isEmpty()) {
+			boolean expanded = work.topExpanded();
+			Expression expr = work.pop();
+
+			if (expr instanceof BinaryOp && isDeep(expr)) {
+				BinaryOp binOp = (BinaryOp) expr;
+				if (!expanded) {
+					work.pushOperands(binOp, binOp.getLeft(), binOp.getRight());
+				} else {
+					Value rightValue = operands.remove(operands.size() - 1);
+					Value leftValue = operands.remove(operands.size() - 1);
+					operands.add(binOp.compute(leftValue, rightValue));
+				}
+			} else if (expr instanceof UnaryOp && isDeep(expr)) {
+				UnaryOp unaryOp = (UnaryOp) expr;
+				if (!expanded) {
+					work.pushOperands(unaryOp, unaryOp.getExpr(), null);
+				} else {
+					Value exprValue = operands.remove(operands.size() - 1);
+					operands.add(unaryOp.compute(exprValue));
+				}
+			} else {
+				operands.add(expr.evaluate(funcMap, frame));
+			}
+		}
+
+		return operands.get(0);
+	}
+
+	/**
+	 * Formats the expression like the recursive toString() methods would:
+	 * "(left op right)" and "(op expr)".
+	 */
+	static String format(Expression root) {
+
+		StringBuilder result = new StringBuilder();
+		List<Object> pending = new ArrayList<Object>();
+		pending.add(root);
+
+		while (!pending.isEmpty()) {
+			Object item = pending.remove(pending.size() - 1);
+
+			if (item instanceof BinaryOp && isDeep((BinaryOp) item)) {
+				BinaryOp binOp = (BinaryOp) item;
+				result.append('(');
+				pending.add(")");
+				pending.add(binOp.getRight());
+				pending.add(" " + binOp.getOp() + " ");
+				pending.add(binOp.getLeft());
+			} else if (item instanceof UnaryOp && isDeep((UnaryOp) item)) {
+				UnaryOp unaryOp = (UnaryOp) item;
+				result.append('(').append(unaryOp.getOp());
+				pending.add(")");
+				pending.add(unaryOp.getExpr());
+			} else {
+				result.append(item);
+			}
+		}
+
+		return result.toString();
+	}
+
+	/**
+	 * A stack of expressions still to visit.  An operator is pushed back
+	 * as expanded below its operands, and completed once it is popped
+	 * again.
+	 */
+	private static class WorkStack {
+
+		private Expression[] exprs = new Expression[16];
+		private boolean[] expanded = new boolean[16];
+		private int size;
+
+		WorkStack(Expression root) {
+			push(root, false);
+		}
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		boolean topExpanded() {
+			return expanded[size - 1];
+		}
+
+		Expression pop() {
+			Expression expr = exprs[--size];
+			exprs[size] = null;
+			return expr;
+		}
+
+		/**
+		 * Pushes the operator back as expanded, and its operands so that
+		 * the left one is visited first.
+		 */
+		void pushOperands(Expression operator, Expression left, Expression right) {
+			push(operator, true);
+			if (right != null) {
+				push(right, false);
+			}
+			push(left, false);
+		}
+
+		private void push(Expression expr, boolean isExpanded) {
+			if (size == exprs.length) {
+				exprs = Arrays.copyOf(exprs, size * 2);
+				expanded = Arrays.copyOf(expanded, size * 2);
+			}
+			exprs[size] = expr;
+			expanded[size] = isExpanded;
+			size++;
+		}
+	}
+}
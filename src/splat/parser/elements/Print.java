@@ -16,6 +16,14 @@ public class Print extends Statement {
     this.expr = expr;
   }
 
+  /**
+   * Creates a print statement at the position of the given element.
+   */
+  public Print(ASTElement elem, Expression expr) {
+    super(elem);
+    this.expr = expr;
+  }
+
   public Expression getExpr() {
     return expr;
   }
@@ -32,9 +40,9 @@ public class Print extends Statement {
   }
 
   public void execute(Map<String, FunctionDecl> funcMap,
-      Map<String, Value> varAndParamMap) throws ReturnFromCall, ExecutionException {
+      Value[] frame) throws ReturnFromCall, ExecutionException {
 
-    Value exprValue = expr.evaluate(funcMap, varAndParamMap);
+    Value exprValue = expr.evaluate(funcMap, frame);
     System.out.print(exprValue.toString());
   }
 }
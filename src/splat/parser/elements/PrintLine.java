@@ -24,7 +24,7 @@ public class PrintLine extends Statement {
   }
 
   public void execute(Map<String, FunctionDecl> funcMap,
-      Map<String, Value> varAndParamMap) throws ReturnFromCall, ExecutionException {
+      Value[] frame) throws ReturnFromCall, ExecutionException {
 
     System.out.println();
   }
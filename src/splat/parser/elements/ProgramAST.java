@@ -9,6 +9,9 @@ public class ProgramAST extends ASTElement {
 	private List<Declaration> decls;
 	private List<Statement> stmts;
 	
+	// Number of program variables, set by the Resolver
+	private int frameSize = -1;
+	
 	public ProgramAST(List<Declaration> decls,
 					  List<Statement> stmts,
 					  Token tok) {
@@ -17,6 +20,29 @@ public class ProgramAST extends ASTElement {
 		this.decls = decls;
 		this.stmts = stmts;
 	}
+	
+	/**
+	 * Creates a program with the statements of the given one, but with
+	 * the given declarations.
+	 */
+	public ProgramAST(ProgramAST progAST, List<Declaration> decls) {
+		
+		super(progAST);
+		this.decls = decls;
+		this.stmts = progAST.stmts;
+	}
+	
+	/**
+	 * Creates a program at the position of the given one, with the given
+	 * declarations and statements.
+	 */
+	public ProgramAST(ProgramAST progAST, List<Declaration> decls,
+					  List<Statement> stmts) {
+		
+		super(progAST);
+		this.decls = decls;
+		this.stmts = stmts;
+	}
 
 	public List<Declaration> getDecls() {
 		return decls;
@@ -26,6 +52,14 @@ public class ProgramAST extends ASTElement {
 		return stmts;
 	}
 	
+	public int getFrameSize() {
+		return frameSize;
+	}
+	
+	public void setFrameSize(int frameSize) {
+		this.frameSize = frameSize;
+	}
+	
 	public String toString() {
 		String result = "program \n";
 		for (Declaration decl : decls) {
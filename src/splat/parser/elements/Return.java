@@ -16,6 +16,15 @@ public class Return extends Statement {
     this.expr = expr;
   }
 
+  /**
+   * Creates a return statement at the position of the given element, with
+   * the given expression, which may be null.
+   */
+  public Return(ASTElement elem, Expression expr) {
+    super(elem);
+    this.expr = expr;
+  }
+
   public Expression getExpr() {
     return expr;
   }
@@ -39,11 +48,11 @@ public class Return extends Statement {
   }
 
   public void execute(Map<String, FunctionDecl> funcMap,
-      Map<String, Value> varAndParamMap) throws ReturnFromCall, ExecutionException {
+      Value[] frame) throws ReturnFromCall, ExecutionException {
 
     Value returnValue = null;
     if (expr != null) {
-      returnValue = expr.evaluate(funcMap, varAndParamMap);
+      returnValue = expr.evaluate(funcMap, frame);
     }
 
     throw new ReturnFromCall(returnValue);
@@ -13,6 +13,13 @@ public abstract class Statement extends ASTElement {
 		super(tok);
 	}
 
+	/**
+	 * Creates a statement at the position of the given element.
+	 */
+	protected Statement(ASTElement elem) {
+		super(elem);
+	}
+
 	/**
 	 * This will be needed for Phase 3 - this abstract method will need to be
 	 * implemented by every Statement subclass.  This method essentially does
@@ -29,10 +36,10 @@ public abstract class Statement extends ASTElement {
 	 * This will be needed for Phase 4 - this abstract method will need to be
 	 * implemented by every Statement subclass.  This method is used to 
 	 * execute each statement, which may result in output to the console, or
-	 * updating the varAndParamMap.  Both of the given maps may be needed for 
-	 * evaluating any sub-expressions in the statement.
+	 * updating a variable in the frame.  Both the funcMap and the frame may
+	 * be needed for evaluating any sub-expressions in the statement.
 	 */
 	 public abstract void execute(Map<String, FunctionDecl> funcMap,
-	                              Map<String, Value> varAndParamMap) 
+	                              Value[] frame) 
 										throws ReturnFromCall, ExecutionException;   
 }
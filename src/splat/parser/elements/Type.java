@@ -1,12 +1,44 @@
 package splat.parser.elements;
 
-public class Type {
+/**
+ * A Splat type.  The built-in types are the constants below, which
+ * Type.of() always returns for their names, so they can be compared by
+ * identity.  Any other name (which the semantic analyzer then reports as
+ * unknown, if it is used) gets a new Type each time, so that a process
+ * that runs many programs does not keep every name it has met; use
+ * equals() to compare types that may be one of those.
+ */
+public final class Type {
+
+  public static final Type INTEGER = new Type("Integer");
+  public static final Type BOOLEAN = new Type("Boolean");
+  public static final Type STRING = new Type("String");
+  public static final Type VOID = new Type("void");
+
   private String name;
 
-  public Type(String name) {
+  private Type(String name) {
     this.name = name;
   }
 
+  /**
+   * Returns the type with the given name.
+   */
+  public static Type of(String name) {
+    switch (name) {
+    case "Integer":
+      return INTEGER;
+    case "Boolean":
+      return BOOLEAN;
+    case "String":
+      return STRING;
+    case "void":
+      return VOID;
+    default:
+      return new Type(name);
+    }
+  }
+
   public String getName() {
     return name;
   }
@@ -14,17 +46,14 @@ public class Type {
   public String toString() {
     return name;
   }
-  
+
   @Override
   public boolean equals(Object obj) {
-    if (this == obj) return true;
-    if (obj == null || getClass() != obj.getClass()) return false;
-    Type type = (Type) obj;
-    return name != null ? name.equals(type.name) : type.name == null;
+    return this == obj || (obj instanceof Type && name.equals(((Type) obj).name));
   }
-  
+
   @Override
   public int hashCode() {
-    return name != null ? name.hashCode() : 0;
+    return name.hashCode();
   }
 }
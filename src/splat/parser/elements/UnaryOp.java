@@ -13,10 +13,35 @@ public class UnaryOp extends Expression {
   private String op;
   private Expression expr;
 
+  // Number of nested operators in this expression, including this one
+  private int height;
+
   public UnaryOp(String op, Expression expr, Token tok) {
     super(tok);
     this.op = op;
     this.expr = expr;
+    this.height = 1 + OperatorWalk.heightOf(expr);
+  }
+
+  /**
+   * Creates an operation at the position of the given element.
+   */
+  public UnaryOp(String op, Expression expr, ASTElement elem) {
+    super(elem);
+    this.op = op;
+    this.expr = expr;
+    this.height = 1 + OperatorWalk.heightOf(expr);
+  }
+
+  /**
+   * Creates a copy of the given operation, with the given operand.
+   */
+  public UnaryOp(UnaryOp unaryOp, Expression expr) {
+    super(unaryOp);
+    this.op = unaryOp.op;
+    this.expr = expr;
+    this.height = 1 + OperatorWalk.heightOf(expr);
+    recordType(unaryOp.getType());
   }
 
   public String getOp() {
@@ -27,33 +52,48 @@ public class UnaryOp extends Expression {
     return expr;
   }
 
+  int getHeight() {
+    return height;
+  }
+
   public Type analyzeAndGetType(Map<String, FunctionDecl> funcMap,
       Map<String, Type> varAndParamMap)
       throws SemanticAnalysisException {
 
-    Type exprType = expr.analyzeAndGetType(funcMap, varAndParamMap);
+    if (height > OperatorWalk.MAX_RECURSIVE_HEIGHT) {
+      return OperatorWalk.analyze(this, funcMap, varAndParamMap);
+    }
+    return getResultType(expr.analyzeAndGetType(funcMap, varAndParamMap));
+  }
+
+  /**
+   * Checks the operand type, which has already been analyzed, and returns
+   * (and records) the type of the result.
+   */
+  Type getResultType(Type exprType) throws SemanticAnalysisException {
+    return recordType(resultType(exprType));
+  }
 
-    Type integerType = new Type("Integer");
-    Type booleanType = new Type("Boolean");
+  private Type resultType(Type exprType) throws SemanticAnalysisException {
 
     if (op.equals("not")) {
-      if (!exprType.equals(booleanType)) {
+      if (exprType != Type.BOOLEAN) {
         throw new SemanticAnalysisException(
             "Unary operator 'not' requires Boolean operand, " +
                 "got " + exprType.getName(),
             this);
       }
-      return booleanType;
+      return Type.BOOLEAN;
     }
 
     if (op.equals("-")) {
-      if (!exprType.equals(integerType)) {
+      if (exprType != Type.INTEGER) {
         throw new SemanticAnalysisException(
             "Unary operator '-' requires Integer operand, " +
                 "got " + exprType.getName(),
             this);
       }
-      return integerType;
+      return Type.INTEGER;
     }
 
     throw new SemanticAnalysisException(
@@ -61,13 +101,26 @@ public class UnaryOp extends Expression {
   }
 
   public String toString() {
+    if (height > OperatorWalk.MAX_RECURSIVE_HEIGHT) {
+      return OperatorWalk.format(this);
+    }
     return "(" + op + expr + ")";
   }
 
   public Value evaluate(Map<String, FunctionDecl> funcMap,
-      Map<String, Value> varAndParamMap) throws ExecutionException {
+      Value[] frame) throws ExecutionException {
+
+    if (height > OperatorWalk.MAX_RECURSIVE_HEIGHT) {
+      return OperatorWalk.evaluate(this, funcMap, frame);
+    }
+    return compute(expr.evaluate(funcMap, frame));
+  }
 
-    Value exprValue = expr.evaluate(funcMap, varAndParamMap);
+  /**
+   * Applies the operator to the value of the operand, which has already
+   * been evaluated.
+   */
+  public Value compute(Value exprValue) throws ExecutionException {
 
     if (op.equals("not")) {
       if (!(exprValue instanceof BooleanValue)) {
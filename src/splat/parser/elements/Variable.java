@@ -10,15 +10,34 @@ public class Variable extends Expression {
 
   private String label;
 
+  // Index of the variable in the frame, set by the Resolver
+  private int slot = -1;
+
   public Variable(String label, Token tok) {
     super(tok);
     this.label = label;
   }
 
+  /**
+   * Creates a variable at the position of the given element.
+   */
+  public Variable(String label, ASTElement elem) {
+    super(elem);
+    this.label = label;
+  }
+
   public String getLabel() {
     return label;
   }
 
+  public int getSlot() {
+    return slot;
+  }
+
+  public void setSlot(int slot) {
+    this.slot = slot;
+  }
+
   public Type analyzeAndGetType(Map<String, FunctionDecl> funcMap,
       Map<String, Type> varAndParamMap)
       throws SemanticAnalysisException {
@@ -28,7 +47,7 @@ public class Variable extends Expression {
       throw new SemanticAnalysisException(
           "Variable '" + label + "' is not declared", this);
     }
-    return varType;
+    return recordType(varType);
   }
 
   public String toString() {
@@ -36,9 +55,9 @@ public class Variable extends Expression {
   }
 
   public Value evaluate(Map<String, FunctionDecl> funcMap,
-      Map<String, Value> varAndParamMap) throws ExecutionException {
+      Value[] frame) throws ExecutionException {
 
-    Value varValue = varAndParamMap.get(label);
+    Value varValue = slot >= 0 ? frame[slot] : null;
     if (varValue == null) {
       throw new ExecutionException("Variable '" + label + "' is not declared", this);
     }
@@ -14,11 +14,23 @@ public class VariableDecl extends Declaration {
 	private String label;
 	private Type type;
 	
+	// Index of the variable in its frame, set by the Resolver
+	private int slot = -1;
+	
 	public VariableDecl(String label, Type type, Token tok) {
 		super(tok);
 		this.label = label;
 		this.type = type;
 	}
+	
+	/**
+	 * Creates a variable declaration at the position of the given element.
+	 */
+	public VariableDecl(String label, Type type, ASTElement elem) {
+		super(elem);
+		this.label = label;
+		this.type = type;
+	}
 
 	public String getLabel() {
 		return label;
@@ -28,28 +40,34 @@ public class VariableDecl extends Declaration {
 		return type;
 	}
 	
+	public int getSlot() {
+		return slot;
+	}
+	
+	public void setSlot(int slot) {
+		this.slot = slot;
+	}
+	
 	public String toString() {
 		return label + " : " + type + " ;";
 	}
 	
 	public void execute(Map<String, FunctionDecl> funcMap,
-	                   Map<String, Value> varAndParamMap) throws ReturnFromCall, ExecutionException {
+	                   Value[] frame) throws ReturnFromCall, ExecutionException {
 		
 		Value defaultValue = createDefaultValue(type);
-		varAndParamMap.put(label, defaultValue);
+		frame[slot] = defaultValue;
 	}
 	
 	private Value createDefaultValue(Type type) throws ExecutionException {
-		String typeName = type.getName();
-		
-		if (typeName.equals("Integer")) {
+				if (type == Type.INTEGER) {
 			return new IntegerValue(0);
-		} else if (typeName.equals("Boolean")) {
+		} else if (type == Type.BOOLEAN) {
 			return new BooleanValue(false);
-		} else if (typeName.equals("String")) {
+		} else if (type == Type.STRING) {
 			return new StringValue("");
 		} else {
-			throw new ExecutionException("Unknown type: " + typeName, this);
+			throw new ExecutionException("Unknown type: " + type.getName(), this);
 		}
 	}
 }
@@ -20,6 +20,15 @@ public class WhileLoop extends Statement {
     this.stmts = stmts;
   }
 
+  /**
+   * Creates a while loop at the position of the given element.
+   */
+  public WhileLoop(ASTElement elem, Expression condition, List<Statement> stmts) {
+    super(elem);
+    this.condition = condition;
+    this.stmts = stmts;
+  }
+
   public Expression getCondition() {
     return condition;
   }
@@ -28,17 +37,26 @@ public class WhileLoop extends Statement {
     return stmts;
   }
 
-  public void analyze(Map<String, FunctionDecl> funcMap,
+  /**
+   * Checks the condition alone, without the nested statements.
+   */
+  public void analyzeCondition(Map<String, FunctionDecl> funcMap,
       Map<String, Type> varAndParamMap)
       throws SemanticAnalysisException {
 
     Type conditionType = condition.analyzeAndGetType(funcMap, varAndParamMap);
-    Type booleanType = new Type("Boolean");
-    if (!conditionType.equals(booleanType)) {
+    if (conditionType != Type.BOOLEAN) {
       throw new SemanticAnalysisException(
           "Condition in while loop must be Boolean, got " + conditionType.getName(),
           condition);
     }
+  }
+
+  public void analyze(Map<String, FunctionDecl> funcMap,
+      Map<String, Type> varAndParamMap)
+      throws SemanticAnalysisException {
+
+    analyzeCondition(funcMap, varAndParamMap);
 
     for (Statement stmt : stmts) {
       stmt.analyze(funcMap, varAndParamMap);
@@ -55,10 +73,10 @@ public class WhileLoop extends Statement {
   }
 
   public void execute(Map<String, FunctionDecl> funcMap,
-      Map<String, Value> varAndParamMap) throws ReturnFromCall, ExecutionException {
+      Value[] frame) throws ReturnFromCall, ExecutionException {
 
     while (true) {
-      Value conditionValue = condition.evaluate(funcMap, varAndParamMap);
+      Value conditionValue = condition.evaluate(funcMap, frame);
 
       if (!(conditionValue instanceof BooleanValue)) {
         throw new ExecutionException("Condition must be Boolean", this);
@@ -71,7 +89,7 @@ public class WhileLoop extends Statement {
       }
 
       for (Statement stmt : stmts) {
-        stmt.execute(funcMap, varAndParamMap);
+        stmt.execute(funcMap, frame);
       }
     }
   }
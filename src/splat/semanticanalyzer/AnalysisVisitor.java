@@ -0,0 +1,222 @@
+package splat.semanticanalyzer;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import splat.parser.elements.Expression;
+import splat.parser.elements.FunctionDecl;
+import splat.parser.elements.IfThen;
+import splat.parser.elements.Return;
+import splat.parser.elements.Statement;
+import splat.parser.elements.Type;
+import splat.parser.elements.VariableDecl;
+import splat.parser.elements.WhileLoop;
+
+/**
+ * Checks the statements of a function body or of the program body in a
+ * single walk: scopes (the labels of a function's parameters and local
+ * variables), types (through each statement's analyze()),
+ * the placement of return statements, the type of each returned value,
+ * and whether a function that returns a value has a return statement.
+ *
+ * The diagnostics are the ones the separate checks used to give, in the
+ * same order.  In a function, an error in a statement comes before any
+ * return error in that statement.  In the program body it is the other
+ * way around, so when a statement there fails, the rest of it is
+ * searched for a return statement before the error is reported.
+ */
+class AnalysisVisitor {
+
+  private Map<String, FunctionDecl> funcMap;
+  private Map<String, Type> varAndParamMap;
+
+  // The function whose body is checked, or null for the program body
+  private FunctionDecl funcDecl;
+
+  private boolean hasReturn;
+
+  // The first return error in the current top-level statement
+  private SemanticAnalysisException returnError;
+
+  /**
+   * Creates a visitor for the program body, whose variables are given.
+   */
+  AnalysisVisitor(Map<String, FunctionDecl> funcMap, Map<String, Type> progVarMap) {
+    this.funcMap = funcMap;
+    this.varAndParamMap = progVarMap;
+  }
+
+  /**
+   * Creates a visitor for the body of the given function, declaring its
+   * parameters and local variables.
+   */
+  AnalysisVisitor(Map<String, FunctionDecl> funcMap, FunctionDecl funcDecl)
+      throws SemanticAnalysisException {
+    this.funcMap = funcMap;
+    this.funcDecl = funcDecl;
+    this.varAndParamMap = new HashMap<String, Type>();
+
+    declare(funcDecl.getParams());
+    declare(funcDecl.getLocVarDecls());
+  }
+
+  /*
+   * Adds the given variables to the scope of the function.  None of them
+   * may have the label of the function or of an earlier variable.
+   */
+  private void declare(List<VariableDecl> varDecls) throws SemanticAnalysisException {
+
+    String funcName = funcDecl.getLabel();
+    for (VariableDecl varDecl : varDecls) {
+      String label = varDecl.getLabel();
+      if (label.equals(funcName) || varAndParamMap.put(label, varDecl.getType()) != null) {
+        throw new SemanticAnalysisException("Cannot have duplicate label '"
+            + label + "' in function '" + funcName + "'", varDecl);
+      }
+    }
+  }
+
+  void visitBody(List<Statement> stmts) throws SemanticAnalysisException {
+
+    for (Statement stmt : stmts) {
+      if (funcDecl == null) {
+        visitProgramStmt(stmt);
+      } else {
+        visit(stmt);
+        if (returnError != null) {
+          throw returnError;
+        }
+      }
+    }
+
+    if (funcDecl != null) {
+      Type funcRetType = funcDecl.getRetType();
+      if (funcRetType != Type.VOID && !hasReturn) {
+        throw new SemanticAnalysisException(
+            "Function '" + funcDecl.getLabel() + "' returns " + funcRetType.getName() +
+                " but has no return statement",
+            funcDecl);
+      }
+    }
+  }
+
+  private void visitProgramStmt(Statement stmt) throws SemanticAnalysisException {
+
+    try {
+      visit(stmt);
+    } catch (SemanticAnalysisException ex) {
+      Return returnStmt = findReturn(stmt);
+      if (returnStmt != null) {
+        throw misplacedReturn(returnStmt);
+      }
+      throw ex;
+    }
+  }
+
+  private void visit(Statement stmt) throws SemanticAnalysisException {
+
+    if (stmt instanceof Return) {
+      visitReturn((Return) stmt);
+
+    } else if (stmt instanceof IfThen) {
+      IfThen ifThen = (IfThen) stmt;
+      ifThen.analyzeCondition(funcMap, varAndParamMap);
+      for (Statement nestedStmt : ifThen.getThenStmts()) {
+        visit(nestedStmt);
+      }
+      if (ifThen.getElseStmts() != null) {
+        for (Statement nestedStmt : ifThen.getElseStmts()) {
+          visit(nestedStmt);
+        }
+      }
+
+    } else if (stmt instanceof WhileLoop) {
+      WhileLoop whileLoop = (WhileLoop) stmt;
+      whileLoop.analyzeCondition(funcMap, varAndParamMap);
+      for (Statement nestedStmt : whileLoop.getStmts()) {
+        visit(nestedStmt);
+      }
+
+    } else {
+      stmt.analyze(funcMap, varAndParamMap);
+    }
+  }
+
+  private void visitReturn(Return returnStmt) throws SemanticAnalysisException {
+
+    if (funcDecl == null) {
+      throw misplacedReturn(returnStmt);
+    }
+
+    hasReturn = true;
+
+    Expression returnExpr = returnStmt.getExpr();
+    Type returnType = null;
+    if (returnExpr != null) {
+      returnType = returnExpr.analyzeAndGetType(funcMap, varAndParamMap);
+    }
+
+    if (returnError != null) {
+      return;
+    }
+
+    Type funcRetType = funcDecl.getRetType();
+    if (funcRetType == Type.VOID) {
+      if (returnExpr != null) {
+        returnError = new SemanticAnalysisException(
+            "Function '" + funcDecl.getLabel() + "' returns void, " +
+                "cannot return a value",
+            returnStmt);
+      }
+    } else if (returnExpr == null) {
+      returnError = new SemanticAnalysisException(
+          "Function '" + funcDecl.getLabel() + "' returns " + funcRetType.getName() +
+              ", must return a value",
+          returnStmt);
+    } else if (!returnType.equals(funcRetType)) {
+      returnError = new SemanticAnalysisException(
+          "Return type mismatch in function '" + funcDecl.getLabel() +
+              "': expected " + funcRetType.getName() + ", got " + returnType.getName(),
+          returnStmt);
+    }
+  }
+
+  private static SemanticAnalysisException misplacedReturn(Return returnStmt) {
+    return new SemanticAnalysisException(
+        "Return statement not allowed in program body", returnStmt);
+  }
+
+  /*
+   * The first return statement in the given statement, or null.  Only
+   * used once the program body has failed to analyze.
+   */
+  private static Return findReturn(Statement stmt) {
+
+    if (stmt instanceof Return) {
+      return (Return) stmt;
+    }
+
+    if (stmt instanceof IfThen) {
+      IfThen ifThen = (IfThen) stmt;
+      Return found = findReturn(ifThen.getThenStmts());
+      if (found == null && ifThen.getElseStmts() != null) {
+        found = findReturn(ifThen.getElseStmts());
+      }
+      return found;
+    } else if (stmt instanceof WhileLoop) {
+      return findReturn(((WhileLoop) stmt).getStmts());
+    }
+    return null;
+  }
+
+  private static Return findReturn(List<Statement> stmts) {
+    for (Statement stmt : stmts) {
+      Return found = findReturn(stmt);
+      if (found != null) {
+        return found;
+      }
+    }
+    return null;
+  }
+}
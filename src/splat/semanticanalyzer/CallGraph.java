@@ -0,0 +1,434 @@
+package splat.semanticanalyzer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import splat.parser.ParseException;
+import splat.parser.elements.Assignment;
+import splat.parser.elements.BinaryOp;
+import splat.parser.elements.Declaration;
+import splat.parser.elements.Expression;
+import splat.parser.elements.FunctionCallExpr;
+import splat.parser.elements.FunctionCallStmt;
+import splat.parser.elements.FunctionDecl;
+import splat.parser.elements.IfThen;
+import splat.parser.elements.Print;
+import splat.parser.elements.PrintLine;
+import splat.parser.elements.ProgramAST;
+import splat.parser.elements.Return;
+import splat.parser.elements.Statement;
+import splat.parser.elements.UnaryOp;
+import splat.parser.elements.WhileLoop;
+
+/**
+ * The calls between the functions of a program, and what follows from
+ * them: which functions are recursive, and which have an effect.
+ *
+ * A function only sees its own parameters and local variables, so the
+ * only effect it can have is output.  A function is PURE if it has no
+ * print or print_line statement and only calls PURE functions; its
+ * result then depends on its arguments alone.  Otherwise it is OUTPUT.
+ * Being PURE says nothing about termination: a pure function may still
+ * loop forever or fail at run time.
+ *
+ * Calls are resolved by label like the executor does, so with duplicate
+ * labels the last function wins.  Calls to undeclared functions are
+ * left out, though a program with any will not pass semantic analysis.
+ */
+public class CallGraph {
+
+  public enum Effect {
+    PURE,
+    OUTPUT
+  }
+
+  private List<FunctionDecl> functions = new ArrayList<FunctionDecl>();
+  private Map<FunctionDecl, Integer> indexOf = new HashMap<FunctionDecl, Integer>();
+
+  private int[][] callees;
+  private int[][] callers;
+  private List<FunctionDecl> programCallees;
+
+  // The strongly connected components, callees before their callers
+  private List<List<FunctionDecl>> components = new ArrayList<List<FunctionDecl>>();
+  private int[] componentOf;
+
+  private boolean[] recursive;
+  private Effect[] effects;
+
+  /**
+   * Builds the call graph of the given program, parsing any function
+   * body that a lazy parser skipped.
+   */
+  public CallGraph(ProgramAST progAST) throws ParseException {
+
+    Map<String, FunctionDecl> funcMap = new HashMap<String, FunctionDecl>();
+    for (Declaration decl : progAST.getDecls()) {
+      if (decl instanceof FunctionDecl) {
+        FunctionDecl funcDecl = (FunctionDecl) decl;
+        indexOf.put(funcDecl, functions.size());
+        functions.add(funcDecl);
+        funcMap.put(funcDecl.getLabel(), funcDecl);
+      }
+    }
+
+    int n = functions.size();
+    callees = new int[n][];
+    boolean[] prints = new boolean[n];
+    for (int i = 0; i < n; i++) {
+      FunctionDecl funcDecl = functions.get(i);
+      funcDecl.parseBody();
+      Set<String> labels = new LinkedHashSet<String>();
+      prints[i] = scanStmts(funcDecl.getStmts(), labels);
+      callees[i] = indicesOf(functionsOf(labels, funcMap));
+    }
+
+    Set<String> labels = new LinkedHashSet<String>();
+    scanStmts(progAST.getStmts(), labels);
+    programCallees = Collections.unmodifiableList(
+        new ArrayList<FunctionDecl>(functionsOf(labels, funcMap)));
+
+    setCallers();
+    findComponents();
+    setEffects(prints);
+  }
+
+  /**
+   * Returns the functions that the given statements call, directly or
+   * through other functions, in the order they are found.  Only the
+   * bodies of these functions are parsed, which makes this cheaper than
+   * building the whole graph when few functions are reachable.
+   */
+  public static Set<FunctionDecl> reachableFrom(List<Statement> stmts,
+      Map<String, FunctionDecl> funcMap) throws ParseException {
+
+    Set<FunctionDecl> reached = functionsOf(calledLabels(stmts), funcMap);
+
+    List<FunctionDecl> work = new ArrayList<FunctionDecl>(reached);
+    while (!work.isEmpty()) {
+      FunctionDecl funcDecl = work.remove(work.size() - 1);
+      funcDecl.parseBody();
+      for (FunctionDecl callee : functionsOf(calledLabels(funcDecl.getStmts()), funcMap)) {
+        if (reached.add(callee)) {
+          work.add(callee);
+        }
+      }
+    }
+    return reached;
+  }
+
+  /**
+   * Returns the functions of the program, in declaration order.
+   */
+  public List<FunctionDecl> getFunctions() {
+    return Collections.unmodifiableList(functions);
+  }
+
+  /**
+   * Returns the functions the given one calls, in the order of their
+   * first call.
+   */
+  public List<FunctionDecl> getCallees(FunctionDecl funcDecl) {
+    return functionsAt(callees[index(funcDecl)]);
+  }
+
+  /**
+   * Returns the functions that call the given one, in declaration order.
+   */
+  public List<FunctionDecl> getCallers(FunctionDecl funcDecl) {
+    return functionsAt(callers[index(funcDecl)]);
+  }
+
+  /**
+   * Returns the functions the program body calls, in the order of their
+   * first call.
+   */
+  public List<FunctionDecl> getProgramCallees() {
+    return programCallees;
+  }
+
+  /**
+   * Returns the strongly connected components of the graph: sets of
+   * functions that can all reach each other through calls.  Every
+   * component comes after the components of the functions it calls.
+   */
+  public List<List<FunctionDecl>> getComponents() {
+    return Collections.unmodifiableList(components);
+  }
+
+  /**
+   * Returns the component of the given function.
+   */
+  public List<FunctionDecl> getComponent(FunctionDecl funcDecl) {
+    return components.get(componentOf[index(funcDecl)]);
+  }
+
+  /**
+   * Returns whether the given function can call itself, directly or
+   * through other functions.
+   */
+  public boolean isRecursive(FunctionDecl funcDecl) {
+    return recursive[index(funcDecl)];
+  }
+
+  public Effect getEffect(FunctionDecl funcDecl) {
+    return effects[index(funcDecl)];
+  }
+
+  public boolean isPure(FunctionDecl funcDecl) {
+    return getEffect(funcDecl) == Effect.PURE;
+  }
+
+  private int index(FunctionDecl funcDecl) {
+    Integer index = indexOf.get(funcDecl);
+    if (index == null) {
+      throw new IllegalArgumentException(
+          "Function '" + funcDecl.getLabel() + "' is not in the call graph");
+    }
+    return index;
+  }
+
+  private int[] indicesOf(Set<FunctionDecl> funcDecls) {
+    int[] indices = new int[funcDecls.size()];
+    int i = 0;
+    for (FunctionDecl funcDecl : funcDecls) {
+      indices[i++] = indexOf.get(funcDecl);
+    }
+    return indices;
+  }
+
+  private List<FunctionDecl> functionsAt(int[] indices) {
+    List<FunctionDecl> result = new ArrayList<FunctionDecl>(indices.length);
+    for (int index : indices) {
+      result.add(functions.get(index));
+    }
+    return Collections.unmodifiableList(result);
+  }
+
+  private void setCallers() {
+
+    int n = functions.size();
+    int[] counts = new int[n];
+    for (int[] out : callees) {
+      for (int w : out) {
+        counts[w]++;
+      }
+    }
+
+    callers = new int[n][];
+    for (int w = 0; w < n; w++) {
+      callers[w] = new int[counts[w]];
+      counts[w] = 0;
+    }
+    for (int v = 0; v < n; v++) {
+      for (int w : callees[v]) {
+        callers[w][counts[w]++] = v;
+      }
+    }
+  }
+
+  /*
+   * Tarjan's algorithm, with an explicit stack instead of recursion since
+   * call chains can be as long as the program.  It finishes each
+   * component after all the components it reaches.
+   */
+  private void findComponents() {
+
+    int n = functions.size();
+    int[] order = new int[n];
+    Arrays.fill(order, -1);
+    int[] lowLink = new int[n];
+    int[] nextCallee = new int[n];
+    boolean[] onStack = new boolean[n];
+    int[] stack = new int[n];
+    int stackSize = 0;
+    int[] path = new int[n];
+    int pathLength = 0;
+    int visited = 0;
+
+    componentOf = new int[n];
+    recursive = new boolean[n];
+
+    for (int root = 0; root < n; root++) {
+      if (order[root] >= 0) {
+        continue;
+      }
+
+      order[root] = lowLink[root] = visited++;
+      stack[stackSize++] = root;
+      onStack[root] = true;
+      path[pathLength++] = root;
+
+      while (pathLength > 0) {
+        int v = path[pathLength - 1];
+
+        if (nextCallee[v] < callees[v].length) {
+          int w = callees[v][nextCallee[v]++];
+          if (order[w] < 0) {
+            order[w] = lowLink[w] = visited++;
+            stack[stackSize++] = w;
+            onStack[w] = true;
+            path[pathLength++] = w;
+          } else if (onStack[w]) {
+            lowLink[v] = Math.min(lowLink[v], order[w]);
+          }
+          continue;
+        }
+
+        pathLength--;
+        if (pathLength > 0) {
+          int u = path[pathLength - 1];
+          lowLink[u] = Math.min(lowLink[u], lowLink[v]);
+        }
+
+        if (lowLink[v] == order[v]) {
+          List<FunctionDecl> component = new ArrayList<FunctionDecl>();
+          int w;
+          do {
+            w = stack[--stackSize];
+            onStack[w] = false;
+            componentOf[w] = components.size();
+            component.add(functions.get(w));
+          } while (w != v);
+          Collections.reverse(component);
+          components.add(Collections.unmodifiableList(component));
+
+          boolean cycle = component.size() > 1;
+          for (int callee : callees[v]) {
+            cycle |= callee == v;
+          }
+          for (FunctionDecl funcDecl : component) {
+            recursive[indexOf.get(funcDecl)] = cycle;
+          }
+        }
+      }
+    }
+  }
+
+  /*
+   * Functions that call each other all have the same effect, so the
+   * effects are settled a component at a time, callees first: a
+   * component is OUTPUT if one of its functions prints or calls an
+   * OUTPUT function of an earlier component.
+   */
+  private void setEffects(boolean[] prints) {
+
+    effects = new Effect[functions.size()];
+    for (List<FunctionDecl> component : components) {
+      boolean output = false;
+      for (FunctionDecl funcDecl : component) {
+        int v = indexOf.get(funcDecl);
+        output |= prints[v];
+        for (int w : callees[v]) {
+          output |= effects[w] == Effect.OUTPUT;
+        }
+      }
+      for (FunctionDecl funcDecl : component) {
+        effects[indexOf.get(funcDecl)] = output ? Effect.OUTPUT : Effect.PURE;
+      }
+    }
+  }
+
+  /*
+   * Returns the labels of the functions called in the given statements,
+   * in the order of their first call.
+   */
+  static Set<String> calledLabels(List<Statement> stmts) {
+    Set<String> labels = new LinkedHashSet<String>();
+    scanStmts(stmts, labels);
+    return labels;
+  }
+
+  private static Set<FunctionDecl> functionsOf(Set<String> labels,
+      Map<String, FunctionDecl> funcMap) {
+
+    Set<FunctionDecl> funcDecls = new LinkedHashSet<FunctionDecl>();
+    for (String label : labels) {
+      FunctionDecl funcDecl = funcMap.get(label);
+      if (funcDecl != null) {
+        funcDecls.add(funcDecl);
+      }
+    }
+    return funcDecls;
+  }
+
+  /*
+   * Adds the labels of the functions called in the given statements to
+   * labels, and returns whether any of the statements prints.
+   */
+  private static boolean scanStmts(List<Statement> stmts, Set<String> labels) {
+
+    boolean prints = false;
+    for (Statement stmt : stmts) {
+
+      if (stmt instanceof Print) {
+        prints = true;
+        scanExpr(((Print) stmt).getExpr(), labels);
+
+      } else if (stmt instanceof PrintLine) {
+        prints = true;
+
+      } else if (stmt instanceof Assignment) {
+        scanExpr(((Assignment) stmt).getExpr(), labels);
+
+      } else if (stmt instanceof FunctionCallStmt) {
+        FunctionCallStmt callStmt = (FunctionCallStmt) stmt;
+        labels.add(callStmt.getLabel());
+        for (Expression arg : callStmt.getArgs()) {
+          scanExpr(arg, labels);
+        }
+
+      } else if (stmt instanceof IfThen) {
+        IfThen ifThen = (IfThen) stmt;
+        scanExpr(ifThen.getCondition(), labels);
+        prints |= scanStmts(ifThen.getThenStmts(), labels);
+        if (ifThen.getElseStmts() != null) {
+          prints |= scanStmts(ifThen.getElseStmts(), labels);
+        }
+
+      } else if (stmt instanceof WhileLoop) {
+        WhileLoop whileLoop = (WhileLoop) stmt;
+        scanExpr(whileLoop.getCondition(), labels);
+        prints |= scanStmts(whileLoop.getStmts(), labels);
+
+      } else if (stmt instanceof Return) {
+        Expression expr = ((Return) stmt).getExpr();
+        if (expr != null) {
+          scanExpr(expr, labels);
+        }
+      }
+    }
+    return prints;
+  }
+
+  private static void scanExpr(Expression root, Set<String> labels) {
+
+    List<Expression> work = new ArrayList<Expression>();
+    work.add(root);
+
+    while (!work.isEmpty()) {
+      Expression expr = work.remove(work.size() - 1);
+
+      if (expr instanceof FunctionCallExpr) {
+        FunctionCallExpr callExpr = (FunctionCallExpr) expr;
+        labels.add(callExpr.getLabel());
+        List<Expression> args = callExpr.getArgs();
+        for (int i = args.size() - 1; i >= 0; i--) {
+          work.add(args.get(i));
+        }
+      } else if (expr instanceof BinaryOp) {
+        BinaryOp binOp = (BinaryOp) expr;
+        work.add(binOp.getRight());
+        work.add(binOp.getLeft());
+      } else if (expr instanceof UnaryOp) {
+        work.add(((UnaryOp) expr).getExpr());
+      }
+    }
+  }
+}
@@ -0,0 +1,364 @@
+package splat.semanticanalyzer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import splat.parser.ParseException;
+import splat.parser.elements.Declaration;
+import splat.parser.elements.FunctionDecl;
+import splat.parser.elements.ProgramAST;
+import splat.parser.elements.Statement;
+import splat.parser.elements.Type;
+import splat.parser.elements.VariableDecl;
+
+/**
+ * Keeps a program analyzed while it is being edited, for example with an
+ * IncrementalParser.  Each call to analyze() gives the result that
+ * SemanticAnalyzer.analyze() would give on the whole program, but only
+ * checks the bodies that may have a different outcome since the last
+ * call.
+ *
+ * The analysis of a function body depends only on the function itself
+ * and on the signatures (parameter types and return type) of the
+ * functions it calls.  So for every body that passed, the functions it
+ * calls are recorded, and it is checked again only if its function is
+ * replaced or one of those labels now has another signature, or none.
+ * The program body is handled the same way, and also depends on the
+ * program variables.
+ *
+ * Declarations are compared by identity: one that is the same object as
+ * in the previous program is taken to be unchanged, so a declaration
+ * must be replaced rather than modified, as IncrementalParser does.
+ * After a program that passed, the checks on labels only look at the
+ * declarations that were replaced.  After a program with an error, or
+ * when an edit runs into one, the labels of every declaration are
+ * checked again, so that the error reported is the one a full analysis
+ * would report first; the bodies that passed are still not checked.
+ */
+public class IncrementalAnalyzer {
+
+  // The function bodies that passed, with the functions their calls
+  // resolved to
+  private Map<FunctionDecl, Map<String, FunctionDecl>> checkedFuncs =
+      new HashMap<FunctionDecl, Map<String, FunctionDecl>>();
+
+  // For each label, the functions in checkedFuncs that call it
+  private Map<String, Set<FunctionDecl>> callers = new HashMap<String, Set<FunctionDecl>>();
+
+  // The program body if it passed, with the functions its calls
+  // resolved to and the program variables it was checked against
+  private List<Statement> checkedStmts;
+  private Map<String, FunctionDecl> stmtsCallees;
+  private Map<String, Type> stmtsVarMap;
+
+  // The declarations of the last program analyzed if it passed, with its
+  // maps and how many parameters of its functions have each label
+  private Declaration[] decls;
+  private Map<String, FunctionDecl> funcMap;
+  private Map<String, Type> progVarMap;
+  private Map<String, Integer> paramLabels;
+
+  private int checkedCount;
+
+  public void analyze(ProgramAST progAST)
+      throws SemanticAnalysisException, ParseException {
+
+    checkedCount = 0;
+    if (decls != null && analyzeEdit(progAST)) {
+      return;
+    }
+    analyzeAll(progAST);
+  }
+
+  /**
+   * Returns how many bodies (of functions, and of the program) the last
+   * call to analyze() checked.
+   */
+  public int getCheckedCount() {
+    return checkedCount;
+  }
+
+  /*
+   * Analyzes the program as SemanticAnalyzer.analyze() does, skipping
+   * the bodies that are still known to pass, and sets up the maps for
+   * the next edit if it passes.
+   */
+  private void analyzeAll(ProgramAST progAST)
+      throws SemanticAnalysisException, ParseException {
+
+    decls = null;
+
+    SemanticAnalyzer analyzer = new SemanticAnalyzer(progAST);
+    analyzer.checkNoDuplicateProgLabels();
+    analyzer.setProgVarAndFuncMaps();
+    funcMap = analyzer.getFuncMap();
+    progVarMap = analyzer.getProgVarMap();
+
+    for (FunctionDecl funcDecl : new ArrayList<FunctionDecl>(checkedFuncs.keySet())) {
+      if (funcMap.get(funcDecl.getLabel()) != funcDecl
+          || !stillResolve(checkedFuncs.get(funcDecl))) {
+        uncheck(funcDecl);
+      }
+    }
+
+    for (FunctionDecl funcDecl : funcMap.values()) {
+      if (!checkedFuncs.containsKey(funcDecl)) {
+        analyzeFuncDecl(analyzer, funcDecl);
+      }
+    }
+
+    analyzer.checkNoFuncParamNameConflicts();
+
+    if (checkedStmts != progAST.getStmts() || !progVarMap.equals(stmtsVarMap)
+        || !stillResolve(stmtsCallees)) {
+      analyzeProgramBody(analyzer, progAST);
+    }
+
+    paramLabels = new HashMap<String, Integer>();
+    for (FunctionDecl funcDecl : funcMap.values()) {
+      countParams(funcDecl, 1);
+    }
+    decls = progAST.getDecls().toArray(new Declaration[0]);
+  }
+
+  /*
+   * Analyzes the program from the last one, which passed, by looking only
+   * at the declarations that were replaced and at the bodies that depend
+   * on them.  Returns false, with the maps for the edit no longer set,
+   * if it runs into an error.
+   */
+  private boolean analyzeEdit(ProgramAST progAST)
+      throws SemanticAnalysisException, ParseException {
+
+    // The replaced declarations are those between the longest common
+    // prefix and suffix of the two programs
+    List<Declaration> next = progAST.getDecls();
+    int start = 0;
+    int oldEnd = decls.length;
+    int newEnd = next.size();
+    while (start < oldEnd && start < newEnd && decls[start] == next.get(start)) {
+      start++;
+    }
+    while (oldEnd > start && newEnd > start && decls[oldEnd - 1] == next.get(newEnd - 1)) {
+      oldEnd--;
+      newEnd--;
+    }
+    List<Declaration> removed = Arrays.asList(decls).subList(start, oldEnd);
+    List<Declaration> added = next.subList(start, newEnd);
+
+    if (!labelsStayValid(removed, added)) {
+      return false;
+    }
+    decls = null;
+
+    Map<String, FunctionDecl> removedFuncs = new HashMap<String, FunctionDecl>();
+    boolean varsChanged = false;
+    for (Declaration decl : removed) {
+      if (decl instanceof FunctionDecl) {
+        FunctionDecl funcDecl = (FunctionDecl) decl;
+        funcMap.remove(funcDecl.getLabel());
+        countParams(funcDecl, -1);
+        uncheck(funcDecl);
+        removedFuncs.put(funcDecl.getLabel(), funcDecl);
+      } else if (decl instanceof VariableDecl) {
+        progVarMap.remove(decl.getLabel());
+        varsChanged = true;
+      }
+    }
+
+    Set<FunctionDecl> toCheck = new LinkedHashSet<FunctionDecl>();
+    Set<String> changedLabels = new HashSet<String>();
+    for (Declaration decl : added) {
+      if (decl instanceof FunctionDecl) {
+        FunctionDecl funcDecl = (FunctionDecl) decl;
+        funcMap.put(funcDecl.getLabel(), funcDecl);
+        countParams(funcDecl, 1);
+        toCheck.add(funcDecl);
+        FunctionDecl oldDecl = removedFuncs.remove(funcDecl.getLabel());
+        if (oldDecl == null || !sameSignature(oldDecl, funcDecl)) {
+          changedLabels.add(funcDecl.getLabel());
+        }
+      } else if (decl instanceof VariableDecl) {
+        progVarMap.put(decl.getLabel(), ((VariableDecl) decl).getType());
+        varsChanged = true;
+      }
+    }
+    changedLabels.addAll(removedFuncs.keySet());
+
+    for (String label : changedLabels) {
+      Set<FunctionDecl> labelCallers = callers.get(label);
+      if (labelCallers != null) {
+        for (FunctionDecl funcDecl : new ArrayList<FunctionDecl>(labelCallers)) {
+          uncheck(funcDecl);
+          toCheck.add(funcDecl);
+        }
+      }
+    }
+
+    SemanticAnalyzer analyzer = new SemanticAnalyzer(progAST, funcMap, progVarMap);
+    try {
+      for (FunctionDecl funcDecl : toCheck) {
+        analyzeFuncDecl(analyzer, funcDecl);
+      }
+      if (checkedStmts != progAST.getStmts() || varsChanged
+          || !stillResolve(stmtsCallees)) {
+        analyzeProgramBody(analyzer, progAST);
+      }
+    } catch (SemanticAnalysisException | ParseException ex) {
+      return false;
+    }
+
+    decls = next.toArray(new Declaration[0]);
+    return true;
+  }
+
+  /*
+   * Whether replacing the removed declarations with the added ones keeps
+   * every label unique, and every function label distinct from the
+   * labels of all parameters, given that the last program passed.
+   */
+  private boolean labelsStayValid(List<Declaration> removed, List<Declaration> added) {
+
+    Set<String> removedLabels = new HashSet<String>();
+    Map<String, Integer> paramDelta = new HashMap<String, Integer>();
+    for (Declaration decl : removed) {
+      removedLabels.add(decl.getLabel());
+      if (decl instanceof FunctionDecl) {
+        for (VariableDecl param : ((FunctionDecl) decl).getParams()) {
+          paramDelta.merge(param.getLabel(), -1, Integer::sum);
+        }
+      }
+    }
+
+    Set<String> addedLabels = new HashSet<String>();
+    Set<String> addedFuncLabels = new HashSet<String>();
+    for (Declaration decl : added) {
+      String label = decl.getLabel();
+      if (!addedLabels.add(label) || (!removedLabels.contains(label)
+          && (funcMap.containsKey(label) || progVarMap.containsKey(label)))) {
+        return false;
+      }
+      if (decl instanceof FunctionDecl) {
+        addedFuncLabels.add(label);
+        for (VariableDecl param : ((FunctionDecl) decl).getParams()) {
+          paramDelta.merge(param.getLabel(), 1, Integer::sum);
+        }
+      }
+    }
+
+    // The last program had no conflict, so a new one involves an added
+    // function or an added parameter
+    for (String label : addedFuncLabels) {
+      int count = paramLabels.getOrDefault(label, 0) + paramDelta.getOrDefault(label, 0);
+      if (count > 0) {
+        return false;
+      }
+    }
+    for (Map.Entry<String, Integer> entry : paramDelta.entrySet()) {
+      String label = entry.getKey();
+      if (entry.getValue() > 0 && (addedFuncLabels.contains(label)
+          || (funcMap.containsKey(label) && !removedLabels.contains(label)))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void analyzeFuncDecl(SemanticAnalyzer analyzer, FunctionDecl funcDecl)
+      throws SemanticAnalysisException, ParseException {
+
+    checkedCount++;
+    analyzer.analyzeFuncDecl(funcDecl);
+
+    Map<String, FunctionDecl> callees = calleesOf(funcDecl.getStmts());
+    checkedFuncs.put(funcDecl, callees);
+    for (String label : callees.keySet()) {
+      callers.computeIfAbsent(label, l -> new HashSet<FunctionDecl>()).add(funcDecl);
+    }
+  }
+
+  private void analyzeProgramBody(SemanticAnalyzer analyzer, ProgramAST progAST)
+      throws SemanticAnalysisException {
+
+    checkedStmts = null;
+    checkedCount++;
+    analyzer.analyzeProgramBody();
+
+    checkedStmts = progAST.getStmts();
+    stmtsCallees = calleesOf(checkedStmts);
+    stmtsVarMap = new HashMap<String, Type>(progVarMap);
+  }
+
+  private void uncheck(FunctionDecl funcDecl) {
+
+    Map<String, FunctionDecl> callees = checkedFuncs.remove(funcDecl);
+    if (callees != null) {
+      for (String label : callees.keySet()) {
+        Set<FunctionDecl> labelCallers = callers.get(label);
+        labelCallers.remove(funcDecl);
+        if (labelCallers.isEmpty()) {
+          callers.remove(label);
+        }
+      }
+    }
+  }
+
+  private Map<String, FunctionDecl> calleesOf(List<Statement> stmts) {
+
+    Map<String, FunctionDecl> callees = new HashMap<String, FunctionDecl>();
+    for (String label : CallGraph.calledLabels(stmts)) {
+      callees.put(label, funcMap.get(label));
+    }
+    return callees;
+  }
+
+  /*
+   * Whether each label in the given map is still the label of the same
+   * function, or of one with the same signature.
+   */
+  private boolean stillResolve(Map<String, FunctionDecl> callees) {
+
+    if (callees == null) {
+      return false;
+    }
+    for (Map.Entry<String, FunctionDecl> entry : callees.entrySet()) {
+      FunctionDecl funcDecl = funcMap.get(entry.getKey());
+      if (funcDecl != entry.getValue()
+          && (funcDecl == null || !sameSignature(funcDecl, entry.getValue()))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void countParams(FunctionDecl funcDecl, int delta) {
+    for (VariableDecl param : funcDecl.getParams()) {
+      paramLabels.merge(param.getLabel(), delta, (a, b) -> a + b != 0 ? a + b : null);
+    }
+  }
+
+  private static boolean sameSignature(FunctionDecl oldDecl, FunctionDecl newDecl) {
+
+    if (!oldDecl.getRetType().equals(newDecl.getRetType())) {
+      return false;
+    }
+
+    List<VariableDecl> oldParams = oldDecl.getParams();
+    List<VariableDecl> newParams = newDecl.getParams();
+    if (oldParams.size() != newParams.size()) {
+      return false;
+    }
+    for (int i = 0; i < oldParams.size(); i++) {
+      if (!oldParams.get(i).getType().equals(newParams.get(i).getType())) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
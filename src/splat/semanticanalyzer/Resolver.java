@@ -0,0 +1,157 @@
+package splat.semanticanalyzer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import splat.parser.ParseException;
+import splat.parser.elements.Assignment;
+import splat.parser.elements.BinaryOp;
+import splat.parser.elements.Declaration;
+import splat.parser.elements.Expression;
+import splat.parser.elements.FunctionCallExpr;
+import splat.parser.elements.FunctionCallStmt;
+import splat.parser.elements.FunctionDecl;
+import splat.parser.elements.IfThen;
+import splat.parser.elements.Print;
+import splat.parser.elements.ProgramAST;
+import splat.parser.elements.Return;
+import splat.parser.elements.Statement;
+import splat.parser.elements.UnaryOp;
+import splat.parser.elements.Variable;
+import splat.parser.elements.VariableDecl;
+import splat.parser.elements.WhileLoop;
+
+/**
+ * Gives every variable a slot in a frame, so that the executor can keep
+ * the values of the variables in scope in an array instead of a map.
+ *
+ * The frame of a function holds its parameters, in order, followed by
+ * its local variables; the frame of the program body holds the program
+ * variables.  Each VariableDecl, and each Variable and Assignment that
+ * refers to it, gets the index of the variable in its frame, and each
+ * FunctionDecl and the ProgramAST get the size of their frame.
+ *
+ * Run it on a program that has passed semantic analysis.  A label that
+ * is not declared keeps the slot -1, and using it fails at run time as
+ * before.
+ */
+public class Resolver {
+
+  private ProgramAST progAST;
+
+  public Resolver(ProgramAST progAST) {
+    this.progAST = progAST;
+  }
+
+  public void resolve() throws ParseException {
+
+    List<VariableDecl> progVars = new ArrayList<VariableDecl>();
+    for (Declaration decl : progAST.getDecls()) {
+      if (decl instanceof FunctionDecl) {
+        resolveFuncDecl((FunctionDecl) decl);
+      } else if (decl instanceof VariableDecl) {
+        progVars.add((VariableDecl) decl);
+      }
+    }
+
+    Map<String, Integer> slots = new HashMap<String, Integer>();
+    declare(progVars, slots);
+    progAST.setFrameSize(slots.size());
+    resolveStmts(progAST.getStmts(), slots);
+  }
+
+  private void resolveFuncDecl(FunctionDecl funcDecl) throws ParseException {
+
+    funcDecl.parseBody();
+
+    Map<String, Integer> slots = new HashMap<String, Integer>();
+    declare(funcDecl.getParams(), slots);
+    declare(funcDecl.getLocVarDecls(), slots);
+    funcDecl.setFrameSize(slots.size());
+    resolveStmts(funcDecl.getStmts(), slots);
+  }
+
+  private void declare(List<VariableDecl> varDecls, Map<String, Integer> slots) {
+    for (VariableDecl varDecl : varDecls) {
+      int slot = slots.size();
+      varDecl.setSlot(slot);
+      slots.put(varDecl.getLabel(), slot);
+    }
+  }
+
+  private void resolveStmts(List<Statement> stmts, Map<String, Integer> slots) {
+    for (Statement stmt : stmts) {
+      resolveStmt(stmt, slots);
+    }
+  }
+
+  private void resolveStmt(Statement stmt, Map<String, Integer> slots) {
+
+    if (stmt instanceof Assignment) {
+      Assignment assignment = (Assignment) stmt;
+      assignment.setSlot(slotOf(assignment.getLabel(), slots));
+      resolveExpr(assignment.getExpr(), slots);
+
+    } else if (stmt instanceof FunctionCallStmt) {
+      for (Expression arg : ((FunctionCallStmt) stmt).getArgs()) {
+        resolveExpr(arg, slots);
+      }
+
+    } else if (stmt instanceof IfThen) {
+      IfThen ifThen = (IfThen) stmt;
+      resolveExpr(ifThen.getCondition(), slots);
+      resolveStmts(ifThen.getThenStmts(), slots);
+      if (ifThen.getElseStmts() != null) {
+        resolveStmts(ifThen.getElseStmts(), slots);
+      }
+
+    } else if (stmt instanceof WhileLoop) {
+      WhileLoop whileLoop = (WhileLoop) stmt;
+      resolveExpr(whileLoop.getCondition(), slots);
+      resolveStmts(whileLoop.getStmts(), slots);
+
+    } else if (stmt instanceof Print) {
+      resolveExpr(((Print) stmt).getExpr(), slots);
+
+    } else if (stmt instanceof Return) {
+      Expression expr = ((Return) stmt).getExpr();
+      if (expr != null) {
+        resolveExpr(expr, slots);
+      }
+    }
+  }
+
+  /*
+   * Resolves the variables in the given expression, with a work list
+   * rather than recursion, since expressions may be nested very deeply.
+   */
+  private void resolveExpr(Expression root, Map<String, Integer> slots) {
+
+    List<Expression> work = new ArrayList<Expression>();
+    work.add(root);
+
+    while (!work.isEmpty()) {
+      Expression expr = work.remove(work.size() - 1);
+
+      if (expr instanceof Variable) {
+        Variable var = (Variable) expr;
+        var.setSlot(slotOf(var.getLabel(), slots));
+      } else if (expr instanceof BinaryOp) {
+        BinaryOp binOp = (BinaryOp) expr;
+        work.add(binOp.getRight());
+        work.add(binOp.getLeft());
+      } else if (expr instanceof UnaryOp) {
+        work.add(((UnaryOp) expr).getExpr());
+      } else if (expr instanceof FunctionCallExpr) {
+        work.addAll(((FunctionCallExpr) expr).getArgs());
+      }
+    }
+  }
+
+  private static int slotOf(String label, Map<String, Integer> slots) {
+    Integer slot = slots.get(label);
+    return slot != null ? slot : -1;
+  }
+}
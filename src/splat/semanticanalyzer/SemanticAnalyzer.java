@@ -1,21 +1,22 @@
 package splat.semanticanalyzer;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
+import splat.SplatException;
+import splat.parser.ParseException;
 import splat.parser.elements.Declaration;
-import splat.parser.elements.Expression;
 import splat.parser.elements.FunctionDecl;
-import splat.parser.elements.IfThen;
 import splat.parser.elements.ProgramAST;
-import splat.parser.elements.Return;
-import splat.parser.elements.Statement;
 import splat.parser.elements.Type;
 import splat.parser.elements.VariableDecl;
-import splat.parser.elements.WhileLoop;
 
 public class SemanticAnalyzer {
 
@@ -23,13 +24,57 @@ public class SemanticAnalyzer {
 
   private Map<String, FunctionDecl> funcMap;
   private Map<String, Type> progVarMap;
-  private static final Type VOID_TYPE = new Type("void");
+
+  // Analyzes the functions in parallel if set
+  private ForkJoinPool functionPool;
+
+  // Only analyzes, and keeps, the functions the program body can reach
+  private boolean reachableOnly;
 
   public SemanticAnalyzer(ProgramAST progAST) {
     this.progAST = progAST;
   }
 
-  public void analyze() throws SemanticAnalysisException {
+  /*
+   * Creates an analyzer for parts of the given program, whose maps are
+   * already known.
+   */
+  SemanticAnalyzer(ProgramAST progAST, Map<String, FunctionDecl> funcMap,
+      Map<String, Type> progVarMap) {
+    this.progAST = progAST;
+    this.funcMap = funcMap;
+    this.progVarMap = progVarMap;
+  }
+
+  /**
+   * Has the functions analyzed in parallel on the given pool, or one by
+   * one if it is null.  The error reported, if any, is the same either
+   * way.
+   */
+  public void setFunctionPool(ForkJoinPool functionPool) {
+    this.functionPool = functionPool;
+  }
+
+  /**
+   * Has only the functions that the program body can call, directly or
+   * through other functions, analyzed if set.  The bodies of the other
+   * functions are not parsed (when the parser skipped them) or checked,
+   * and getProgram() leaves them out.  The checks on labels still cover
+   * every declaration.  By default the whole program is checked.
+   */
+  public void setReachableOnly(boolean reachableOnly) {
+    this.reachableOnly = reachableOnly;
+  }
+
+  /**
+   * Returns the analyzed program: the one given, or after analysis with
+   * setReachableOnly(true), a copy without the unreachable functions.
+   */
+  public ProgramAST getProgram() {
+    return progAST;
+  }
+
+  public void analyze() throws SemanticAnalysisException, ParseException {
 
     // Checks to make sure we don't use the same labels more than once
     // for our program functions and variables
@@ -40,92 +85,125 @@ public class SemanticAnalyzer {
     // program body
     setProgVarAndFuncMaps();
 
-    // Perform semantic analysis on the functions
-    for (FunctionDecl funcDecl : funcMap.values()) {
-      analyzeFuncDecl(funcDecl);
+    // Perform semantic analysis on the functions, or on those that
+    // can be reached
+    Collection<FunctionDecl> funcDecls = funcMap.values();
+    Set<FunctionDecl> reachable = null;
+    if (reachableOnly) {
+      reachable = CallGraph.reachableFrom(progAST.getStmts(), funcMap);
+      funcDecls = new ArrayList<FunctionDecl>();
+      for (FunctionDecl funcDecl : funcMap.values()) {
+        if (reachable.contains(funcDecl)) {
+          funcDecls.add(funcDecl);
+        }
+      }
+    }
+
+    if (functionPool != null) {
+      analyzeFuncDeclsInParallel(funcDecls);
+    } else {
+      for (FunctionDecl funcDecl : funcDecls) {
+        analyzeFuncDecl(funcDecl);
+      }
     }
 
     checkNoFuncParamNameConflicts();
     
     // Perform semantic analysis on the program body
-    for (Statement stmt : progAST.getStmts()) {
-      checkNoReturnInProgramBody(stmt);
-      stmt.analyze(funcMap, progVarMap);
+    analyzeProgramBody();
+
+    if (reachable != null) {
+      dropUnreachableFuncDecls(reachable);
     }
 
   }
 
-  private void analyzeFuncDecl(FunctionDecl funcDecl) throws SemanticAnalysisException {
+  Map<String, FunctionDecl> getFuncMap() {
+    return funcMap;
+  }
 
-    // Checks to make sure we don't use the same labels more than once
-    // among our function parameters, local variables, and function names
-    checkNoDuplicateFuncLabels(funcDecl);
+  Map<String, Type> getProgVarMap() {
+    return progVarMap;
+  }
 
-    // Get the types of the parameters and local variables
-    Map<String, Type> varAndParamMap = getVarAndParamMap(funcDecl);
+  void analyzeProgramBody() throws SemanticAnalysisException {
+    new AnalysisVisitor(funcMap, progVarMap).visitBody(progAST.getStmts());
+  }
 
-    Type funcRetType = funcDecl.getRetType();
+  void analyzeFuncDecl(FunctionDecl funcDecl)
+      throws SemanticAnalysisException, ParseException {
 
-    // Perform semantic analysis on the function body
-    for (Statement stmt : funcDecl.getStmts()) {
-      stmt.analyze(funcMap, varAndParamMap);
-      checkReturnStatementInFunction(stmt, funcDecl, funcRetType, varAndParamMap);
-    }
+    // The body may have been skipped by a lazy parser
+    funcDecl.parseBody();
 
-    boolean hasReturn = hasReturnStatement(funcDecl.getStmts());
-    if (!funcRetType.equals(VOID_TYPE) && !hasReturn) {
-      throw new SemanticAnalysisException(
-          "Function '" + funcDecl.getLabel() + "' returns " + funcRetType.getName() +
-              " but has no return statement",
-          funcDecl);
-    }
+    // Declares the parameters and local variables, which must not reuse
+    // a label of the function, and checks the function body in one walk
+    new AnalysisVisitor(funcMap, funcDecl).visitBody(funcDecl.getStmts());
   }
 
-  private Map<String, Type> getVarAndParamMap(FunctionDecl funcDecl) {
+  private void dropUnreachableFuncDecls(Set<FunctionDecl> reachable) {
 
-    // FIXME: Somewhat similar to setProgVarAndFuncMaps()
-    Map<String, Type> varAndParamMap = new HashMap<String, Type>();
-
-    for (VariableDecl param : funcDecl.getParams()) {
-      varAndParamMap.put(param.getLabel(), param.getType());
-    }
-
-    for (VariableDecl locVar : funcDecl.getLocVarDecls()) {
-      varAndParamMap.put(locVar.getLabel(), locVar.getType());
+    List<Declaration> decls = new ArrayList<Declaration>();
+    for (Declaration decl : progAST.getDecls()) {
+      if (!(decl instanceof FunctionDecl) || reachable.contains(decl)) {
+        decls.add(decl);
+      }
     }
-
-    return varAndParamMap;
+    progAST = new ProgramAST(progAST, decls);
   }
 
-  private void checkNoDuplicateFuncLabels(FunctionDecl funcDecl)
-      throws SemanticAnalysisException {
-
-    // FIXME: Similar to checkNoDuplicateProgLabels()
-    Set<String> labels = new HashSet<String>();
-    String funcName = funcDecl.getLabel();
-
-    labels.add(funcName);
+  /*
+   * Analyzes the given functions like analyze() does, but in batches on the
+   * function pool.  Once the maps are set they are only read, and the
+   * analysis of a function only writes to its own elements.  Each batch
+   * stops at its first error and the batches are joined in order, so the
+   * error thrown is the one the sequential loop would have run into first.
+   */
+  private void analyzeFuncDeclsInParallel(Collection<FunctionDecl> funcs)
+      throws SemanticAnalysisException, ParseException {
+
+    List<FunctionDecl> funcDecls = new ArrayList<FunctionDecl>(funcs);
+    int funcCount = funcDecls.size();
+    int batchCount = Math.min(funcCount, functionPool.getParallelism() * 4);
+    List<ForkJoinTask<SplatException>> tasks = new ArrayList<ForkJoinTask<SplatException>>();
+    for (int b = 0; b < batchCount; b++) {
+      int from = (int) ((long) funcCount * b / batchCount);
+      int to = (int) ((long) funcCount * (b + 1) / batchCount);
+      tasks.add(functionPool.submit(() -> analyzeFuncDeclBatch(funcDecls, from, to)));
+    }
 
-    for (VariableDecl param : funcDecl.getParams()) {
-      String label = param.getLabel();
-      if (labels.contains(label)) {
-        throw new SemanticAnalysisException("Cannot have duplicate label '"
-            + label + "' in function '" + funcName + "'", param);
+    for (int b = 0; b < batchCount; b++) {
+      SplatException ex = tasks.get(b).join();
+      if (ex != null) {
+        for (ForkJoinTask<SplatException> task : tasks.subList(b + 1, batchCount)) {
+          task.cancel(false);
+        }
+        if (ex instanceof ParseException) {
+          throw (ParseException) ex;
+        }
+        throw (SemanticAnalysisException) ex;
       }
-      labels.add(label);
     }
+  }
 
-    for (VariableDecl locVar : funcDecl.getLocVarDecls()) {
-      String label = locVar.getLabel();
-      if (labels.contains(label)) {
-        throw new SemanticAnalysisException("Cannot have duplicate label '"
-            + label + "' in function '" + funcName + "'", locVar);
+  /*
+   * Analyzes the functions from index from (inclusive) to index to
+   * (exclusive), and returns the first error, or null if there is none.
+   */
+  private SplatException analyzeFuncDeclBatch(List<FunctionDecl> funcDecls,
+      int from, int to) {
+
+    try {
+      for (int i = from; i < to; i++) {
+        analyzeFuncDecl(funcDecls.get(i));
       }
-      labels.add(label);
+      return null;
+    } catch (SemanticAnalysisException | ParseException ex) {
+      return ex;
     }
   }
 
-  private void checkNoDuplicateProgLabels() throws SemanticAnalysisException {
+  void checkNoDuplicateProgLabels() throws SemanticAnalysisException {
 
     Set<String> labels = new HashSet<String>();
 
@@ -140,7 +218,7 @@ public class SemanticAnalyzer {
     }
   }
 
-  private void checkNoFuncParamNameConflicts() throws SemanticAnalysisException {
+  void checkNoFuncParamNameConflicts() throws SemanticAnalysisException {
     
     Set<String> paramNames = new HashSet<String>();
     for (FunctionDecl funcDecl : funcMap.values()) {
@@ -158,105 +236,7 @@ public class SemanticAnalyzer {
     }
   }
 
-  private void checkNoReturnInProgramBody(Statement stmt) throws SemanticAnalysisException {
-    
-    if (stmt instanceof Return) {
-      throw new SemanticAnalysisException(
-        "Return statement not allowed in program body", stmt);
-    }
-    
-    if (stmt instanceof IfThen) {
-      IfThen ifThen = (IfThen) stmt;
-      for (Statement nestedStmt : ifThen.getThenStmts()) {
-        checkNoReturnInProgramBody(nestedStmt);
-      }
-      if (ifThen.getElseStmts() != null) {
-        for (Statement nestedStmt : ifThen.getElseStmts()) {
-          checkNoReturnInProgramBody(nestedStmt);
-        }
-      }
-    } else if (stmt instanceof WhileLoop) {
-      WhileLoop whileLoop = (WhileLoop) stmt;
-      for (Statement nestedStmt : whileLoop.getStmts()) {
-        checkNoReturnInProgramBody(nestedStmt);
-      }
-    }
-  }
-
-  private void checkReturnStatementInFunction(Statement stmt, FunctionDecl funcDecl,
-      Type funcRetType, Map<String, Type> varAndParamMap) throws SemanticAnalysisException {
-    
-    if (stmt instanceof Return) {
-      Return returnStmt = (Return) stmt;
-      Expression returnExpr = returnStmt.getExpr();
-
-      if (funcRetType.equals(VOID_TYPE)) {
-        if (returnExpr != null) {
-          throw new SemanticAnalysisException(
-              "Function '" + funcDecl.getLabel() + "' returns void, " +
-                  "cannot return a value",
-              returnStmt);
-        }
-      } else {
-        if (returnExpr == null) {
-          throw new SemanticAnalysisException(
-              "Function '" + funcDecl.getLabel() + "' returns " + funcRetType.getName() +
-                  ", must return a value",
-              returnStmt);
-        } else {
-          Type returnType = returnExpr.analyzeAndGetType(funcMap, varAndParamMap);
-          if (!returnType.equals(funcRetType)) {
-            throw new SemanticAnalysisException(
-                "Return type mismatch in function '" + funcDecl.getLabel() +
-                    "': expected " + funcRetType.getName() + ", got " + returnType.getName(),
-                returnStmt);
-          }
-        }
-      }
-    }
-    
-    if (stmt instanceof IfThen) {
-      IfThen ifThen = (IfThen) stmt;
-      for (Statement nestedStmt : ifThen.getThenStmts()) {
-        checkReturnStatementInFunction(nestedStmt, funcDecl, funcRetType, varAndParamMap);
-      }
-      if (ifThen.getElseStmts() != null) {
-        for (Statement nestedStmt : ifThen.getElseStmts()) {
-          checkReturnStatementInFunction(nestedStmt, funcDecl, funcRetType, varAndParamMap);
-        }
-      }
-    } else if (stmt instanceof WhileLoop) {
-      WhileLoop whileLoop = (WhileLoop) stmt;
-      for (Statement nestedStmt : whileLoop.getStmts()) {
-        checkReturnStatementInFunction(nestedStmt, funcDecl, funcRetType, varAndParamMap);
-      }
-    }
-  }
-
-  private boolean hasReturnStatement(List<Statement> stmts) {
-    for (Statement stmt : stmts) {
-      if (stmt instanceof Return) {
-        return true;
-      }
-      if (stmt instanceof IfThen) {
-        IfThen ifThen = (IfThen) stmt;
-        if (hasReturnStatement(ifThen.getThenStmts())) {
-          return true;
-        }
-        if (ifThen.getElseStmts() != null && hasReturnStatement(ifThen.getElseStmts())) {
-          return true;
-        }
-      } else if (stmt instanceof WhileLoop) {
-        WhileLoop whileLoop = (WhileLoop) stmt;
-        if (hasReturnStatement(whileLoop.getStmts())) {
-          return true;
-        }
-      }
-    }
-    return false;
-  }
-
-  private void setProgVarAndFuncMaps() {
+  void setProgVarAndFuncMaps() {
 
     funcMap = new HashMap<String, FunctionDecl>();
     progVarMap = new HashMap<String, Type>();